@@ -0,0 +1,391 @@
+package com.echedeylima.weather.app;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local stand-in for the OpenWeatherMap forecast endpoints, for tests that run the sync
+ * end to end without the real upstream.
+ * <p/>
+ * It answers the daily and 3-hourly forecast requests of
+ * {@link com.echedeylima.weather.app.source.HttpWeatherSource} with synthetic forecasts,
+ * keeping connections alive the way the real server does.  {@link Faults} make it
+ * misbehave: slow to answer, throttled, dripping, truncating its bodies or failing.
+ */
+public class MockForecastServer {
+
+    private static final String LOG_TAG = MockForecastServer.class.getSimpleName();
+
+    private static final String DAILY_PATH = "/forecast/daily";
+    private static final String HOURLY_PATH = "/forecast";
+
+    private static final long DAY_SECONDS = 24 * 60 * 60;
+    private static final long PERIOD_SECONDS = 3 * 60 * 60;
+    private static final int NUM_PERIODS = 40;
+
+    /**
+     * How the server misbehaves.  Every field is off by default.
+     */
+    public static class Faults {
+        // Delay before the response headers are sent.
+        public long latencyMillis;
+        // Bodies are sent at this rate, 0 for as fast as possible.
+        public int bytesPerSecond;
+        // Bodies are sent one byte at a time, this long apart, 0 for not at all.
+        public long dripIntervalMillis;
+        // Fraction of the requests whose body is cut short: the full length is announced,
+        // but only half of it is sent before the connection is closed.
+        public double truncateRate;
+        // Fraction of the requests answered with a 503.
+        public double serverErrorRate;
+    }
+
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final Random mRandom = new Random(42);
+
+    private volatile Faults mFaults = new Faults();
+    private volatile int mNumDays = 14;
+
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private final AtomicInteger mErrors = new AtomicInteger();
+    private final AtomicLong mBytesSent = new AtomicLong();
+
+    public MockForecastServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+    }
+
+    /**
+     * @return the root of the API, to hand to an
+     * {@link com.echedeylima.weather.app.source.HttpWeatherSource}.
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/";
+    }
+
+    public void setFaults(Faults faults) {
+        mFaults = faults;
+    }
+
+    /**
+     * @param numDays days in every daily forecast served
+     */
+    public void setNumDays(int numDays) {
+        mNumDays = numDays;
+    }
+
+    public int getRequestCount() {
+        return mRequests.get();
+    }
+
+    /**
+     * @return the number of requests answered with an error or a truncated body.
+     */
+    public int getErrorCount() {
+        return mErrors.get();
+    }
+
+    /**
+     * @return the number of body bytes sent so far.
+     */
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    public void shutdown() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Error closing the server socket", e);
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private void acceptConnections() {
+        while (!mServerSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                // Closed by shutdown().
+                return;
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    serveConnection(socket);
+                }
+            });
+        }
+    }
+
+    private void serveConnection(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            // Keep-alive: serve requests until the client closes the connection, or a
+            // fault closes it for us.
+            String requestLine;
+            while ((requestLine = readLine(in)) != null) {
+                if (requestLine.length() == 0) {
+                    continue;
+                }
+                String header;
+                while ((header = readLine(in)) != null && header.length() > 0) {
+                    // The request headers don't matter.
+                }
+                if (!serveRequest(requestLine, out)) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // The client gave up on the connection, e.g. a cancelled sync.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing to do.
+            }
+        }
+    }
+
+    /**
+     * @return true if the connection can be kept for the next request.
+     */
+    private boolean serveRequest(String requestLine, OutputStream out) throws IOException {
+        mRequests.incrementAndGet();
+        Faults faults = mFaults;
+
+        String[] parts = requestLine.split(" ");
+        String method = parts[0];
+        String target = parts.length > 1 ? parts[1] : "/";
+        int queryStart = target.indexOf('?');
+        String path = queryStart == -1 ? target : target.substring(0, queryStart);
+        Map<String, String> query = parseQuery(
+                queryStart == -1 ? "" : target.substring(queryStart + 1));
+
+        sleep(faults.latencyMillis);
+
+        if (chance(faults.serverErrorRate)) {
+            mErrors.incrementAndGet();
+            writeHead(out, "503 Service Unavailable", 0);
+            return true;
+        }
+
+        byte[] body;
+        if ("HEAD".equals(method)) {
+            body = new byte[0];
+        } else if (path.endsWith(DAILY_PATH)) {
+            body = buildDailyForecast(query).getBytes("UTF-8");
+        } else if (path.endsWith(HOURLY_PATH)) {
+            body = buildHourlyForecast(query).getBytes("UTF-8");
+        } else {
+            writeHead(out, "404 Not Found", 0);
+            return true;
+        }
+
+        writeHead(out, "200 OK", body.length);
+        if ("HEAD".equals(method)) {
+            return true;
+        }
+
+        int length = body.length;
+        boolean truncated = chance(faults.truncateRate);
+        if (truncated) {
+            mErrors.incrementAndGet();
+            length /= 2;
+        }
+        writeBody(out, body, length, faults);
+        // A truncated body can only be told apart by closing the connection.
+        return !truncated;
+    }
+
+    private synchronized boolean chance(double rate) {
+        return rate > 0 && mRandom.nextDouble() < rate;
+    }
+
+    private static void writeHead(OutputStream out, String status, int contentLength)
+            throws IOException {
+        String head = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: application/json; charset=utf-8\r\n"
+                + "Content-Length: " + contentLength + "\r\n"
+                + "Connection: keep-alive\r\n"
+                + "\r\n";
+        out.write(head.getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    private void writeBody(OutputStream out, byte[] body, int length, Faults faults)
+            throws IOException {
+        if (faults.dripIntervalMillis > 0) {
+            for (int i = 0; i < length; i++) {
+                out.write(body[i]);
+                out.flush();
+                mBytesSent.incrementAndGet();
+                sleep(faults.dripIntervalMillis);
+            }
+        } else if (faults.bytesPerSecond > 0) {
+            // Ten chunks a second, each one a tenth of the rate.
+            int chunkSize = Math.max(1, faults.bytesPerSecond / 10);
+            for (int offset = 0; offset < length; offset += chunkSize) {
+                int count = Math.min(chunkSize, length - offset);
+                out.write(body, offset, count);
+                out.flush();
+                mBytesSent.addAndGet(count);
+                sleep(100);
+            }
+        } else {
+            out.write(body, 0, length);
+            out.flush();
+            mBytesSent.addAndGet(length);
+        }
+    }
+
+    private String buildDailyForecast(Map<String, String> query) {
+        int numDays = mNumDays;
+        String count = query.get("cnt");
+        if (count != null) {
+            numDays = Math.min(numDays, Integer.parseInt(count));
+        }
+        long cityId = getCityId(query);
+        long today = System.currentTimeMillis() / 1000 / DAY_SECONDS * DAY_SECONDS;
+
+        StringBuilder json = new StringBuilder(256 + numDays * 192);
+        appendCity(json, cityId);
+        json.append(",\"cod\":\"200\",\"cnt\":").append(numDays).append(",\"list\":[");
+        for (int i = 0; i < numDays; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            // The weather moves with the city and the day, so every location gets a
+            // forecast of its own.
+            long seed = cityId + i;
+            json.append("{\"dt\":").append(today + i * DAY_SECONDS + 12 * 60 * 60)
+                    .append(",\"temp\":{\"day\":").append(15 + seed % 10)
+                    .append(",\"min\":").append(5 + seed % 7)
+                    .append(",\"max\":").append(20 + seed % 9)
+                    .append(",\"night\":").append(8 + seed % 5)
+                    .append("},\"pressure\":").append(1000 + seed % 30)
+                    .append(".5,\"humidity\":").append(40 + seed % 50)
+                    .append(",\"weather\":[{\"id\":").append(800 + seed % 4)
+                    .append(",\"main\":\"Clouds\",\"description\":\"few clouds\"")
+                    .append(",\"icon\":\"02d\"}],\"speed\":").append(1 + seed % 12)
+                    .append(".2,\"deg\":").append(seed * 37 % 360)
+                    .append(",\"clouds\":").append(seed % 100)
+                    .append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    private String buildHourlyForecast(Map<String, String> query) {
+        long cityId = getCityId(query);
+        long start = System.currentTimeMillis() / 1000 / PERIOD_SECONDS * PERIOD_SECONDS;
+
+        StringBuilder json = new StringBuilder(256 + NUM_PERIODS * 224);
+        appendCity(json, cityId);
+        json.append(",\"cod\":\"200\",\"cnt\":").append(NUM_PERIODS).append(",\"list\":[");
+        for (int i = 0; i < NUM_PERIODS; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            long seed = cityId + i;
+            json.append("{\"dt\":").append(start + (i + 1) * PERIOD_SECONDS)
+                    .append(",\"main\":{\"temp\":").append(10 + seed % 15)
+                    .append(".3,\"pressure\":").append(1000 + seed % 30)
+                    .append(".1,\"humidity\":").append(40 + seed % 50)
+                    .append("},\"weather\":[{\"id\":").append(500 + seed % 4)
+                    .append(",\"main\":\"Rain\",\"description\":\"light rain\"")
+                    .append(",\"icon\":\"10d\"}],\"wind\":{\"speed\":").append(1 + seed % 12)
+                    .append(".4,\"deg\":").append(seed * 37 % 360)
+                    .append("}}");
+        }
+        return json.append("]}").toString();
+    }
+
+    private static void appendCity(StringBuilder json, long cityId) {
+        json.append("{\"city\":{\"id\":").append(cityId)
+                .append(",\"name\":\"City ").append(cityId)
+                .append("\",\"coord\":{\"lon\":").append(cityId % 360 - 180)
+                .append(".5,\"lat\":").append(cityId % 180 - 90)
+                .append(".5},\"country\":\"XX\"}");
+    }
+
+    /**
+     * @return the id of the city a request names, by id or by query.
+     */
+    private static long getCityId(Map<String, String> query) {
+        String id = query.get("id");
+        if (id != null) {
+            return Long.parseLong(id);
+        }
+        String location = query.get("q");
+        return location == null ? 1 : (location.hashCode() & 0x7fffffff) % 10000000 + 1;
+    }
+
+    private static Map<String, String> parseQuery(String query)
+            throws IOException {
+        Map<String, String> params = new HashMap<String, String>();
+        for (String param : query.split("&")) {
+            int equals = param.indexOf('=');
+            if (equals > 0) {
+                params.put(URLDecoder.decode(param.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(param.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    /**
+     * @return a line without its terminator, or null at the end of the stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                break;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("US-ASCII");
+    }
+
+    private static void sleep(long millis) throws IOException {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Server shutting down");
+        }
+    }
+}
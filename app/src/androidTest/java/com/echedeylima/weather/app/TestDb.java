@@ -18,16 +18,28 @@ package com.echedeylima.weather.app;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import com.echedeylima.weather.app.data.Backfill;
+import com.echedeylima.weather.app.data.BackfillRunner;
+import com.echedeylima.weather.app.data.QueryPlans;
+import com.echedeylima.weather.app.data.WeatherContract;
 import com.echedeylima.weather.app.data.WeatherDbHelper;
+import com.echedeylima.weather.app.data.WeatherContract.HourlyEntry;
 import com.echedeylima.weather.app.data.WeatherContract.LocationEntry;
+import com.echedeylima.weather.app.data.WeatherContract.SyncStateEntry;
 import com.echedeylima.weather.app.data.WeatherContract.WeatherEntry;
 
+import java.util.Calendar;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class TestDb extends AndroidTestCase {
 
@@ -96,11 +108,294 @@ public class TestDb extends AndroidTestCase {
         dbHelper.close();
     }
 
+    public void testUpgradeFromVersion1KeepsData() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        createVersion1Tables(db);
+        ContentValues locationValues = createNorthPoleLocationValues();
+        long locationRowId = db.insert(LocationEntry.TABLE_NAME, null, locationValues);
+        assertTrue(locationRowId != -1);
+        ContentValues oldValues = createWeatherValues(locationRowId);
+        oldValues.put(WeatherEntry.COLUMN_DATE, "20141205");
+        long weatherRowId = db.insert(WeatherEntry.TABLE_NAME, null, oldValues);
+        assertTrue(weatherRowId != -1);
+        oldValues.put(WeatherEntry.COLUMN_DATE, "20141206");
+        assertTrue(db.insert(WeatherEntry.TABLE_NAME, null, oldValues) != -1);
+
+        new WeatherDbHelper(mContext).onUpgrade(db, 1, 2);
+
+        // The location is still there, with no city id until its next sync...
+        Cursor cursor = db.query(LocationEntry.TABLE_NAME, null,
+                LocationEntry._ID + " = " + locationRowId, null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertTrue(cursor.isNull(cursor.getColumnIndex(LocationEntry.COLUMN_CITY_ID)));
+        validateCursor(cursor, locationValues);
+
+        // ...and so are both days, with their _id, and their dates are now day numbers.
+        cursor = db.query(WeatherEntry.TABLE_NAME, null,
+                WeatherEntry._ID + " = " + weatherRowId, null, null, null, null);
+        validateCursor(cursor, createWeatherValues(locationRowId));
+        cursor = db.query(WeatherEntry.TABLE_NAME,
+                new String[]{WeatherEntry.COLUMN_DATE, "typeof(" + WeatherEntry.COLUMN_DATE + ")"},
+                null, null, null, null, WeatherEntry.COLUMN_DATE);
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToLast());
+        assertEquals(TestProvider.TEST_DATE + 1, cursor.getLong(0));
+        assertEquals("integer", cursor.getString(1));
+        cursor.close();
+
+        // The tables and the index added since are there too.
+        assertEquals(1, DatabaseUtils.longForQuery(db, "SELECT count(*) FROM sqlite_master" +
+                " WHERE name = '" + WeatherDbHelper.WEATHER_LOCATION_DATE_INDEX + "'", null));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, SyncStateEntry.TABLE_NAME));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, HourlyEntry.TABLE_NAME));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "backfill"));
+        db.close();
+    }
+
+    public void testUpgradeFromVersion1ConvertsDates() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        createVersion1Tables(db);
+        String[] dates = {"19700101", "20141231", "20150101", "20160229", "20161030"};
+        ContentValues oldValues = createWeatherValues(1);
+        for (String date : dates) {
+            oldValues.put(WeatherEntry.COLUMN_DATE, date);
+            assertTrue(db.insert(WeatherEntry.TABLE_NAME, null, oldValues) != -1);
+        }
+        // A date that isn't yyyyMMdd can't be converted, and is left for the next sync.
+        oldValues.put(WeatherEntry.COLUMN_DATE, "2014-12-05");
+        assertTrue(db.insert(WeatherEntry.TABLE_NAME, null, oldValues) != -1);
+
+        new WeatherDbHelper(mContext).onUpgrade(db, 1, 2);
+
+        // Every day is the one the provider would have stored for the same date.
+        Cursor cursor = db.query(WeatherEntry.TABLE_NAME,
+                new String[]{WeatherEntry.COLUMN_DATE}, null, null, null, null,
+                WeatherEntry._ID);
+        assertEquals(dates.length, cursor.getCount());
+        for (String date : dates) {
+            assertTrue(cursor.moveToNext());
+            Calendar calendar = Calendar.getInstance();
+            calendar.clear();
+            calendar.set(Integer.parseInt(date.substring(0, 4)),
+                    Integer.parseInt(date.substring(4, 6)) - 1,
+                    Integer.parseInt(date.substring(6, 8)), 12, 0);
+            assertEquals(date, WeatherContract.getDayFromMillis(calendar.getTimeInMillis()),
+                    cursor.getLong(0));
+        }
+        cursor.close();
+        db.close();
+    }
+
+    /**
+     * Creates the schema of version 1, the one the app first shipped with: the weather
+     * dates are yyyyMMdd text, and there's nothing besides the locations and their weather.
+     */
+    private static void createVersion1Tables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
+                LocationEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
+                LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
+                LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                "UNIQUE (" + LocationEntry.COLUMN_LOCATION_SETTING + ") ON CONFLICT IGNORE );");
+        db.execSQL("CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
+                WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_DATE + " TEXT NOT NULL, " +
+                WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+                WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+                " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
+                WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);");
+    }
+
+    public void testBackfillResumes() {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.execSQL("DROP TABLE IF EXISTS backfill_test");
+        db.execSQL("CREATE TABLE backfill_test (_id INTEGER PRIMARY KEY, value INTEGER)");
+        db.execSQL("DELETE FROM backfill WHERE name = 'negate'");
+        final int rows = BackfillRunner.BATCH_SIZE * 3 + 1;
+        for (int i = 1; i <= rows; i++) {
+            db.execSQL("INSERT INTO backfill_test (_id, value) VALUES (" + i + ", 1)");
+        }
+        BackfillRunner.schedule(db, "negate");
+
+        // The process dies in the middle of the second range...
+        try {
+            new BackfillRunner(dbHelper, new NegateBackfill(2)).runPending();
+            fail("The backfill didn't fail");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(BackfillRunner.BATCH_SIZE, countNegated(db));
+
+        // ...and the next run goes on from the end of the first, updating no row twice.
+        assertEquals(3, new BackfillRunner(dbHelper, new NegateBackfill(-1)).runPending());
+        assertEquals(rows, countNegated(db));
+        assertEquals(0, new BackfillRunner(dbHelper, new NegateBackfill(-1)).runPending());
+
+        db.execSQL("DROP TABLE backfill_test");
+        db.execSQL("DELETE FROM backfill WHERE name = 'negate'");
+        dbHelper.close();
+    }
+
+    private static long countNegated(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db,
+                "SELECT count(*) FROM backfill_test WHERE value = -1", null);
+    }
+
+    /**
+     * Negates the values of the rows, failing halfway through the given range.
+     */
+    private static class NegateBackfill extends Backfill {
+        private final int mFailingRange;
+        private int mRanges;
+
+        NegateBackfill(int failingRange) {
+            super("negate", "backfill_test");
+            mFailingRange = failingRange;
+        }
+
+        @Override
+        protected void update(SQLiteDatabase db, long afterId, long lastId) {
+            boolean fails = ++mRanges == mFailingRange;
+            // The failing range gets halfway, which its transaction undoes.
+            long end = fails ? (afterId + lastId) / 2 : lastId;
+            db.execSQL("UPDATE backfill_test SET value = -value WHERE _id > " + afterId +
+                    " AND _id <= " + end);
+            if (fails) {
+                throw new IllegalStateException("Killed");
+            }
+        }
+    }
+
+    public void testReadersDontWaitForWriter() throws Exception {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        // A writer holds a transaction open...
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                db.beginTransactionNonExclusive();
+                try {
+                    ContentValues values = createNorthPoleLocationValues();
+                    values.put(LocationEntry.COLUMN_LOCATION_SETTING, "uncommitted");
+                    db.insert(LocationEntry.TABLE_NAME, null, values);
+                    writing.countDown();
+                    done.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        };
+        writer.start();
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+        // ...and a reader goes ahead, without seeing what it hasn't committed.
+        long start = SystemClock.elapsedRealtime();
+        Cursor cursor = db.query(LocationEntry.TABLE_NAME, null,
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{"uncommitted"}, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        assertTrue(SystemClock.elapsedRealtime() - start < 1000);
+
+        done.countDown();
+        writer.join();
+        dbHelper.close();
+    }
+
+    public void testQueryPlans() {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        // The plans are those of the current statistics; without any, SQLite assumes big
+        // tables, which is what the indices are for.
+        Map<String, List<String>> plans = QueryPlans.explainAll(db);
+        db.close();
+
+        for (Map.Entry<String, List<String>> plan : plans.entrySet()) {
+            Log.d(LOG_TAG, plan.getKey() + ": " + plan.getValue());
+            for (String step : plan.getValue()) {
+                assertFalse(plan.getKey() + ": " + step, QueryPlans.isSlow(step));
+            }
+        }
+
+        // The forecast list is answered from the index alone.
+        boolean covered = false;
+        for (String step : plans.get(QueryPlans.QUERY_FORECAST_LIST)) {
+            covered |= step.contains(
+                    "COVERING INDEX " + WeatherDbHelper.WEATHER_LOCATION_DATE_INDEX);
+        }
+        assertTrue(plans.get(QueryPlans.QUERY_FORECAST_LIST).toString(), covered);
+    }
+
+    public void testQueryPlansWithStatistics() {
+        // The plans once maintenance has run ANALYZE on a database of a few locations,
+        // with a week of past days each, the two weeks of the forecast and its hours.
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        new WeatherDbHelper(mContext).onCreate(db);
+        for (int l = 0; l < 5; l++) {
+            ContentValues locationValues = createNorthPoleLocationValues();
+            locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING,
+                    TestProvider.TEST_LOCATION + "-" + l);
+            long locationRowId = db.insert(LocationEntry.TABLE_NAME, null, locationValues);
+            ContentValues syncStateValues = new ContentValues();
+            syncStateValues.put(SyncStateEntry.COLUMN_LOCATION_SETTING,
+                    TestProvider.TEST_LOCATION + "-" + l);
+            db.insert(SyncStateEntry.TABLE_NAME, null, syncStateValues);
+            for (int d = -7; d < 14; d++) {
+                ContentValues weatherValues = createWeatherValues(locationRowId);
+                weatherValues.put(WeatherEntry.COLUMN_DATE, TestProvider.TEST_DATE + d);
+                db.insert(WeatherEntry.TABLE_NAME, null, weatherValues);
+            }
+            for (int h = 0; h < 40; h++) {
+                ContentValues hourValues = new ContentValues();
+                hourValues.put(HourlyEntry.COLUMN_LOC_KEY, locationRowId);
+                hourValues.put(HourlyEntry.COLUMN_TIME, 1417777200L + h * 3 * 60 * 60);
+                hourValues.put(HourlyEntry.COLUMN_WEATHER_ID, 800);
+                hourValues.put(HourlyEntry.COLUMN_TEMP, 68.0);
+                hourValues.put(HourlyEntry.COLUMN_HUMIDITY, 15);
+                hourValues.put(HourlyEntry.COLUMN_PRESSURE, 1.4);
+                hourValues.put(HourlyEntry.COLUMN_WIND_SPEED, 3.0);
+                hourValues.put(HourlyEntry.COLUMN_DEGREES, 90.0);
+                db.insert(HourlyEntry.TABLE_NAME, null, hourValues);
+            }
+        }
+        db.execSQL("ANALYZE");
+        Map<String, List<String>> plans = QueryPlans.explainAll(db);
+        db.close();
+
+        for (Map.Entry<String, List<String>> plan : plans.entrySet()) {
+            Log.d(LOG_TAG, plan.getKey() + ": " + plan.getValue());
+            for (String step : plan.getValue()) {
+                assertFalse(plan.getKey() + ": " + step, QueryPlans.isSlow(step));
+            }
+        }
+
+        // The statistics don't talk the forecast list out of the covering index.
+        boolean covered = false;
+        for (String step : plans.get(QueryPlans.QUERY_FORECAST_LIST)) {
+            covered |= step.contains(
+                    "COVERING INDEX " + WeatherDbHelper.WEATHER_LOCATION_DATE_INDEX);
+        }
+        assertTrue(plans.get(QueryPlans.QUERY_FORECAST_LIST).toString(), covered);
+    }
 
     static ContentValues createWeatherValues(long locationRowId) {
         ContentValues weatherValues = new ContentValues();
         weatherValues.put(WeatherEntry.COLUMN_LOC_KEY, locationRowId);
-        weatherValues.put(WeatherEntry.COLUMN_DATETEXT, "20141205");
+        weatherValues.put(WeatherEntry.COLUMN_DATE, TestProvider.TEST_DATE);
         weatherValues.put(WeatherEntry.COLUMN_DEGREES, 1.1);
         weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, 1.2);
         weatherValues.put(WeatherEntry.COLUMN_PRESSURE, 1.3);
@@ -0,0 +1,226 @@
+package com.echedeylima.weather.app;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+import com.echedeylima.weather.app.data.WeatherContract.HourlyEntry;
+import com.echedeylima.weather.app.data.WeatherContract.LocationEntry;
+import com.echedeylima.weather.app.data.WeatherContract.SyncStateEntry;
+import com.echedeylima.weather.app.data.WeatherContract.WeatherEntry;
+import com.echedeylima.weather.app.source.ForecastRequest;
+import com.echedeylima.weather.app.source.ForecastResponse;
+import com.echedeylima.weather.app.source.RecordingWeatherSource;
+import com.echedeylima.weather.app.source.ReplayWeatherSource;
+import com.echedeylima.weather.app.source.ResponseBody;
+import com.echedeylima.weather.app.source.WeatherSource;
+import com.echedeylima.weather.app.sync.ForecastPipeline;
+import com.echedeylima.weather.app.sync.SyncCancellation;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class TestForecastPipeline extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(HourlyEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(SyncStateEntry.CONTENT_URI, null, null);
+    }
+
+    static final String TEST_HOURLY_FORECAST = "{\"city\":{\"name\":\"North Pole\"}," +
+            "\"cnt\":2,\"list\":[{\"dt\":1417777200,\"main\":{\"temp\":70.5," +
+            "\"pressure\":1.3,\"humidity\":12},\"weather\":[{\"id\":321}]," +
+            "\"wind\":{\"speed\":5.5,\"deg\":1.1}},{\"dt\":1417788000," +
+            "\"main\":{\"temp\":68,\"pressure\":1.4,\"humidity\":15}," +
+            "\"weather\":[{\"id\":800}],\"wind\":{\"speed\":3,\"deg\":90}}]}";
+
+    // The last request made to TEST_SOURCE.
+    private static ForecastRequest sLastRequest;
+
+    // A source that always returns the test forecasts, without validators.
+    private static final WeatherSource TEST_SOURCE = new WeatherSource() {
+        @Override
+        public ForecastResponse fetchDailyForecast(ForecastRequest request) throws IOException {
+            sLastRequest = request;
+            return new ForecastResponse(ResponseBody.wrap(new ByteArrayInputStream(
+                    TestWeatherSource.TEST_FORECAST.getBytes("UTF-8")), false), null, null);
+        }
+
+        @Override
+        public ForecastResponse fetchHourlyForecast(ForecastRequest request)
+                throws IOException {
+            return new ForecastResponse(ResponseBody.wrap(new ByteArrayInputStream(
+                    TEST_HOURLY_FORECAST.getBytes("UTF-8")), false), null, null);
+        }
+
+        @Override
+        public void preconnect() {
+        }
+
+        @Override
+        public String getName() {
+            return "test";
+        }
+    };
+
+    public void testSyncStoresThenSkipsUnchangedForecast() throws Exception {
+        ForecastPipeline pipeline = new ForecastPipeline(mContext, TEST_SOURCE,
+                new ForecastPipeline.JsonDecoder(),
+                new ForecastPipeline.ContentValuesMapper(),
+                new ForecastPipeline.ProviderWriter(mContext));
+
+        // The first sync goes through every stage and stores the forecast...
+        ForecastPipeline.Result result = pipeline.sync(TestProvider.TEST_LOCATION);
+        assertFalse(result.unchanged);
+        assertEquals(1, result.days);
+        assertEquals(1, result.rowsWritten);
+        assertEquals(TestWeatherSource.TEST_FORECAST.length(), result.decodedBytes);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithDate(
+                        TestProvider.TEST_LOCATION, TestProvider.TEST_DATE),
+                new String[]{LocationEntry.COLUMN_CITY_NAME, WeatherEntry.COLUMN_WEATHER_ID,
+                        LocationEntry.COLUMN_CITY_ID},
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TestProvider.TEST_CITY_NAME, cursor.getString(0));
+        assertEquals(321, cursor.getInt(1));
+        // The city id is kept, and later requests name the city by it.
+        assertEquals(5861897, cursor.getLong(2));
+        cursor.close();
+
+        // ...and the second one finds it unchanged and stops after fetching it.
+        result = pipeline.sync(TestProvider.TEST_LOCATION);
+        assertEquals(5861897, sLastRequest.cityId);
+        assertTrue(result.unchanged);
+        assertEquals(0, result.rowsWritten);
+        assertEquals(0, result.writeNanos);
+    }
+
+    public void testSyncHourlyReplacesPeriods() throws Exception {
+        ForecastPipeline pipeline = new ForecastPipeline(mContext, TEST_SOURCE,
+                new ForecastPipeline.JsonDecoder(),
+                new ForecastPipeline.ContentValuesMapper(),
+                new ForecastPipeline.ProviderWriter(mContext));
+
+        // Nothing is stored until the daily forecast has stored the location...
+        assertEquals(0, pipeline.syncHourly(TestProvider.TEST_LOCATION));
+        pipeline.sync(TestProvider.TEST_LOCATION);
+        assertEquals(2, pipeline.syncHourly(TestProvider.TEST_LOCATION));
+
+        // ...and syncing again replaces the periods rather than adding to them.
+        assertEquals(2, pipeline.syncHourly(TestProvider.TEST_LOCATION));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocationWithStartTime(
+                        TestProvider.TEST_LOCATION, 1417777201L),
+                new String[]{HourlyEntry.COLUMN_TIME, HourlyEntry.COLUMN_WEATHER_ID,
+                        HourlyEntry.COLUMN_TEMP},
+                null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(1417788000L, cursor.getLong(0));
+        assertEquals(800, cursor.getInt(1));
+        assertEquals(68.0, cursor.getDouble(2));
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocation(TestProvider.TEST_LOCATION),
+                null, null, null, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testRecordAndReplayHourly() throws Exception {
+        File recordings = new File(mContext.getCacheDir(), "test_pipeline_recordings");
+        try {
+            // The parser stops at the end of the JSON; the recording still gets all of it.
+            ForecastPipeline recordingPipeline = new ForecastPipeline(mContext,
+                    new RecordingWeatherSource(TEST_SOURCE, recordings),
+                    new ForecastPipeline.JsonDecoder(),
+                    new ForecastPipeline.ContentValuesMapper(),
+                    new ForecastPipeline.ProviderWriter(mContext));
+            recordingPipeline.sync(TestProvider.TEST_LOCATION);
+            assertEquals(2, recordingPipeline.syncHourly(TestProvider.TEST_LOCATION));
+
+            mContext.getContentResolver().delete(HourlyEntry.CONTENT_URI, null, null);
+            ForecastPipeline replayPipeline = new ForecastPipeline(mContext,
+                    new ReplayWeatherSource(recordings),
+                    new ForecastPipeline.JsonDecoder(),
+                    new ForecastPipeline.ContentValuesMapper(),
+                    new ForecastPipeline.ProviderWriter(mContext));
+            assertEquals(2, replayPipeline.syncHourly(TestProvider.TEST_LOCATION));
+        } finally {
+            File[] files = recordings.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            recordings.delete();
+        }
+    }
+
+    public void testCancelStopsReadAndWrite() throws Exception {
+        // A source whose body cancels the sync once its first bytes have been read.
+        final SyncCancellation cancellation = SyncCancellation.none();
+        WeatherSource cancelingSource = new WeatherSource() {
+            @Override
+            public ForecastResponse fetchDailyForecast(ForecastRequest request)
+                    throws IOException {
+                InputStream in = new ByteArrayInputStream(
+                        TestWeatherSource.TEST_FORECAST.getBytes("UTF-8")) {
+                    @Override
+                    public synchronized int read(byte[] buffer, int offset, int count) {
+                        cancellation.cancel("test");
+                        return super.read(buffer, offset, Math.min(count, 16));
+                    }
+                };
+                return new ForecastResponse(ResponseBody.wrap(in, false), null, null);
+            }
+
+            @Override
+            public ForecastResponse fetchHourlyForecast(ForecastRequest request)
+                    throws IOException {
+                return TEST_SOURCE.fetchHourlyForecast(request);
+            }
+
+            @Override
+            public void preconnect() {
+            }
+
+            @Override
+            public String getName() {
+                return "test";
+            }
+        };
+        ForecastPipeline pipeline = new ForecastPipeline(mContext, cancelingSource,
+                new ForecastPipeline.JsonDecoder(),
+                new ForecastPipeline.ContentValuesMapper(),
+                new ForecastPipeline.ProviderWriter(mContext));
+
+        try {
+            pipeline.sync(TestProvider.TEST_LOCATION, cancellation);
+            fail("A cancelled sync went through");
+        } catch (SyncCancellation.CanceledException expected) {
+        }
+
+        // Nothing was written.
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // A cancelled sync stops before fetching anything else.
+        try {
+            pipeline.syncHourly(TestProvider.TEST_LOCATION, cancellation);
+            fail("A cancelled sync went through");
+        } catch (SyncCancellation.CanceledException expected) {
+        }
+    }
+}
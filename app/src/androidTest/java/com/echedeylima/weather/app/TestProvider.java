@@ -16,13 +16,22 @@
 
 package com.echedeylima.weather.app;
 
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import com.echedeylima.weather.app.data.ForecastBatch;
+import com.echedeylima.weather.app.data.WeatherContract;
+import com.echedeylima.weather.app.data.WeatherContract.DatabaseStatsEntry;
+import com.echedeylima.weather.app.data.WeatherContract.HourlyEntry;
 import com.echedeylima.weather.app.data.WeatherContract.LocationEntry;
+import com.echedeylima.weather.app.data.WeatherContract.MaintenanceEntry;
+import com.echedeylima.weather.app.data.WeatherContract.SyncStateEntry;
 import com.echedeylima.weather.app.data.WeatherContract.WeatherEntry;
 import com.echedeylima.weather.app.data.WeatherDbHelper;
 
@@ -35,7 +44,8 @@ public class TestProvider extends AndroidTestCase {
 
     public static String TEST_CITY_NAME = "North Pole";
     public static String TEST_LOCATION = "99705";
-    public static String TEST_DATE = "20141205";
+    // 2014-12-05, in days since the epoch.
+    public static long TEST_DATE = 16409;
 
     public static ContentValues getLocationContentValues() {
         ContentValues contentValues = new ContentValues();
@@ -52,7 +62,7 @@ public class TestProvider extends AndroidTestCase {
     public static ContentValues getWeatherContentValues(long locationRowId) {
         ContentValues contentValues = new ContentValues();
         contentValues.put(WeatherEntry.COLUMN_LOC_KEY, locationRowId);
-        contentValues.put(WeatherEntry.COLUMN_DATETEXT, "20141205");
+        contentValues.put(WeatherEntry.COLUMN_DATE, TEST_DATE);
         contentValues.put(WeatherEntry.COLUMN_DEGREES, 1.1);
         contentValues.put(WeatherEntry.COLUMN_HUMIDITY, 1.2);
         contentValues.put(WeatherEntry.COLUMN_PRESSURE, 1.3);
@@ -176,8 +186,9 @@ public class TestProvider extends AndroidTestCase {
         // vnd.android.cursor.dir/com.example.android.sunshine.app/weather
         assertEquals(WeatherEntry.CONTENT_TYPE, type);
 
-        String testDate = "20140612";
-        // content://com.example.android.sunshine.app/weather/94074/20140612
+        // 2014-06-12
+        long testDate = 16233;
+        // content://com.example.android.sunshine.app/weather/94074/16233
         type = mContext.getContentResolver().getType(WeatherEntry.buildWeatherLocationWithDate
                 (testLocation, testDate));
         // vnd.android.cursor.item/com.example.android.sunshine.app/weather
@@ -192,5 +203,294 @@ public class TestProvider extends AndroidTestCase {
         type = mContext.getContentResolver().getType(LocationEntry.buildLocationUri(1L));
         // vnd.android.cursor.item/com.example.android.sunshine.app/location
         assertEquals(LocationEntry.CONTENT_ITEM_TYPE, type);
+
+        // content://com.example.android.sunshine.app/sync_state/
+        type = mContext.getContentResolver().getType(SyncStateEntry.CONTENT_URI);
+        assertEquals(SyncStateEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/sync_state/94074
+        type = mContext.getContentResolver().getType(
+                SyncStateEntry.buildSyncStateUri(testLocation));
+        assertEquals(SyncStateEntry.CONTENT_ITEM_TYPE, type);
+
+        // content://com.example.android.sunshine.app/hourly/94074
+        type = mContext.getContentResolver().getType(
+                HourlyEntry.buildHourlyLocation(testLocation));
+        assertEquals(HourlyEntry.CONTENT_TYPE, type);
+    }
+
+    public void testBulkInsertKeepsRowIds() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestDb.createNorthPoleLocationValues()));
+
+        // A new day is inserted...
+        ContentValues weatherValues = TestDb.createWeatherValues(locationRowId);
+        assertEquals(1, mContext.getContentResolver().bulkInsert(
+                WeatherEntry.CONTENT_URI, new ContentValues[]{weatherValues}));
+        long weatherRowId = getWeatherRowId(locationRowId);
+
+        // ...the same day again isn't written at all...
+        assertEquals(0, mContext.getContentResolver().bulkInsert(
+                WeatherEntry.CONTENT_URI, new ContentValues[]{weatherValues}));
+
+        // ...and a changed day is updated in place.
+        ContentValues changedValues = TestDb.createWeatherValues(locationRowId);
+        changedValues.put(WeatherEntry.COLUMN_MAX_TEMP, 80.5);
+        assertEquals(1, mContext.getContentResolver().bulkInsert(
+                WeatherEntry.CONTENT_URI, new ContentValues[]{changedValues}));
+        assertEquals(weatherRowId, getWeatherRowId(locationRowId));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithDate(TEST_LOCATION, TEST_DATE),
+                new String[]{WeatherEntry.COLUMN_MAX_TEMP}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(80.5, cursor.getDouble(0));
+        cursor.close();
+    }
+
+    public void testBulkInsertManyLocations() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+
+        // Enough rows over several locations for the write to go through in chunks.
+        final int locations = 3;
+        final int days = 120;
+        ContentValues[] values = new ContentValues[locations * days];
+        for (int l = 0; l < locations; l++) {
+            ContentValues locationValues = TestDb.createNorthPoleLocationValues();
+            locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, TEST_LOCATION + "-" + l);
+            long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                    LocationEntry.CONTENT_URI, locationValues));
+            for (int d = 0; d < days; d++) {
+                ContentValues weatherValues = TestDb.createWeatherValues(locationRowId);
+                weatherValues.put(WeatherEntry.COLUMN_DATE, TEST_DATE + d);
+                values[l * days + d] = weatherValues;
+            }
+        }
+
+        assertEquals(values.length,
+                mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values));
+        assertEquals(0,
+                mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values));
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, null);
+        assertEquals(values.length, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testInsertBatch() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestDb.createNorthPoleLocationValues()));
+
+        ForecastBatch batch = new ForecastBatch();
+        batch.locationId = locationRowId;
+        long date = WeatherContract.getMillisFromDay(TEST_DATE) / 1000;
+        batch.add(date, 321, "Asteroids", 65, 75, 1, 1.3, 5.5, 1.1);
+
+        // The batch is written as a new day...
+        assertEquals(1, insertBatch(batch));
+        long weatherRowId = getWeatherRowId(locationRowId);
+
+        // ...the same batch again isn't written at all...
+        assertEquals(0, insertBatch(batch));
+
+        // ...and a changed day is updated in place.
+        batch.max[0] = 80.5;
+        assertEquals(1, insertBatch(batch));
+        assertEquals(weatherRowId, getWeatherRowId(locationRowId));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithDate(TEST_LOCATION, TEST_DATE),
+                new String[]{WeatherEntry.COLUMN_MAX_TEMP, WeatherEntry.COLUMN_SHORT_DESC},
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(80.5, cursor.getDouble(0));
+        assertEquals("Asteroids", cursor.getString(1));
+        cursor.close();
+    }
+
+    private int insertBatch(ForecastBatch batch) {
+        Bundle result = mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherEntry.METHOD_INSERT_BATCH, null, batch.toBundle());
+        return result.getInt(WeatherEntry.KEY_ROWS_CHANGED);
+    }
+
+    private long getWeatherRowId(long locationRowId) {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID},
+                WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{String.valueOf(locationRowId)},
+                null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        long id = cursor.getLong(0);
+        cursor.close();
+        return id;
+    }
+
+    public void testResolveLocation() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+
+        // An unknown location only resolves when its row comes with the request...
+        assertEquals(-1, resolveLocation(TEST_LOCATION, null));
+        long locationRowId = resolveLocation(TEST_LOCATION,
+                TestDb.createNorthPoleLocationValues());
+        assertTrue(locationRowId != -1);
+
+        // ...which is inserted only once.
+        assertEquals(locationRowId, resolveLocation(TEST_LOCATION,
+                TestDb.createNorthPoleLocationValues()));
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Rows inserted and deleted through the provider are followed.
+        ContentValues otherValues = TestDb.createNorthPoleLocationValues();
+        otherValues.put(LocationEntry.COLUMN_LOCATION_SETTING, "99706");
+        long otherRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, otherValues));
+        assertEquals(otherRowId, resolveLocation("99706", null));
+
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        assertEquals(-1, resolveLocation(TEST_LOCATION, null));
+    }
+
+    private long resolveLocation(String locationSetting, ContentValues locationValues) {
+        Bundle extras = new Bundle();
+        if (locationValues != null) {
+            extras.putParcelable(LocationEntry.KEY_LOCATION_VALUES, locationValues);
+        }
+        Bundle result = mContext.getContentResolver().call(LocationEntry.CONTENT_URI,
+                LocationEntry.METHOD_RESOLVE_LOCATION, locationSetting, extras);
+        return result.getLong(LocationEntry.KEY_LOCATION_ID);
+    }
+
+    public void testUpdateSyncState() {
+        mContext.getContentResolver().delete(SyncStateEntry.CONTENT_URI, null, null);
+
+        // The first update creates the row for the location...
+        ContentValues stateValues = new ContentValues();
+        stateValues.put(SyncStateEntry.COLUMN_ETAG, "\"etag-1\"");
+        stateValues.put(SyncStateEntry.COLUMN_CONTENT_HASH, "hash-1");
+        int rowsUpdated = mContext.getContentResolver().update(
+                SyncStateEntry.buildSyncStateUri(TEST_LOCATION), stateValues, null, null);
+        assertEquals(1, rowsUpdated);
+
+        // ...and later ones only change the columns they carry.
+        ContentValues updatedValues = new ContentValues();
+        updatedValues.put(SyncStateEntry.COLUMN_ETAG, "\"etag-2\"");
+        rowsUpdated = mContext.getContentResolver().update(
+                SyncStateEntry.buildSyncStateUri(TEST_LOCATION), updatedValues, null, null);
+        assertEquals(1, rowsUpdated);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                SyncStateEntry.buildSyncStateUri(TEST_LOCATION), null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(1, cursor.getCount());
+        assertEquals("\"etag-2\"",
+                cursor.getString(cursor.getColumnIndex(SyncStateEntry.COLUMN_ETAG)));
+        assertEquals("hash-1",
+                cursor.getString(cursor.getColumnIndex(SyncStateEntry.COLUMN_CONTENT_HASH)));
+        // A location that was never synced is due right away.
+        assertEquals(0, cursor.getLong(cursor.getColumnIndex(SyncStateEntry.COLUMN_NEXT_SYNC)));
+        cursor.close();
+    }
+
+    public void testDatabaseStats() {
+        Bundle before = getDatabaseStats();
+
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                new ContentValues[0]);
+        mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null, null, null, null)
+                .close();
+
+        // Every write transaction and every query is counted.
+        Bundle after = getDatabaseStats();
+        assertEquals(before.getLong(DatabaseStatsEntry.KEY_WRITE_LOCK_WAITS) + 1,
+                after.getLong(DatabaseStatsEntry.KEY_WRITE_LOCK_WAITS));
+        assertEquals(before.getLong(DatabaseStatsEntry.KEY_READS) + 1,
+                after.getLong(DatabaseStatsEntry.KEY_READS));
+        assertTrue(after.getLong(DatabaseStatsEntry.KEY_MAX_READ_MILLIS)
+                <= after.getLong(DatabaseStatsEntry.KEY_READ_MILLIS));
+        // A query is counted once, on its first read, however much of it is read.
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI, null, null, null, null);
+        cursor.moveToFirst();
+        cursor.getCount();
+        cursor.close();
+        assertEquals(after.getLong(DatabaseStatsEntry.KEY_READS) + 1,
+                getDatabaseStats().getLong(DatabaseStatsEntry.KEY_READS));
+    }
+
+    public void testMaintenance() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+
+        // Two locations with the same days around today.
+        long today = WeatherContract.getDayFromMillis(System.currentTimeMillis());
+        long[] days = {today - 30, today - 2, today - 1, today, today + 1};
+        long[] locationRowIds = new long[2];
+        ContentValues[] values = new ContentValues[locationRowIds.length * days.length];
+        for (int l = 0; l < locationRowIds.length; l++) {
+            ContentValues locationValues = TestDb.createNorthPoleLocationValues();
+            locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, TEST_LOCATION + "-" + l);
+            locationRowIds[l] = ContentUris.parseId(mContext.getContentResolver().insert(
+                    LocationEntry.CONTENT_URI, locationValues));
+            for (int d = 0; d < days.length; d++) {
+                ContentValues weatherValues = TestDb.createWeatherValues(locationRowIds[l]);
+                weatherValues.put(WeatherEntry.COLUMN_DATE, days[d]);
+                values[l * days.length + d] = weatherValues;
+            }
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+
+        // Keeping a day of history leaves yesterday on, for every location.
+        Bundle result = runMaintenance(1);
+        assertEquals(4, result.getInt(MaintenanceEntry.KEY_ROWS_PURGED));
+        assertEquals(days.length - 2, countWeatherRows(locationRowIds[0]));
+        assertEquals(days.length - 2, countWeatherRows(locationRowIds[1]));
+        assertTrue(result.getLong(MaintenanceEntry.KEY_SIZE_BEFORE) > 0);
+        assertTrue(result.getLong(MaintenanceEntry.KEY_SIZE_AFTER) > 0);
+
+        // Nothing left to purge the second time, unless less history is kept.
+        assertEquals(0, runMaintenance(1).getInt(MaintenanceEntry.KEY_ROWS_PURGED));
+        assertEquals(2, runMaintenance(0).getInt(MaintenanceEntry.KEY_ROWS_PURGED));
+
+        // The database gives its free pages back a few at a time from now on.
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        assertEquals(2, DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null));
+        // The statistics of these few rows would steer the plans TestDb checks.
+        db.execSQL("DELETE FROM sqlite_stat1");
+        db.close();
+    }
+
+    private Bundle runMaintenance(int retentionDays) {
+        Bundle extras = new Bundle();
+        extras.putInt(MaintenanceEntry.KEY_RETENTION_DAYS, retentionDays);
+        return mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                MaintenanceEntry.METHOD_RUN_MAINTENANCE, null, extras);
+    }
+
+    private int countWeatherRows(long locationRowId) {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{String.valueOf(locationRowId)}, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Bundle getDatabaseStats() {
+        return mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                DatabaseStatsEntry.METHOD_GET_DATABASE_STATS, null, null);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,215 @@
+package com.echedeylima.weather.app;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SyncResult;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.echedeylima.weather.app.data.WeatherContract.HourlyEntry;
+import com.echedeylima.weather.app.data.WeatherContract.LocationEntry;
+import com.echedeylima.weather.app.data.WeatherContract.SyncStateEntry;
+import com.echedeylima.weather.app.data.WeatherContract.WeatherEntry;
+import com.echedeylima.weather.app.source.HttpWeatherSource;
+import com.echedeylima.weather.app.source.WeatherSources;
+import com.echedeylima.weather.app.sync.WeatherSyncAdapter;
+
+import java.util.Arrays;
+
+/**
+ * Runs the whole sync, {@link WeatherSyncAdapter#onPerformSync}, against a
+ * {@link MockForecastServer}, and reports the p50 and p99 sync times along with the bytes
+ * received and the rows written.  Look for "Sync benchmark" in the log to compare builds.
+ */
+public class TestSyncBenchmark extends AndroidTestCase {
+
+    public static final String TAG = TestSyncBenchmark.class.getSimpleName();
+
+    private static final int RUNS = 20;
+    private static final int LOCATIONS_PER_RUN = 4;
+    private static final int NUM_DAYS = 14;
+
+    private MockForecastServer mServer;
+    private String mPreferredLocation;
+    // Every run syncs locations of its own, so none is skipped as freshly synced.
+    private int mNextLocation;
+
+    /**
+     * What a series of runs measured.
+     */
+    static class Report {
+        long[] syncMillis;
+        long bytes;
+        long rows;
+        long ioErrors;
+        long parseErrors;
+        long skipped;
+
+        long percentile(double p) {
+            long[] sorted = syncMillis.clone();
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(p * sorted.length);
+            return sorted[Math.max(0, rank - 1)];
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new MockForecastServer();
+        mServer.setNumDays(NUM_DAYS);
+        WeatherSources.setDefault(new HttpWeatherSource(mServer.getBaseUrl()));
+        mPreferredLocation = Utility.getPreferredLocation(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        WeatherSources.setDefault(null);
+        mServer.shutdown();
+        setPreferredLocation(mPreferredLocation);
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    public void testBaseline() {
+        Report report = run("baseline", new MockForecastServer.Faults(), 0);
+
+        assertEquals(0, report.ioErrors + report.parseErrors + report.skipped);
+        // Every day of every location is new.
+        assertEquals(RUNS * LOCATIONS_PER_RUN * NUM_DAYS, report.rows);
+    }
+
+    public void testLatency() {
+        MockForecastServer.Faults faults = new MockForecastServer.Faults();
+        faults.latencyMillis = 200;
+        Report report = run("latency", faults, 0);
+
+        assertEquals(0, report.ioErrors + report.parseErrors);
+        assertTrue(report.percentile(0.5) >= faults.latencyMillis);
+    }
+
+    public void testThrottled() {
+        MockForecastServer.Faults faults = new MockForecastServer.Faults();
+        faults.bytesPerSecond = 16 * 1024;
+        Report report = run("throttled", faults, 0);
+
+        assertEquals(0, report.ioErrors + report.parseErrors);
+        assertEquals(RUNS * LOCATIONS_PER_RUN * NUM_DAYS, report.rows);
+    }
+
+    public void testServerErrors() {
+        MockForecastServer.Faults faults = new MockForecastServer.Faults();
+        faults.serverErrorRate = 0.3;
+        Report report = run("server errors", faults, 0);
+
+        // Failed locations are reported, and write nothing.
+        assertTrue(report.ioErrors > 0);
+        assertTrue(report.rows < RUNS * LOCATIONS_PER_RUN * NUM_DAYS);
+    }
+
+    public void testTruncatedBodies() {
+        MockForecastServer.Faults faults = new MockForecastServer.Faults();
+        faults.truncateRate = 0.3;
+        Report report = run("truncated", faults, 0);
+
+        // A cut body fails its location, whether the stream or the JSON notices first.
+        assertTrue(report.ioErrors + report.parseErrors > 0);
+        assertEquals(0, report.rows % NUM_DAYS);
+    }
+
+    public void testSlowDripHitsDeadline() {
+        MockForecastServer.Faults faults = new MockForecastServer.Faults();
+        faults.dripIntervalMillis = 20;
+        long timeoutMillis = 1000;
+        Report report = run("slow drip", faults, timeoutMillis);
+
+        // The deadline stops the runs instead of letting them drip for minutes.
+        assertTrue(report.skipped > 0);
+        assertTrue(report.percentile(0.99) < timeoutMillis + 2000);
+    }
+
+    /**
+     * Runs the sync {@link #RUNS} times against the server and logs what it measured.
+     *
+     * @param timeoutMillis the deadline of each run, 0 for the default
+     */
+    private Report run(String name, MockForecastServer.Faults faults, long timeoutMillis) {
+        mServer.setFaults(faults);
+        WeatherSyncAdapter adapter = new WeatherSyncAdapter(mContext, false);
+        Account account = new Account("benchmark", mContext.getString(R.string.sync_account_type));
+        String authority = mContext.getString(R.string.content_authority);
+
+        Report report = new Report();
+        report.syncMillis = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            prepareRun();
+
+            Bundle extras = new Bundle();
+            extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+            if (timeoutMillis > 0) {
+                extras.putLong(WeatherSyncAdapter.SYNC_EXTRAS_TIMEOUT_MILLIS, timeoutMillis);
+            }
+            SyncResult syncResult = new SyncResult();
+            long bytesBefore = mServer.getBytesSent();
+            long start = SystemClock.elapsedRealtime();
+            adapter.onPerformSync(account, extras, authority, null, syncResult);
+            report.syncMillis[i] = SystemClock.elapsedRealtime() - start;
+
+            report.bytes += mServer.getBytesSent() - bytesBefore;
+            report.rows += syncResult.stats.numInserts;
+            report.ioErrors += syncResult.stats.numIoExceptions;
+            report.parseErrors += syncResult.stats.numParseExceptions;
+            report.skipped += syncResult.stats.numSkippedEntries;
+        }
+
+        Log.i(TAG, "Sync benchmark [" + name + "]: " + RUNS + " runs of "
+                + LOCATIONS_PER_RUN + " locations, p50 " + report.percentile(0.5)
+                + " ms, p99 " + report.percentile(0.99) + " ms, "
+                + report.bytes / RUNS + " bytes/run, " + report.rows / RUNS + " rows/run, "
+                + report.ioErrors + " I/O errors, " + report.parseErrors + " parse errors, "
+                + report.skipped + " skipped");
+        return report;
+    }
+
+    /**
+     * Starts a run from a clean slate: fresh locations, nothing synced, no backoff.
+     */
+    private void prepareRun() {
+        deleteAllRecords();
+        mContext.getSharedPreferences("circuit_breakers", Context.MODE_PRIVATE)
+                .edit().clear().commit();
+        mContext.getSharedPreferences("sync_progress", Context.MODE_PRIVATE)
+                .edit().clear().commit();
+
+        for (int i = 0; i < LOCATIONS_PER_RUN; i++) {
+            String locationSetting = "bench-" + mNextLocation++;
+            if (i == 0) {
+                setPreferredLocation(locationSetting);
+            }
+            ContentValues values = new ContentValues();
+            values.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+            values.put(LocationEntry.COLUMN_CITY_NAME, locationSetting);
+            values.put(LocationEntry.COLUMN_COORD_LAT, 0.0);
+            values.put(LocationEntry.COLUMN_COORD_LONG, 0.0);
+            mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, values);
+        }
+    }
+
+    private void setPreferredLocation(String locationSetting) {
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putString(mContext.getString(R.string.pref_location_key), locationSetting)
+                .commit();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(HourlyEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(SyncStateEntry.CONTENT_URI, null, null);
+    }
+}
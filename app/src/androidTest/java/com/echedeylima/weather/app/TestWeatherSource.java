@@ -0,0 +1,131 @@
+package com.echedeylima.weather.app;
+
+import android.test.AndroidTestCase;
+
+import com.echedeylima.weather.app.source.ForecastRequest;
+import com.echedeylima.weather.app.source.ForecastResponse;
+import com.echedeylima.weather.app.source.RecordingWeatherSource;
+import com.echedeylima.weather.app.source.ReplayWeatherSource;
+import com.echedeylima.weather.app.source.ResponseBody;
+import com.echedeylima.weather.app.source.WeatherSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class TestWeatherSource extends AndroidTestCase {
+
+    static final String TEST_FORECAST = "{\"city\":{\"id\":5861897,\"name\":\"North Pole\"," +
+            "\"coord\":{\"lon\":-147.355,\"lat\":64.772}},\"cnt\":1,\"list\":[{\"dt\":1417777200," +
+            "\"temp\":{\"min\":65,\"max\":75},\"pressure\":1.3,\"humidity\":1.2," +
+            "\"weather\":[{\"id\":321,\"main\":\"Asteroids\"}],\"speed\":5.5,\"deg\":1.1}]}";
+
+    private File mRecordings;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRecordings = new File(mContext.getCacheDir(), "test_recordings");
+        deleteRecordings();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecordings();
+        super.tearDown();
+    }
+
+    private void deleteRecordings() {
+        File[] files = mRecordings.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mRecordings.delete();
+    }
+
+    public void testDrainAndClose() throws IOException {
+        byte[] forecast = TEST_FORECAST.getBytes("UTF-8");
+
+        // A body that fits in the drain budget is read to the end, so its socket can be kept...
+        ResponseBody body = ResponseBody.wrap(new ByteArrayInputStream(forecast), false);
+        body.getStream().read(new byte[16]);
+        assertTrue(body.drainAndClose(forecast.length));
+        assertEquals(forecast.length, body.getWireBytes());
+
+        // ...but one with too much left is given up on.
+        body = ResponseBody.wrap(new ByteArrayInputStream(forecast), false);
+        assertFalse(body.drainAndClose(forecast.length / 4));
+    }
+
+    public void testRecordAndReplay() throws IOException {
+        WeatherSource fakeSource = new WeatherSource() {
+            @Override
+            public ForecastResponse fetchDailyForecast(ForecastRequest request)
+                    throws IOException {
+                return new ForecastResponse(ResponseBody.wrap(
+                        new ByteArrayInputStream(TEST_FORECAST.getBytes("UTF-8")), false),
+                        "\"v1\"", null);
+            }
+
+            @Override
+            public ForecastResponse fetchHourlyForecast(ForecastRequest request)
+                    throws IOException {
+                throw new IOException("No hourly forecast");
+            }
+
+            @Override
+            public void preconnect() {
+            }
+
+            @Override
+            public String getName() {
+                return "fake";
+            }
+        };
+
+        ForecastRequest request = new ForecastRequest(TestProvider.TEST_LOCATION, 14, "metric");
+
+        // Nothing has been recorded yet.
+        WeatherSource replaySource = new ReplayWeatherSource(mRecordings);
+        try {
+            replaySource.fetchDailyForecast(request);
+            fail("Replayed a forecast that was never recorded");
+        } catch (FileNotFoundException expected) {
+        }
+
+        // Reading through the recording source returns the original body...
+        ForecastResponse response =
+                new RecordingWeatherSource(fakeSource, mRecordings).fetchDailyForecast(request);
+        assertEquals(TEST_FORECAST, readAndClose(response));
+
+        // ...and leaves a copy the replay source serves, with its validators.
+        response = replaySource.fetchDailyForecast(request);
+        assertEquals("\"v1\"", response.getEtag());
+        assertEquals(TEST_FORECAST, readAndClose(response));
+
+        request.etag = "\"v1\"";
+        response = replaySource.fetchDailyForecast(request);
+        assertTrue(response.isNotModified());
+        response.close();
+    }
+
+    static String readAndClose(ForecastResponse response) throws IOException {
+        try {
+            InputStream in = response.getStream();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            response.close();
+        }
+    }
+}
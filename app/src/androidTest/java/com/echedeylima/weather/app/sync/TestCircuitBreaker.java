@@ -0,0 +1,122 @@
+package com.echedeylima.weather.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+public class TestCircuitBreaker extends AndroidTestCase {
+
+    private static final long NOW = 1417777200000L;
+
+    private String mSourceName;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // A source of its own per test, as the breakers outlive them.
+        mSourceName = "test." + getName();
+        getPrefs().edit()
+                .remove(mSourceName + ".failures")
+                .remove(mSourceName + ".trips")
+                .remove(mSourceName + ".open_until")
+                .commit();
+    }
+
+    private SharedPreferences getPrefs() {
+        return mContext.getSharedPreferences("circuit_breakers", Context.MODE_PRIVATE);
+    }
+
+    public void testOneBreakerPerSource() {
+        CircuitBreaker breaker = CircuitBreaker.get(mContext, mSourceName);
+        assertSame(breaker, CircuitBreaker.get(mContext, mSourceName));
+        assertNotSame(breaker, CircuitBreaker.get(mContext, mSourceName + ".other"));
+
+        // What one sync reports, another one sees.
+        tripOpen(breaker, NOW);
+        assertTrue(CircuitBreaker.get(mContext, mSourceName).isOpen(NOW));
+    }
+
+    public void testOpenProbeCloseAndReopen() {
+        CircuitBreaker breaker = CircuitBreaker.get(mContext, mSourceName);
+
+        // Failures below the threshold leave it closed...
+        for (int i = 1; i < CircuitBreaker.FAILURE_THRESHOLD; i++) {
+            assertTrue(breaker.allowRequest(NOW));
+            breaker.onFailure(NOW);
+            breaker.onRequestFinished();
+            assertFalse(breaker.isOpen(NOW));
+        }
+        // ...and the next one opens it, for the first open period.
+        assertTrue(breaker.allowRequest(NOW));
+        breaker.onFailure(NOW);
+        breaker.onRequestFinished();
+        assertTrue(breaker.isOpen(NOW));
+        long openFor = breaker.getOpenUntil() - NOW;
+        assertTrue(openFor >= CircuitBreaker.BASE_OPEN_MILLIS / 2);
+        assertTrue(openFor <= CircuitBreaker.BASE_OPEN_MILLIS);
+        assertFalse(breaker.allowRequest(NOW));
+        assertEquals(breaker.getOpenUntil(), getPrefs().getLong(mSourceName + ".open_until", 0));
+
+        // Once it's over a single probe is let through, and its failure reopens it for longer.
+        long probeAt = breaker.getOpenUntil();
+        assertTrue(breaker.allowRequest(probeAt));
+        assertFalse(breaker.allowRequest(probeAt));
+        breaker.onFailure(probeAt);
+        breaker.onRequestFinished();
+        assertTrue(breaker.isOpen(probeAt));
+        openFor = breaker.getOpenUntil() - probeAt;
+        assertTrue(openFor >= CircuitBreaker.BASE_OPEN_MILLIS);
+        assertTrue(openFor <= 2 * CircuitBreaker.BASE_OPEN_MILLIS);
+
+        // A probe that ends without a result lets the next caller probe instead.
+        probeAt = breaker.getOpenUntil();
+        assertTrue(breaker.allowRequest(probeAt));
+        breaker.onRequestFinished();
+        assertTrue(breaker.allowRequest(probeAt));
+
+        // A probe that succeeds closes it.
+        breaker.onSuccess();
+        breaker.onRequestFinished();
+        assertFalse(breaker.isOpen(probeAt));
+        assertEquals(0, breaker.getOpenUntil());
+        assertTrue(breaker.allowRequest(probeAt));
+        assertEquals(0, getPrefs().getLong(mSourceName + ".open_until", -1));
+    }
+
+    public void testOpenPeriodStaysUnderCap() {
+        CircuitBreaker breaker = CircuitBreaker.get(mContext, mSourceName);
+        tripOpen(breaker, NOW);
+        // Far more failed probes than it takes to reach the longest period.
+        for (int i = 0; i < 40; i++) {
+            long now = breaker.getOpenUntil();
+            assertTrue(breaker.allowRequest(now));
+            breaker.onFailure(now);
+            breaker.onRequestFinished();
+            long openFor = breaker.getOpenUntil() - now;
+            assertTrue(openFor > 0);
+            assertTrue(openFor <= CircuitBreaker.MAX_OPEN_MILLIS);
+        }
+    }
+
+    public void testBackoffDelay() {
+        long base = 1000;
+        long max = 60 * 1000;
+        for (int failures = 1; failures <= 64; failures++) {
+            long expected = failures <= 30 ? Math.min(max, base << (failures - 1)) : max;
+            long delay = Backoff.getDelay(base, max, failures);
+            assertTrue(delay >= expected / 2);
+            assertTrue(delay <= expected);
+        }
+    }
+
+    /**
+     * Fails requests until the breaker opens.
+     */
+    private static void tripOpen(CircuitBreaker breaker, long now) {
+        for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD; i++) {
+            breaker.allowRequest(now);
+            breaker.onFailure(now);
+            breaker.onRequestFinished();
+        }
+    }
+}
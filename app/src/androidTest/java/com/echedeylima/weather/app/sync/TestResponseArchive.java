@@ -0,0 +1,226 @@
+package com.echedeylima.weather.app.sync;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+import com.echedeylima.weather.app.data.WeatherContract.HourlyEntry;
+import com.echedeylima.weather.app.data.WeatherContract.LocationEntry;
+import com.echedeylima.weather.app.data.WeatherContract.SyncStateEntry;
+import com.echedeylima.weather.app.data.WeatherContract.WeatherEntry;
+import com.echedeylima.weather.app.source.ForecastRequest;
+import com.echedeylima.weather.app.source.ForecastResponse;
+import com.echedeylima.weather.app.source.ResponseBody;
+import com.echedeylima.weather.app.source.WeatherSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+public class TestResponseArchive extends AndroidTestCase {
+
+    private static final String TEST_LOCATION = "99705";
+
+    private static final String TEST_FORECAST = "{\"city\":{\"id\":5861897," +
+            "\"name\":\"North Pole\",\"coord\":{\"lon\":-147.355,\"lat\":64.772}}," +
+            "\"cnt\":1,\"list\":[{\"dt\":1417777200,\"temp\":{\"min\":65,\"max\":75}," +
+            "\"pressure\":1.3,\"humidity\":1.2,\"weather\":[{\"id\":321," +
+            "\"main\":\"Asteroids\"}],\"speed\":5.5,\"deg\":1.1}]}";
+
+    // Random, so they don't shrink when gzipped: four of them are over the test maximum,
+    // three aren't.
+    private static final int BODY_SIZE = 1000;
+    private static final long MAX_SIZE_BYTES = 3500;
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(mContext.getCacheDir(), "test_archive");
+        deleteDirectory();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectory();
+        super.tearDown();
+    }
+
+    private void deleteDirectory() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    public void testSameBodyIsStoredOnce() throws IOException {
+        ResponseArchive archive = new ResponseArchive(mDirectory, MAX_SIZE_BYTES);
+        byte[] body = TEST_FORECAST.getBytes("UTF-8");
+
+        String hash = archive(archive, TEST_LOCATION, body);
+        assertEquals(SyncState.hash(body), hash);
+        assertEquals(hash, archive(archive, "94043", body));
+        assertEquals(hash, archive(archive, TEST_LOCATION, body));
+
+        assertEquals(1, countBodies());
+        assertEquals(hash, archive.getLatest(TEST_LOCATION).hash);
+        assertEquals(hash, archive.getLatest("94043").hash);
+        assertTrue(Arrays.equals(body, read(archive.getLatest(TEST_LOCATION))));
+
+        // The index survives the archive being opened again.
+        archive = new ResponseArchive(mDirectory, MAX_SIZE_BYTES);
+        assertEquals(2, archive.getLocations().size());
+        assertEquals(hash, archive.getLatest("94043").hash);
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        ResponseArchive archive = new ResponseArchive(mDirectory, MAX_SIZE_BYTES);
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+
+        String replaced = archive(archive, "a", randomBody(random));
+        archive(archive, "b", randomBody(random));
+        String a = archive(archive, "a", randomBody(random));
+        assertEquals(3, countBodies());
+
+        // A body no location points to any more goes first, however recently it was used.
+        getBody(replaced).setLastModified(now);
+        getBody(archive.getLatest("b").hash).setLastModified(now - 3000 * 1000);
+        getBody(a).setLastModified(now - 2000 * 1000);
+        archive(archive, "c", randomBody(random));
+        assertEquals(3, countBodies());
+        assertFalse(getBody(replaced).exists());
+        assertNotNull(archive.getLatest("a"));
+        assertNotNull(archive.getLatest("b"));
+        assertNotNull(archive.getLatest("c"));
+
+        // Then the least recently used one: touching "b" makes "a" the oldest.
+        getBody(archive.getLatest("c").hash).setLastModified(now - 1000 * 1000);
+        archive.touch("b");
+        archive(archive, "d", randomBody(random));
+        assertEquals(3, countBodies());
+        assertNull(archive.getLatest("a"));
+        assertNotNull(archive.getLatest("b"));
+        assertNotNull(archive.getLatest("c"));
+        assertNotNull(archive.getLatest("d"));
+    }
+
+    public void testRestoreAfterTablesAreCleared() throws Exception {
+        clearTables();
+        ForecastPipeline pipeline = new ForecastPipeline(mContext, new WeatherSource() {
+            @Override
+            public ForecastResponse fetchDailyForecast(ForecastRequest request)
+                    throws IOException {
+                return new ForecastResponse(ResponseBody.wrap(new ByteArrayInputStream(
+                        TEST_FORECAST.getBytes("UTF-8")), false), null, null);
+            }
+
+            @Override
+            public ForecastResponse fetchHourlyForecast(ForecastRequest request)
+                    throws IOException {
+                throw new IOException("No hourly forecast");
+            }
+
+            @Override
+            public void preconnect() {
+            }
+
+            @Override
+            public String getName() {
+                return "test";
+            }
+        }, new ForecastPipeline.JsonDecoder(),
+                new ForecastPipeline.ContentValuesMapper(),
+                new ForecastPipeline.ProviderWriter(mContext));
+
+        // A sync archives the response on its way to the database...
+        pipeline.sync(TEST_LOCATION);
+        assertEquals(SyncState.hash(TEST_FORECAST.getBytes("UTF-8")),
+                ResponseArchive.getInstance(mContext).getLatest(TEST_LOCATION).hash);
+
+        // ...so once the tables are gone, the rows are rebuilt from it without the network.
+        clearTables();
+        assertEquals(0, countWeatherRows());
+        assertTrue(new WeatherSync(mContext, 0).restoreFromArchive(pipeline, TEST_LOCATION) > 0);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TEST_LOCATION),
+                new String[]{LocationEntry.COLUMN_CITY_NAME, WeatherEntry.COLUMN_WEATHER_ID},
+                null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("North Pole", cursor.getString(0));
+        assertEquals(321, cursor.getInt(1));
+        cursor.close();
+    }
+
+    private void clearTables() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(HourlyEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(SyncStateEntry.CONTENT_URI, null, null);
+    }
+
+    private int countWeatherRows() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI, null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    /**
+     * Reads a body through the archive, as a sync does, and commits it.
+     *
+     * @return its hash.
+     */
+    private static String archive(ResponseArchive archive, String locationSetting,
+                                  byte[] body) throws IOException {
+        ResponseArchive.Recording recording =
+                archive.record(locationSetting, new ByteArrayInputStream(body));
+        recording.read(new byte[body.length / 2]);
+        return recording.commit();
+    }
+
+    private static byte[] randomBody(Random random) {
+        byte[] body = new byte[BODY_SIZE];
+        random.nextBytes(body);
+        return body;
+    }
+
+    private static byte[] read(ResponseArchive.Entry entry) throws IOException {
+        InputStream in = entry.open();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private File getBody(String hash) {
+        return new File(mDirectory, hash + ".json.gz");
+    }
+
+    private int countBodies() {
+        int count = 0;
+        for (File file : mDirectory.listFiles()) {
+            if (file.getName().endsWith(".json.gz")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,140 @@
+package com.echedeylima.weather.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestSingleFlight extends AndroidTestCase {
+
+    private static final String TEST_LOCATION = "99705";
+    private static final long TIMEOUT_SECONDS = 10;
+
+    /**
+     * A source that blocks every fetch until it's released.  The first fetch ends with
+     * {@link #mFirstError} if there is one.
+     */
+    private static class SlowSyncer implements MultiLocationSync.LocationSyncer {
+        final AtomicInteger mFetches = new AtomicInteger();
+        final CountDownLatch mStarted = new CountDownLatch(1);
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        volatile IOException mFirstError;
+
+        @Override
+        public int syncLocation(String locationSetting) throws IOException {
+            int fetch = mFetches.incrementAndGet();
+            mStarted.countDown();
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+            if (fetch == 1 && mFirstError != null) {
+                throw mFirstError;
+            }
+            return 7;
+        }
+    }
+
+    /**
+     * Syncs the test location on a thread of its own.
+     */
+    private static class Caller extends Thread {
+        final SingleFlight mFlight;
+        final SlowSyncer mSyncer;
+        volatile int mRowsWritten = -1;
+        volatile Exception mError;
+
+        Caller(SingleFlight flight, SlowSyncer syncer) {
+            mFlight = flight;
+            mSyncer = syncer;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mRowsWritten = mFlight.syncLocation(TEST_LOCATION, mSyncer);
+            } catch (Exception e) {
+                mError = e;
+            }
+        }
+
+        void finish() throws InterruptedException {
+            join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+            assertFalse("Sync didn't finish", isAlive());
+        }
+    }
+
+    /**
+     * Starts a leader and, once its fetch is blocked, a follower waiting on it.
+     */
+    private static Caller[] startLeaderAndFollower(SingleFlight flight, SlowSyncer syncer)
+            throws InterruptedException {
+        Caller leader = new Caller(flight, syncer);
+        leader.start();
+        assertTrue(syncer.mStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        Caller follower = new Caller(flight, syncer);
+        follower.start();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (follower.getState() != Thread.State.WAITING) {
+            assertTrue("Follower never waited", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        return new Caller[]{leader, follower};
+    }
+
+    public void testConcurrentSyncsShareOneFetch() throws Exception {
+        SingleFlight flight = new SingleFlight();
+        SlowSyncer syncer = new SlowSyncer();
+        Caller[] callers = startLeaderAndFollower(flight, syncer);
+
+        syncer.mRelease.countDown();
+        for (Caller caller : callers) {
+            caller.finish();
+            assertNull(caller.mError);
+            assertEquals(7, caller.mRowsWritten);
+        }
+        assertEquals(1, syncer.mFetches.get());
+
+        // Just after it succeeded, the location is fresh and isn't fetched again.
+        assertEquals(0, flight.syncLocation(TEST_LOCATION, syncer));
+        assertEquals(1, syncer.mFetches.get());
+    }
+
+    public void testFailureIsShared() throws Exception {
+        SingleFlight flight = new SingleFlight();
+        SlowSyncer syncer = new SlowSyncer();
+        syncer.mFirstError = new IOException("test");
+        Caller[] callers = startLeaderAndFollower(flight, syncer);
+
+        syncer.mRelease.countDown();
+        for (Caller caller : callers) {
+            caller.finish();
+            assertSame(syncer.mFirstError, caller.mError);
+        }
+        assertEquals(1, syncer.mFetches.get());
+
+        // A failed sync doesn't make the location fresh.
+        assertEquals(7, flight.syncLocation(TEST_LOCATION, syncer));
+        assertEquals(2, syncer.mFetches.get());
+    }
+
+    public void testLeaderCanceled() throws Exception {
+        SingleFlight flight = new SingleFlight();
+        SlowSyncer syncer = new SlowSyncer();
+        syncer.mFirstError = new SyncCancellation.CanceledException("test");
+        Caller[] callers = startLeaderAndFollower(flight, syncer);
+
+        // The leader's cancellation is its own: the follower fetches the location itself.
+        syncer.mRelease.countDown();
+        callers[0].finish();
+        assertSame(syncer.mFirstError, callers[0].mError);
+        callers[1].finish();
+        assertNull(callers[1].mError);
+        assertEquals(7, callers[1].mRowsWritten);
+        assertEquals(2, syncer.mFetches.get());
+    }
+}
@@ -18,10 +18,10 @@ public class DetailActivity extends ActionBarActivity {
         if (savedInstanceState == null) {
             // Create the detail fragment and add it to the activity
             // using a fragment transaction.
-            String date = getIntent().getStringExtra(DATE_KEY);
+            long date = getIntent().getLongExtra(DATE_KEY, 0);
 
             Bundle arguments = new Bundle();
-            arguments.putString(DetailActivity.DATE_KEY, date);
+            arguments.putLong(DetailActivity.DATE_KEY, date);
 
             DetailFragment fragment = new DetailFragment();
             fragment.setArguments(arguments);
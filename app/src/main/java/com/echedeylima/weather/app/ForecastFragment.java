@@ -1,9 +1,5 @@
 package com.echedeylima.weather.app;
 
-import android.app.AlarmManager;
-import android.app.PendingIntent;
-import android.content.Context;
-import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
@@ -23,11 +19,8 @@ import android.widget.ListView;
 import com.echedeylima.weather.app.data.WeatherContract;
 import com.echedeylima.weather.app.data.WeatherContract.LocationEntry;
 import com.echedeylima.weather.app.data.WeatherContract.WeatherEntry;
-import com.echedeylima.weather.app.service.WeatherService;
 import com.echedeylima.weather.app.sync.WeatherSyncAdapter;
 
-import java.util.Date;
-
 /**
  * Encapsulates fetching the forecast and displaying it as a {@link android.widget.ListView} layout.
  */
@@ -54,7 +47,7 @@ public class ForecastFragment extends Fragment implements LoaderCallbacks<Cursor
             // using the location set by the user, which is only in the Location table.
             // So the convenience is worth it.
             WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
-            WeatherEntry.COLUMN_DATETEXT,
+            WeatherEntry.COLUMN_DATE,
             WeatherEntry.COLUMN_SHORT_DESC,
             WeatherEntry.COLUMN_MAX_TEMP,
             WeatherEntry.COLUMN_MIN_TEMP,
@@ -82,7 +75,7 @@ public class ForecastFragment extends Fragment implements LoaderCallbacks<Cursor
         /**
          * DetailFragmentCallback for when an item has been selected.
          */
-        public void onItemSelected(String date);
+        public void onItemSelected(long date);
     }
 
     public ForecastFragment() {
@@ -133,7 +126,7 @@ public class ForecastFragment extends Fragment implements LoaderCallbacks<Cursor
                 Cursor cursor = mForecastAdapter.getCursor();
                 if (cursor != null && cursor.moveToPosition(position)) {
                     ((Callback) getActivity())
-                            .onItemSelected(cursor.getString(COL_WEATHER_DATE));
+                            .onItemSelected(cursor.getLong(COL_WEATHER_DATE));
                 }
                 mPosition = position;
             }
@@ -162,22 +155,15 @@ public class ForecastFragment extends Fragment implements LoaderCallbacks<Cursor
     }
 
     private void updateWeather() {
-
-//        Intent alarmIntent = new Intent(getActivity(), WeatherService.AlarmReceiver.class);
-//        alarmIntent.putExtra(WeatherService.LOCATION_QUERY_EXTRA, Utility.getPreferredLocation(getActivity()));
-//
-//        //Wrap in a pending intent which only fires once.
-//        PendingIntent pendingIntent = PendingIntent.getBroadcast(getActivity(), 0, alarmIntent, PendingIntent.FLAG_ONE_SHOT);
-//        AlarmManager alarmManager = (AlarmManager) getActivity().getSystemService(Context.ALARM_SERVICE);
-//
-//        //Set the AlarmManager to wake up the system.
-//        alarmManager.set(AlarmManager.RTC_WAKEUP, System.currentTimeMillis() + 500, pendingIntent);
         WeatherSyncAdapter.syncImmediately(getActivity());
     }
 
     @Override
     public void onResume() {
         super.onResume();
+        // The scheduler keeps the locations people look at fresher than the others.
+        WeatherSyncAdapter.markLocationViewed(getActivity(),
+                Utility.getPreferredLocation(getActivity()));
         if (mLocation != null && !mLocation.equals(Utility.getPreferredLocation(getActivity()))) {
             getLoaderManager().restartLoader(FORECAST_LOADER, null, this);
         }
@@ -199,13 +185,13 @@ public class ForecastFragment extends Fragment implements LoaderCallbacks<Cursor
         // This is called when a new Loader needs to be created.  This
         // fragment only uses one loader, so we don't care about checking the id.
 
-        // To only show current and future dates, get the String representation for today,
+        // To only show current and future dates, get the day of today,
         // and filter the query to return weather only for dates after or including today.
         // Only return data after today.
-        String startDate = WeatherContract.getDbDateString(new Date());
+        long startDate = WeatherContract.getDayFromMillis(System.currentTimeMillis());
 
         // Sort order:  Ascending, by date.
-        String sortOrder = WeatherEntry.COLUMN_DATETEXT + " ASC";
+        String sortOrder = WeatherEntry.COLUMN_DATE + " ASC";
 
         mLocation = Utility.getPreferredLocation(getActivity());
         Uri weatherForLocationUri = WeatherEntry.buildWeatherLocationWithStartDate(
@@ -97,13 +97,13 @@ public class MainActivity extends ActionBarActivity implements ForecastFragment.
     }
 
     @Override
-    public void onItemSelected(String date) {
+    public void onItemSelected(long date) {
         if (mTwoPane) {
             // In two-pane mode, show the detail view in this activity by
             // adding or replacing the detail fragment using a
             // fragment transaction.
             Bundle args = new Bundle();
-            args.putString(DetailActivity.DATE_KEY, date);
+            args.putLong(DetailActivity.DATE_KEY, date);
 
             DetailFragment fragment = new DetailFragment();
             fragment.setArguments(args);
@@ -7,9 +7,7 @@ import android.preference.PreferenceManager;
 import com.echedeylima.weather.app.data.WeatherContract;
 
 import java.text.DateFormat;
-import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.Date;
 
 public class Utility {
@@ -26,6 +24,15 @@ public class Utility {
                 .equals(context.getString(R.string.pref_units_metric));
     }
 
+    /**
+     * @return the days of past forecasts to keep for locations that don't set their own.
+     */
+    public static int getRetentionDays(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return Integer.parseInt(prefs.getString(context.getString(R.string.pref_retention_key),
+                context.getString(R.string.pref_retention_default)));
+    }
+
     static String formatTemperature(Context context, double temperature, boolean isMetric) {
         double temp;
         if (!isMetric) {
@@ -36,58 +43,43 @@ public class Utility {
         return context.getString(R.string.format_temperature, temp);
     }
 
-    static String formatDate(String dateString) {
-        Date date = WeatherContract.getDateFromDb(dateString);
+    static String formatDate(long day) {
+        Date date = new Date(WeatherContract.getMillisFromDay(day));
         return DateFormat.getDateInstance().format(date);
     }
 
-    // Format used for storing dates in the database.  ALso used for converting those strings
-    // back into date objects for comparison/processing.
-    public static final String DATE_FORMAT = "yyyyMMdd";
-
     /**
      * Helper method to convert the database representation of the date into something to display
-     * to users.  As classy and polished a user experience as "20140102" is, we can do better.
+     * to users.  As classy and polished a user experience as "16072" is, we can do better.
      *
      * @param context Context to use for resource localization
-     * @param dateStr The db formatted date string, expected to be of the form specified
-     *                in Utility.DATE_FORMAT
+     * @param day     The day as stored in the database, in days since the epoch
      * @return a user-friendly representation of the date.
      */
-    public static String getFriendlyDayString(Context context, String dateStr) {
+    public static String getFriendlyDayString(Context context, long day) {
         // The day string for forecast uses the following logic:
         // For today: "Today, June 8"
         // For tomorrow:  "Tomorrow"
         // For the next 5 days: "Wednesday" (just the day name)
         // For all days after that: "Mon Jun 8"
 
-        Date todayDate = new Date();
-        String todayStr = WeatherContract.getDbDateString(todayDate);
-        Date inputDate = WeatherContract.getDateFromDb(dateStr);
+        long today = WeatherContract.getDayFromMillis(System.currentTimeMillis());
 
         // If the date we're building the String for is today's date, the format
         // is "Today, June 24"
-        if (todayStr.equals(dateStr)) {
-            String today = context.getString(R.string.today);
+        if (day == today) {
             int formatId = R.string.format_full_friendly_date;
             return String.format(context.getString(
                     formatId,
-                    today,
-                    getFormattedMonthDay(context, dateStr)));
+                    context.getString(R.string.today),
+                    getFormattedMonthDay(context, day)));
+        } else if (day < today + 7) {
+            // If the input date is less than a week in the future, just return the day name.
+            return getDayName(context, day);
         } else {
-            Calendar cal = Calendar.getInstance();
-            cal.setTime(todayDate);
-            cal.add(Calendar.DATE, 7);
-            String weekFutureString = WeatherContract.getDbDateString(cal.getTime());
-
-            if (dateStr.compareTo(weekFutureString) < 0) {
-                // If the input date is less than a week in the future, just return the day name.
-                return getDayName(context, dateStr);
-            } else {
-                // Otherwise, use the form "Mon Jun 3"
-                SimpleDateFormat shortenedDateFormat = new SimpleDateFormat("EEE MMM dd");
-                return shortenedDateFormat.format(inputDate);
-            }
+            // Otherwise, use the form "Mon Jun 3"
+            SimpleDateFormat shortenedDateFormat = new SimpleDateFormat("EEE MMM dd");
+            return shortenedDateFormat.format(new Date(WeatherContract.getMillisFromDay(day)));
         }
     }
 
@@ -96,38 +88,22 @@ public class Utility {
      * E.g "today", "tomorrow", "wednesday".
      *
      * @param context Context to use for resource localization
-     * @param dateStr The db formatted date string, expected to be of the form specified
-     *                in Utility.DATE_FORMAT
+     * @param day     The day as stored in the database, in days since the epoch
      * @return
      */
-    public static String getDayName(Context context, String dateStr) {
-        SimpleDateFormat dbDateFormat = new SimpleDateFormat(Utility.DATE_FORMAT);
-        try {
-            Date inputDate = dbDateFormat.parse(dateStr);
-            Date todayDate = new Date();
-            // If the date is today, return the localized version of "Today" instead of the actual
-            // day name.
-            if (WeatherContract.getDbDateString(todayDate).equals(dateStr)) {
-                return context.getString(R.string.today);
-            } else {
-                // If the date is set for tomorrow, the format is "Tomorrow".
-                Calendar cal = Calendar.getInstance();
-                cal.setTime(todayDate);
-                cal.add(Calendar.DATE, 1);
-                Date tomorrowDate = cal.getTime();
-                if (WeatherContract.getDbDateString(tomorrowDate).equals(
-                        dateStr)) {
-                    return context.getString(R.string.tomorrow);
-                } else {
-                    // Otherwise, the format is just the day of the week (e.g "Wednesday".
-                    SimpleDateFormat dayFormat = new SimpleDateFormat("EEEE");
-                    return dayFormat.format(inputDate);
-                }
-            }
-        } catch (ParseException e) {
-            e.printStackTrace();
-            // It couldn't process the date correctly.
-            return "";
+    public static String getDayName(Context context, long day) {
+        long today = WeatherContract.getDayFromMillis(System.currentTimeMillis());
+        // If the date is today, return the localized version of "Today" instead of the actual
+        // day name.
+        if (day == today) {
+            return context.getString(R.string.today);
+        } else if (day == today + 1) {
+            // If the date is set for tomorrow, the format is "Tomorrow".
+            return context.getString(R.string.tomorrow);
+        } else {
+            // Otherwise, the format is just the day of the week (e.g "Wednesday".
+            SimpleDateFormat dayFormat = new SimpleDateFormat("EEEE");
+            return dayFormat.format(new Date(WeatherContract.getMillisFromDay(day)));
         }
     }
 
@@ -135,21 +111,12 @@ public class Utility {
      * Converts db date format to the format "Month day", e.g "June 24".
      *
      * @param context Context to use for resource localization
-     * @param dateStr The db formatted date string, expected to be of the form specified
-     *                in Utility.DATE_FORMAT
+     * @param day     The day as stored in the database, in days since the epoch
      * @return The day in the form of a string formatted "December 6"
      */
-    public static String getFormattedMonthDay(Context context, String dateStr) {
-        SimpleDateFormat dbDateFormat = new SimpleDateFormat(Utility.DATE_FORMAT);
-        try {
-            Date inputDate = dbDateFormat.parse(dateStr);
-            SimpleDateFormat monthDayFormat = new SimpleDateFormat("MMMM dd");
-            String monthDayString = monthDayFormat.format(inputDate);
-            return monthDayString;
-        } catch (ParseException e) {
-            e.printStackTrace();
-            return null;
-        }
+    public static String getFormattedMonthDay(Context context, long day) {
+        SimpleDateFormat monthDayFormat = new SimpleDateFormat("MMMM dd");
+        return monthDayFormat.format(new Date(WeatherContract.getMillisFromDay(day)));
     }
 
     public static String getFormattedWind(Context context, float windSpeed, float degrees) {
@@ -0,0 +1,40 @@
+package com.echedeylima.weather.app.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * An update of the rows of a table that a change of schema needs, too long to run in the
+ * upgrade.  A {@link BackfillRunner} runs it once the database is open, a range of rows at
+ * a time, each range in a transaction of its own with the progress, so readers and the sync
+ * get the database between ranges, and a process killed halfway resumes where it stopped.
+ * <p/>
+ * The app has to work with rows that aren't backfilled yet.
+ */
+public abstract class Backfill {
+
+    private final String mName;
+    private final String mTable;
+
+    /**
+     * @param name  the name the backfill's progress is kept under.  Never reuse one.
+     * @param table the table whose rows it updates, by ranges of _id.
+     */
+    protected Backfill(String name, String table) {
+        mName = name;
+        mTable = table;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getTable() {
+        return mTable;
+    }
+
+    /**
+     * Updates the rows whose _id is in (afterId, lastId].  Called inside a transaction.  A
+     * range is never updated twice once its transaction committed.
+     */
+    protected abstract void update(SQLiteDatabase db, long afterId, long lastId);
+}
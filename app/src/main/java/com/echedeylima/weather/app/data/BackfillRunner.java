@@ -0,0 +1,171 @@
+package com.echedeylima.weather.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the {@link Backfill}s that migrations registered, in ranges of {@link #BATCH_SIZE}
+ * rows.  The last _id a backfill updated is kept in a table, and moved in the transaction
+ * of each range, so whatever kills the process, a range is either done and recorded or not
+ * done at all.
+ */
+public class BackfillRunner {
+
+    private static final String LOG_TAG = BackfillRunner.class.getSimpleName();
+
+    static final String TABLE_NAME = "backfill";
+    static final String COLUMN_NAME = "name";
+    static final String COLUMN_LAST_ID = "last_id";
+    static final String COLUMN_DONE = "done";
+
+    // Rows updated per transaction.
+    public static final int BATCH_SIZE = 500;
+
+    private static ExecutorService sExecutor;
+
+    private final SQLiteOpenHelper mOpenHelper;
+    private final Backfill[] mBackfills;
+
+    /**
+     * @param backfills every backfill a migration may register, in the order to run them.
+     */
+    public BackfillRunner(SQLiteOpenHelper openHelper, Backfill... backfills) {
+        mOpenHelper = openHelper;
+        mBackfills = backfills;
+    }
+
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_NAME + " (" +
+                COLUMN_NAME + " TEXT PRIMARY KEY, " +
+                COLUMN_LAST_ID + " INTEGER NOT NULL DEFAULT 0, " +
+                COLUMN_DONE + " INTEGER NOT NULL DEFAULT 0);");
+    }
+
+    /**
+     * Registers a backfill to run from the first row of its table.  Registering one that
+     * is registered already does nothing.
+     */
+    public static void schedule(SQLiteDatabase db, String name) {
+        db.execSQL("INSERT OR IGNORE INTO " + TABLE_NAME + " (" + COLUMN_NAME + ") VALUES (?)",
+                new Object[]{name});
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "BackfillRunner");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Runs the pending backfills on a background thread.
+     */
+    void runInBackground() {
+        if (mBackfills.length == 0) {
+            return;
+        }
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runPending();
+                } catch (SQLiteException e) {
+                    // What's done is kept, the rest is tried again the next time.
+                    Log.e(LOG_TAG, "Backfill failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the pending backfills to the end, on the calling thread.
+     *
+     * @return the number of ranges updated.
+     */
+    public int runPending() {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int ranges = 0;
+        for (Backfill backfill : mBackfills) {
+            long lastId = getProgress(db, backfill.getName());
+            while (lastId != -1) {
+                lastId = runRange(db, backfill, lastId);
+                if (lastId != -1) {
+                    ranges++;
+                }
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * @return the last _id the backfill updated, or -1 if it isn't registered or is done.
+     */
+    private static long getProgress(SQLiteDatabase db, String name) {
+        Cursor cursor = db.query(TABLE_NAME, new String[]{COLUMN_LAST_ID},
+                COLUMN_NAME + " = ? AND " + COLUMN_DONE + " = 0", new String[]{name},
+                null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Updates the next range of rows after afterId, and records it, in one transaction.
+     *
+     * @return the last _id of the range, or -1 if there were no rows left.
+     */
+    private static long runRange(SQLiteDatabase db, Backfill backfill, long afterId) {
+        long start = System.nanoTime();
+        db.beginTransactionNonExclusive();
+        try {
+            long lastId = getRangeEnd(db, backfill.getTable(), afterId);
+            String[] whereArgs = new String[]{backfill.getName()};
+            if (lastId == -1) {
+                db.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_DONE + " = 1" +
+                        " WHERE " + COLUMN_NAME + " = ?", whereArgs);
+                Log.d(LOG_TAG, "Backfill " + backfill.getName() + " done");
+            } else {
+                backfill.update(db, afterId, lastId);
+                db.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_LAST_ID + " = " + lastId +
+                        " WHERE " + COLUMN_NAME + " = ?", whereArgs);
+                Log.d(LOG_TAG, "Backfill " + backfill.getName() + ": rows up to " + lastId
+                        + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+            }
+            db.setTransactionSuccessful();
+            return lastId;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return the _id of the last of the next BATCH_SIZE rows after afterId, or -1 if
+     * there are none.
+     */
+    private static long getRangeEnd(SQLiteDatabase db, String table, long afterId) {
+        Cursor cursor = db.rawQuery("SELECT max(_id) FROM (SELECT _id FROM " + table +
+                        " WHERE _id > ? ORDER BY _id LIMIT " + BATCH_SIZE + ")",
+                new String[]{String.valueOf(afterId)});
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.echedeylima.weather.app.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.echedeylima.weather.app.data.WeatherContract.MaintenanceEntry;
+import com.echedeylima.weather.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * Keeps the database from only ever growing.  The forecast list shows today on, so past
+ * days are purged once they are older than the history kept; the pages they held are then
+ * given back to the file system, and the statistics of the query planner are brought up to
+ * date with what's left.
+ * <p/>
+ * Meant for when the device is idle.  Databases created before incremental vacuum was
+ * enabled, or before Jelly Bean, are rewritten by a full vacuum the first time.
+ */
+class DatabaseMaintenance {
+
+    private static final String LOG_TAG = DatabaseMaintenance.class.getSimpleName();
+
+    // PRAGMA auto_vacuum value of a database that frees its pages on demand.
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private static final String sPastDaysSelection = WeatherEntry.COLUMN_DATE + " < ? ";
+
+    private DatabaseMaintenance() {
+    }
+
+    /**
+     * Runs the maintenance.  Must not be called inside a transaction.
+     *
+     * @param today         the day maintenance counts the history from
+     * @param retentionDays the days of past forecasts kept
+     * @return the outcome, under the keys of {@link MaintenanceEntry}.
+     */
+    static Bundle run(SQLiteDatabase db, long today, int retentionDays) {
+        long start = System.nanoTime();
+        long sizeBefore = getSize(db);
+
+        int purged;
+        db.beginTransactionNonExclusive();
+        try {
+            purged = db.delete(WeatherEntry.TABLE_NAME, sPastDaysSelection,
+                    new String[]{String.valueOf(today - retentionDays)});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                != AUTO_VACUUM_INCREMENTAL) {
+            // The database was created without auto vacuum, and once it has tables the mode
+            // only changes with a full vacuum.  That happens once; from then on the free
+            // pages are given back without rewriting the rest.
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+        } else {
+            // Frees a page per step, so it has to be stepped to the end.
+            Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum", null);
+            try {
+                cursor.getCount();
+            } finally {
+                cursor.close();
+            }
+        }
+        db.execSQL("ANALYZE");
+
+        long sizeAfter = getSize(db);
+        long durationMillis = (System.nanoTime() - start) / 1000000;
+        Log.d(LOG_TAG, "Maintenance: " + purged + " past days purged, " + sizeBefore
+                + " bytes before, " + sizeAfter + " bytes after, in " + durationMillis + " ms");
+
+        Bundle result = new Bundle();
+        result.putInt(MaintenanceEntry.KEY_ROWS_PURGED, purged);
+        result.putLong(MaintenanceEntry.KEY_SIZE_BEFORE, sizeBefore);
+        result.putLong(MaintenanceEntry.KEY_SIZE_AFTER, sizeAfter);
+        result.putLong(MaintenanceEntry.KEY_DURATION_MILLIS, durationMillis);
+        return result;
+    }
+
+    /**
+     * @return the size of the database in bytes, its free pages included.
+     */
+    private static long getSize(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    }
+}
@@ -0,0 +1,79 @@
+package com.echedeylima.weather.app.data;
+
+import android.os.Bundle;
+
+import com.echedeylima.weather.app.data.WeatherContract.DatabaseStatsEntry;
+
+/**
+ * Counts how long the provider waits on the database: writers for the write lock, readers
+ * for their query, and the checkpoints that move the write-ahead log back into the
+ * database.  Reads that stall behind a writer show up as a read maximum close to the
+ * longest write transaction.
+ * <p/>
+ * The counts cover the life of the provider's process.  Thread safe.
+ */
+class DatabaseStats {
+
+    private long mWriteLockWaits;
+    private long mWriteLockWaitNanos;
+    private long mMaxWriteLockWaitNanos;
+    private long mReads;
+    private long mReadNanos;
+    private long mMaxReadNanos;
+    private long mCheckpoints;
+    private long mBusyCheckpoints;
+    private long mCheckpointedPages;
+    private int mLogPages;
+
+    /**
+     * Records the time a writer waited for its transaction to begin.
+     */
+    synchronized void onWriteLockWait(long nanos) {
+        mWriteLockWaits++;
+        mWriteLockWaitNanos += nanos;
+        mMaxWriteLockWaitNanos = Math.max(mMaxWriteLockWaitNanos, nanos);
+    }
+
+    /**
+     * Records the time a query took to return its first rows, waiting for a connection
+     * included.
+     */
+    synchronized void onRead(long nanos) {
+        mReads++;
+        mReadNanos += nanos;
+        mMaxReadNanos = Math.max(mMaxReadNanos, nanos);
+    }
+
+    /**
+     * Records a checkpoint, with what PRAGMA wal_checkpoint returned.
+     *
+     * @param busy          true if readers or a writer kept it from finishing.
+     * @param logPages      the pages in the log.
+     * @param checkpointed  the pages of the log copied into the database.
+     */
+    synchronized void onCheckpoint(boolean busy, int logPages, int checkpointed) {
+        mCheckpoints++;
+        if (busy) {
+            mBusyCheckpoints++;
+        }
+        mLogPages = logPages;
+        mCheckpointedPages += Math.max(checkpointed, 0);
+    }
+
+    synchronized Bundle toBundle() {
+        Bundle stats = new Bundle();
+        stats.putLong(DatabaseStatsEntry.KEY_WRITE_LOCK_WAITS, mWriteLockWaits);
+        stats.putLong(DatabaseStatsEntry.KEY_WRITE_LOCK_WAIT_MILLIS,
+                mWriteLockWaitNanos / 1000000);
+        stats.putLong(DatabaseStatsEntry.KEY_MAX_WRITE_LOCK_WAIT_MILLIS,
+                mMaxWriteLockWaitNanos / 1000000);
+        stats.putLong(DatabaseStatsEntry.KEY_READS, mReads);
+        stats.putLong(DatabaseStatsEntry.KEY_READ_MILLIS, mReadNanos / 1000000);
+        stats.putLong(DatabaseStatsEntry.KEY_MAX_READ_MILLIS, mMaxReadNanos / 1000000);
+        stats.putLong(DatabaseStatsEntry.KEY_CHECKPOINTS, mCheckpoints);
+        stats.putLong(DatabaseStatsEntry.KEY_BUSY_CHECKPOINTS, mBusyCheckpoints);
+        stats.putLong(DatabaseStatsEntry.KEY_CHECKPOINTED_PAGES, mCheckpointedPages);
+        stats.putInt(DatabaseStatsEntry.KEY_LOG_PAGES, mLogPages);
+        return stats;
+    }
+}
@@ -0,0 +1,189 @@
+package com.echedeylima.weather.app.data;
+
+import android.os.Bundle;
+
+import java.util.Arrays;
+
+/**
+ * The days of a forecast, one primitive array per column.
+ * <p/>
+ * Unlike a ContentValues per day, filling a batch boxes nothing and allocates no map, and
+ * its arrays are kept when it's recycled, so a sync reuses the ones the previous sync
+ * grew.  It's handed to the provider as is, see {@link WeatherContract.WeatherEntry#METHOD_INSERT_BATCH}.
+ */
+public class ForecastBatch {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    // Batches kept for reuse.  A handful covers the locations synced at once.
+    private static final int POOL_SIZE = 4;
+    private static final ForecastBatch[] sPool = new ForecastBatch[POOL_SIZE];
+    private static int sPoolCount;
+
+    private static final String KEY_LOCATION_ID = "location_id";
+    private static final String KEY_SIZE = "size";
+    private static final String KEY_DATES = "dates";
+    private static final String KEY_WEATHER_IDS = "weather_ids";
+    private static final String KEY_DESCRIPTIONS = "descriptions";
+    private static final String KEY_MIN = "min";
+    private static final String KEY_MAX = "max";
+    private static final String KEY_HUMIDITY = "humidity";
+    private static final String KEY_PRESSURE = "pressure";
+    private static final String KEY_WIND = "wind";
+    private static final String KEY_DEGREES = "degrees";
+
+    // The location the days belong to, the _id of its row in the location table.
+    public long locationId;
+
+    private int mSize;
+
+    // Dates are in seconds since the epoch, as sent by the API.
+    public long[] dates;
+    public int[] weatherIds;
+    // Interned: a forecast only uses a handful of different descriptions.
+    public String[] descriptions;
+    public double[] min;
+    public double[] max;
+    public int[] humidity;
+    public double[] pressure;
+    public double[] wind;
+    public double[] degrees;
+
+    public ForecastBatch() {
+        allocate(DEFAULT_CAPACITY);
+    }
+
+    private ForecastBatch(int size) {
+        // Used by fromBundle(), which brings its own arrays.
+        mSize = size;
+    }
+
+    /**
+     * @return an empty batch, reused if one has been recycled.
+     */
+    public static ForecastBatch obtain() {
+        synchronized (sPool) {
+            if (sPoolCount > 0) {
+                ForecastBatch batch = sPool[--sPoolCount];
+                sPool[sPoolCount] = null;
+                return batch;
+            }
+        }
+        return new ForecastBatch();
+    }
+
+    /**
+     * Hands the batch back for reuse.  It must not be used afterwards.
+     */
+    public void recycle() {
+        clear();
+        synchronized (sPool) {
+            if (sPoolCount < POOL_SIZE) {
+                sPool[sPoolCount++] = this;
+            }
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        locationId = 0;
+        // Only the references need dropping; the primitives are overwritten by the next use.
+        if (descriptions != null) {
+            Arrays.fill(descriptions, 0, mSize, null);
+        }
+        mSize = 0;
+    }
+
+    /**
+     * Appends a day.
+     */
+    public void add(long date, int weatherId, String description, double minTemp,
+                    double maxTemp, int dayHumidity, double dayPressure, double windSpeed,
+                    double windDegrees) {
+        if (mSize == dates.length) {
+            grow(mSize * 2);
+        }
+        int i = mSize++;
+        dates[i] = date;
+        weatherIds[i] = weatherId;
+        descriptions[i] = description != null ? description.intern() : null;
+        min[i] = minTemp;
+        max[i] = maxTemp;
+        humidity[i] = dayHumidity;
+        pressure[i] = dayPressure;
+        wind[i] = windSpeed;
+        degrees[i] = windDegrees;
+    }
+
+    /**
+     * Wraps the batch into a Bundle, without copying its arrays.  The Bundle is only valid
+     * until the batch is changed or recycled: from then on its arrays hold other days.
+     * The provider, in the same process, gets the Bundle itself, so the batch must not be
+     * recycled before the call returns.
+     */
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putLong(KEY_LOCATION_ID, locationId);
+        bundle.putInt(KEY_SIZE, mSize);
+        bundle.putLongArray(KEY_DATES, dates);
+        bundle.putIntArray(KEY_WEATHER_IDS, weatherIds);
+        bundle.putStringArray(KEY_DESCRIPTIONS, descriptions);
+        bundle.putDoubleArray(KEY_MIN, min);
+        bundle.putDoubleArray(KEY_MAX, max);
+        bundle.putIntArray(KEY_HUMIDITY, humidity);
+        bundle.putDoubleArray(KEY_PRESSURE, pressure);
+        bundle.putDoubleArray(KEY_WIND, wind);
+        bundle.putDoubleArray(KEY_DEGREES, degrees);
+        return bundle;
+    }
+
+    /**
+     * @return the batch wrapped by {@link #toBundle()}, sharing its arrays, so it's only
+     * valid as long as the Bundle is.  It must not be recycled: the pool would hand its
+     * arrays out while the batch they came from still uses them.
+     */
+    public static ForecastBatch fromBundle(Bundle bundle) {
+        ForecastBatch batch = new ForecastBatch(bundle.getInt(KEY_SIZE));
+        batch.locationId = bundle.getLong(KEY_LOCATION_ID);
+        batch.dates = bundle.getLongArray(KEY_DATES);
+        batch.weatherIds = bundle.getIntArray(KEY_WEATHER_IDS);
+        batch.descriptions = bundle.getStringArray(KEY_DESCRIPTIONS);
+        batch.min = bundle.getDoubleArray(KEY_MIN);
+        batch.max = bundle.getDoubleArray(KEY_MAX);
+        batch.humidity = bundle.getIntArray(KEY_HUMIDITY);
+        batch.pressure = bundle.getDoubleArray(KEY_PRESSURE);
+        batch.wind = bundle.getDoubleArray(KEY_WIND);
+        batch.degrees = bundle.getDoubleArray(KEY_DEGREES);
+        if (batch.dates == null || batch.dates.length < batch.mSize) {
+            throw new IllegalArgumentException("Not a forecast batch: " + bundle);
+        }
+        return batch;
+    }
+
+    private void allocate(int capacity) {
+        dates = new long[capacity];
+        weatherIds = new int[capacity];
+        descriptions = new String[capacity];
+        min = new double[capacity];
+        max = new double[capacity];
+        humidity = new int[capacity];
+        pressure = new double[capacity];
+        wind = new double[capacity];
+        degrees = new double[capacity];
+    }
+
+    private void grow(int capacity) {
+        dates = Arrays.copyOf(dates, capacity);
+        weatherIds = Arrays.copyOf(weatherIds, capacity);
+        descriptions = Arrays.copyOf(descriptions, capacity);
+        min = Arrays.copyOf(min, capacity);
+        max = Arrays.copyOf(max, capacity);
+        humidity = Arrays.copyOf(humidity, capacity);
+        pressure = Arrays.copyOf(pressure, capacity);
+        wind = Arrays.copyOf(wind, capacity);
+        degrees = Arrays.copyOf(degrees, capacity);
+    }
+}
@@ -0,0 +1,128 @@
+package com.echedeylima.weather.app.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.echedeylima.weather.app.data.WeatherContract.HourlyEntry;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replaces the intraday forecast of locations.  Their periods shift with every run of the
+ * weather model, so there is little to keep: the stored periods of each location in a
+ * batch are deleted and the new ones inserted.
+ * <p/>
+ * Like {@link WeatherDiffWriter}, it writes through compiled statements and yields between
+ * locations once {@link WeatherDiffWriter#CHUNK_SIZE} rows have been written.  A writer
+ * must be closed.
+ */
+class HourlyWriter {
+
+    // The columns the compiled INSERT binds, in the order of its parameters.
+    private static final String[] INSERT_COLUMNS = {
+            HourlyEntry.COLUMN_LOC_KEY,
+            HourlyEntry.COLUMN_TIME,
+            HourlyEntry.COLUMN_WEATHER_ID,
+            HourlyEntry.COLUMN_TEMP,
+            HourlyEntry.COLUMN_HUMIDITY,
+            HourlyEntry.COLUMN_PRESSURE,
+            HourlyEntry.COLUMN_WIND_SPEED,
+            HourlyEntry.COLUMN_DEGREES
+    };
+
+    static final String sDeleteSql = "DELETE FROM " + HourlyEntry.TABLE_NAME +
+            " WHERE " + HourlyEntry.COLUMN_LOC_KEY + " = ?";
+
+    private static final String sInsertSql;
+
+    static {
+        StringBuilder insert = new StringBuilder("INSERT INTO " + HourlyEntry.TABLE_NAME + " (");
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < INSERT_COLUMNS.length; i++) {
+            insert.append(i > 0 ? ", " : "").append(INSERT_COLUMNS[i]);
+            values.append(i > 0 ? ", ?" : "?");
+        }
+        sInsertSql = insert.append(") VALUES (").append(values).append(")").toString();
+    }
+
+    private final SQLiteDatabase mDb;
+    private SQLiteStatement mDelete;
+    private SQLiteStatement mInsert;
+
+    HourlyWriter(SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    void close() {
+        if (mDelete != null) {
+            mDelete.close();
+            mDelete = null;
+        }
+        if (mInsert != null) {
+            mInsert.close();
+            mInsert = null;
+        }
+    }
+
+    /**
+     * Replaces the periods of every location in the batch.  Must be called inside a
+     * transaction.
+     *
+     * @param periods the periods to write, each with its location key.
+     * @return the number of rows inserted.
+     */
+    int replace(ContentValues[] periods) {
+        Map<Long, List<ContentValues>> periodsByLocation =
+                new LinkedHashMap<Long, List<ContentValues>>();
+        for (ContentValues period : periods) {
+            Long locationId = period.getAsLong(HourlyEntry.COLUMN_LOC_KEY);
+            List<ContentValues> locationPeriods = periodsByLocation.get(locationId);
+            if (locationPeriods == null) {
+                locationPeriods = new ArrayList<ContentValues>();
+                periodsByLocation.put(locationId, locationPeriods);
+            }
+            locationPeriods.add(period);
+        }
+
+        if (mDelete == null) {
+            mDelete = mDb.compileStatement(sDeleteSql);
+            mInsert = mDb.compileStatement(sInsertSql);
+        }
+        int insertedRows = 0;
+        int rowsSinceYield = 0;
+        for (Map.Entry<Long, List<ContentValues>> entry : periodsByLocation.entrySet()) {
+            WeatherDiffWriter.bindValue(mDelete, 1, entry.getKey());
+            mDelete.executeUpdateDelete();
+            for (ContentValues period : entry.getValue()) {
+                if (insertPeriod(period)) {
+                    insertedRows++;
+                }
+            }
+            rowsSinceYield += entry.getValue().size();
+            if (rowsSinceYield >= WeatherDiffWriter.CHUNK_SIZE) {
+                // Only between locations, so no one ever sees half of a forecast.
+                mDb.yieldIfContendedSafely();
+                rowsSinceYield = 0;
+            }
+        }
+        return insertedRows;
+    }
+
+    private boolean insertPeriod(ContentValues period) {
+        boolean bindable = period.size() == INSERT_COLUMNS.length;
+        for (int i = 0; bindable && i < INSERT_COLUMNS.length; i++) {
+            bindable = period.containsKey(INSERT_COLUMNS[i]);
+        }
+        if (!bindable) {
+            return mDb.insert(HourlyEntry.TABLE_NAME, null, period) != -1;
+        }
+        for (int i = 0; i < INSERT_COLUMNS.length; i++) {
+            WeatherDiffWriter.bindValue(mInsert, i + 1, period.get(INSERT_COLUMNS[i]));
+        }
+        return mInsert.executeInsert() != -1;
+    }
+}
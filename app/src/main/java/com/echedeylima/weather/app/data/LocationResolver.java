@@ -0,0 +1,151 @@
+package com.echedeylima.weather.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import com.echedeylima.weather.app.data.WeatherContract.LocationEntry;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps location settings to the _id of their row in the location table, and to the
+ * upstream id of their city, in memory.
+ * <p/>
+ * Every sync needs the id of its location, which almost never changes, so a query per
+ * sync is wasted.  The map is loaded from the location table the first time it's used,
+ * then kept up to date by the provider: inserts add to it, and deletes and updates, which
+ * can't tell which settings they touched, drop it to be loaded again.
+ * <p/>
+ * Lookups don't lock.  Inserts of new locations are serialized, so two syncs of a location
+ * that isn't stored yet don't both try to insert it.
+ */
+class LocationResolver {
+
+    private static final String[] LOCATION_COLUMNS = {
+            LocationEntry._ID,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            LocationEntry.COLUMN_CITY_ID
+    };
+
+    // These indices are tied to LOCATION_COLUMNS.
+    private static final int COL_ID = 0;
+    private static final int COL_LOCATION_SETTING = 1;
+    private static final int COL_CITY_ID = 2;
+
+    private final SQLiteOpenHelper mOpenHelper;
+    private final ConcurrentHashMap<String, Long> mIds = new ConcurrentHashMap<String, Long>();
+    // Only the locations whose city id is known are in there.
+    private final ConcurrentHashMap<String, Long> mCityIds =
+            new ConcurrentHashMap<String, Long>();
+    // Guards loading the map and inserting locations.
+    private final Object mLock = new Object();
+    private volatile boolean mLoaded;
+
+    LocationResolver(SQLiteOpenHelper openHelper) {
+        mOpenHelper = openHelper;
+    }
+
+    /**
+     * @return the _id of the location, or -1 if it isn't stored.
+     */
+    long getId(String locationSetting) {
+        Long id = mIds.get(locationSetting);
+        if (id != null) {
+            return id;
+        }
+        if (!mLoaded) {
+            load();
+            id = mIds.get(locationSetting);
+        }
+        return id != null ? id : -1;
+    }
+
+    /**
+     * @return the upstream id of the city of the location, or 0 if it isn't known.
+     */
+    long getCityId(String locationSetting) {
+        if (!mLoaded) {
+            load();
+        }
+        Long cityId = mCityIds.get(locationSetting);
+        return cityId != null ? cityId : 0;
+    }
+
+    /**
+     * Inserts the location unless it's already stored.
+     *
+     * @param values the location row, inserted if the location is new.
+     * @return the _id of the location, or -1 if it couldn't be inserted.
+     */
+    long insertIfAbsent(String locationSetting, ContentValues values) {
+        long id = getId(locationSetting);
+        if (id != -1) {
+            return id;
+        }
+        synchronized (mLock) {
+            // Another sync may have inserted it while this one waited.
+            Long insertedId = mIds.get(locationSetting);
+            if (insertedId != null) {
+                return insertedId;
+            }
+            ContentValues locationValues = new ContentValues(values);
+            locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+            id = mOpenHelper.getWritableDatabase().insert(
+                    LocationEntry.TABLE_NAME, null, locationValues);
+            if (id != -1) {
+                onInserted(locationSetting, id,
+                        locationValues.getAsLong(LocationEntry.COLUMN_CITY_ID));
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Records a location inserted by the provider.
+     */
+    void onInserted(String locationSetting, long id, Long cityId) {
+        if (locationSetting != null) {
+            mIds.put(locationSetting, id);
+            if (cityId != null) {
+                mCityIds.put(locationSetting, cityId);
+            }
+        }
+    }
+
+    /**
+     * Forgets every location, to be loaded again by the next lookup.  Called after the
+     * location table has been changed in ways the map can't follow.
+     */
+    void invalidate() {
+        synchronized (mLock) {
+            mLoaded = false;
+            mIds.clear();
+            mCityIds.clear();
+        }
+    }
+
+    private void load() {
+        synchronized (mLock) {
+            if (mLoaded) {
+                return;
+            }
+            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+            Cursor cursor = db.query(LocationEntry.TABLE_NAME, LOCATION_COLUMNS,
+                    null, null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    String locationSetting = cursor.getString(COL_LOCATION_SETTING);
+                    mIds.put(locationSetting, cursor.getLong(COL_ID));
+                    if (!cursor.isNull(COL_CITY_ID)) {
+                        mCityIds.put(locationSetting, cursor.getLong(COL_CITY_ID));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            mLoaded = true;
+        }
+    }
+}
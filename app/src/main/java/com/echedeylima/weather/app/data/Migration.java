@@ -0,0 +1,21 @@
+package com.echedeylima.weather.app.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * A step of the schema, from the version before to {@link #version}.  Steps run inside the
+ * transaction of the upgrade, while the app waits for the database to open, so they are
+ * kept to what SQLite does in a few statements: tables, columns, indices, and conversions
+ * of a table in one INSERT ... SELECT.  An update that has to visit every row in Java goes
+ * in a {@link Backfill}, which the step registers.
+ */
+abstract class Migration {
+
+    final int version;
+
+    Migration(int version) {
+        this.version = version;
+    }
+
+    abstract void migrate(SQLiteDatabase db);
+}
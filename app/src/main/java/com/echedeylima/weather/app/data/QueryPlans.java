@@ -0,0 +1,138 @@
+package com.echedeylima.weather.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.echedeylima.weather.app.data.WeatherContract.LocationEntry;
+import com.echedeylima.weather.app.data.WeatherContract.SyncStateEntry;
+import com.echedeylima.weather.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Asks SQLite how it runs every keyed query of the provider and the writers, so a change of
+ * schema or of query that loses an index is caught by a test rather than by a slow list.
+ * <p/>
+ * The loads of whole tables, such as the schedules of every location, are left out: they
+ * read every row by design.
+ */
+public final class QueryPlans {
+
+    public static final String QUERY_FORECAST_LIST = "forecast list";
+    public static final String QUERY_FORECAST_ALL_DAYS = "forecast, all days";
+    public static final String QUERY_FORECAST_DAY = "forecast day";
+    public static final String QUERY_HOURLY = "hourly forecast";
+    public static final String QUERY_LOCATION = "location by id";
+    public static final String QUERY_SYNC_STATE = "sync state of a location";
+    public static final String QUERY_STORED_DAYS = "stored days of a location";
+    public static final String QUERY_HOURLY_DELETE = "hourly delete";
+
+    // The columns ForecastFragment shows, which the (location, date) index covers.
+    private static final String[] FORECAST_LIST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherEntry.COLUMN_WEATHER_ID
+    };
+
+    private static final String sDateOrder = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private QueryPlans() {
+    }
+
+    /**
+     * @return the SQL of every checked query, by name.
+     */
+    static Map<String, String> getQueries() {
+        Map<String, String> queries = new LinkedHashMap<String, String>();
+        queries.put(QUERY_FORECAST_LIST,
+                WeatherProvider.sWeatherByLocationSettingQueryBuilder.buildQuery(
+                        FORECAST_LIST_COLUMNS,
+                        WeatherProvider.sLocationSettingWithStartDateSelection,
+                        null, null, sDateOrder, null));
+        queries.put(QUERY_FORECAST_ALL_DAYS,
+                WeatherProvider.sWeatherByLocationSettingQueryBuilder.buildQuery(
+                        FORECAST_LIST_COLUMNS,
+                        WeatherProvider.sLocationSettingSelection,
+                        null, null, sDateOrder, null));
+        queries.put(QUERY_FORECAST_DAY,
+                WeatherProvider.sWeatherByLocationSettingQueryBuilder.buildQuery(
+                        null,
+                        WeatherProvider.sLocationSettingAndDaySelection,
+                        null, null, sDateOrder, null));
+        queries.put(QUERY_HOURLY,
+                WeatherProvider.sHourlyByLocationSettingQueryBuilder.buildQuery(
+                        null,
+                        WeatherProvider.sLocationSettingWithStartTimeSelection,
+                        null, null, WeatherProvider.sHourlySortOrder, null));
+        queries.put(QUERY_LOCATION,
+                "SELECT * FROM " + LocationEntry.TABLE_NAME +
+                        " WHERE " + LocationEntry._ID + " = ?");
+        queries.put(QUERY_SYNC_STATE,
+                "SELECT * FROM " + SyncStateEntry.TABLE_NAME +
+                        " WHERE " + WeatherProvider.sSyncStateLocationSettingSelection);
+        queries.put(QUERY_STORED_DAYS,
+                "SELECT * FROM " + WeatherEntry.TABLE_NAME +
+                        " WHERE " + WeatherDiffWriter.sLocationAndDateRangeSelection);
+        queries.put(QUERY_HOURLY_DELETE, HourlyWriter.sDeleteSql);
+        return queries;
+    }
+
+    /**
+     * Explains every checked query.
+     *
+     * @return the steps of the plan of each query, by name.
+     */
+    public static Map<String, List<String>> explainAll(SQLiteDatabase db) {
+        Map<String, List<String>> plans = new LinkedHashMap<String, List<String>>();
+        for (Map.Entry<String, String> query : getQueries().entrySet()) {
+            plans.put(query.getKey(), explain(db, query.getValue()));
+        }
+        return plans;
+    }
+
+    /**
+     * @return the steps of the plan of the query, as SQLite describes them.
+     */
+    static List<String> explain(SQLiteDatabase db, String sql) {
+        // Arguments only steer the plan through their type, so a number stands for each.
+        int argCount = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            if (sql.charAt(i) == '?') {
+                argCount++;
+            }
+        }
+        String[] args = new String[argCount];
+        for (int i = 0; i < argCount; i++) {
+            args[i] = "1";
+        }
+
+        List<String> steps = new ArrayList<String>();
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            int detailIndex = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                steps.add(cursor.getString(detailIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        return steps;
+    }
+
+    /**
+     * @return true if the step reads a whole table or index, or sorts the rows in a
+     * temporary B-tree.
+     */
+    public static boolean isSlow(String step) {
+        // "SCAN TABLE weather" on older versions of SQLite, "SCAN weather" on newer ones.
+        return (step.startsWith("SCAN ") && !step.startsWith("SCAN CONSTANT ROW"))
+                || step.contains("USE TEMP B-TREE");
+    }
+}
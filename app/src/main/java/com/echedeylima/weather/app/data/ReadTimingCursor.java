@@ -0,0 +1,91 @@
+package com.echedeylima.weather.app.data;
+
+import android.database.CrossProcessCursorWrapper;
+import android.database.Cursor;
+import android.database.CursorWindow;
+
+/**
+ * Counts a query in {@link DatabaseStats} once its first rows are read, whenever the caller
+ * reads them, so the provider doesn't have to fill the window itself to time it.  The time
+ * counted is the time to prepare the query plus the time of the first fill, which includes
+ * any wait for a connection.  A cursor closed without being read counts its preparation.
+ * <p/>
+ * A cross process wrapper, so a cursor sent to another process is still copied window by
+ * window rather than row by row.
+ */
+class ReadTimingCursor extends CrossProcessCursorWrapper {
+
+    private final DatabaseStats mStats;
+    // The time the query took to prepare, or -1 once the read has been counted.
+    private long mQueryNanos;
+
+    ReadTimingCursor(Cursor cursor, DatabaseStats stats, long queryNanos) {
+        super(cursor);
+        mStats = stats;
+        mQueryNanos = queryNanos;
+    }
+
+    /**
+     * Fills the first window, if it's the first time, and counts the read.
+     */
+    private void onFirstRead() {
+        if (mQueryNanos == -1) {
+            return;
+        }
+        long start = System.nanoTime();
+        super.getCount();
+        mStats.onRead(mQueryNanos + System.nanoTime() - start);
+        mQueryNanos = -1;
+    }
+
+    @Override
+    public int getCount() {
+        onFirstRead();
+        return super.getCount();
+    }
+
+    @Override
+    public boolean move(int offset) {
+        onFirstRead();
+        return super.move(offset);
+    }
+
+    @Override
+    public boolean moveToPosition(int position) {
+        onFirstRead();
+        return super.moveToPosition(position);
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        onFirstRead();
+        return super.moveToFirst();
+    }
+
+    @Override
+    public boolean moveToLast() {
+        onFirstRead();
+        return super.moveToLast();
+    }
+
+    @Override
+    public boolean moveToNext() {
+        onFirstRead();
+        return super.moveToNext();
+    }
+
+    @Override
+    public void fillWindow(int position, CursorWindow window) {
+        onFirstRead();
+        super.fillWindow(position, window);
+    }
+
+    @Override
+    public void close() {
+        if (mQueryNanos != -1) {
+            mStats.onRead(mQueryNanos);
+            mQueryNanos = -1;
+        }
+        super.close();
+    }
+}
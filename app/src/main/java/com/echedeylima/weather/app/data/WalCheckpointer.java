@@ -0,0 +1,113 @@
+package com.echedeylima.weather.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checkpoints the write-ahead log a while after the provider writes.
+ * <p/>
+ * SQLite checkpoints on its own once the log passes a number of pages, on the thread of the
+ * commit that crossed it, so a sync pays for it in the middle of its writes.  Writes come
+ * in bursts, one sync at a time: waiting for the burst to end and checkpointing then, off
+ * the writer's thread, keeps the log short and the commits fast, so SQLite's own
+ * checkpoints are turned off.  The checkpoints are passive, so they never wait for readers
+ * or a writer; what they can't copy is left for the next one.
+ */
+class WalCheckpointer {
+
+    private static final String LOG_TAG = WalCheckpointer.class.getSimpleName();
+
+    // How long after a write the log is checkpointed.  Every write within the delay is
+    // covered by the same checkpoint.
+    static final long CHECKPOINT_DELAY_MILLIS = 10 * 1000;
+
+    private static ScheduledExecutorService sExecutor;
+
+    private final WeatherDbHelper mOpenHelper;
+    private final DatabaseStats mStats;
+    // Guarded by this.
+    private boolean mScheduled;
+
+    private final Runnable mCheckpoint = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (WalCheckpointer.this) {
+                mScheduled = false;
+            }
+            checkpoint();
+        }
+    };
+
+    /**
+     * Takes over the checkpoints of the helper's database, which mustn't be open yet.
+     */
+    WalCheckpointer(WeatherDbHelper openHelper, DatabaseStats stats) {
+        mOpenHelper = openHelper;
+        mStats = stats;
+        openHelper.disableAutoCheckpoint();
+    }
+
+    private static synchronized ScheduledExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "WalCheckpointer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Schedules a checkpoint, unless one is already scheduled.  Call it after every write.
+     */
+    void onWrite() {
+        synchronized (this) {
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+        }
+        getExecutor().schedule(mCheckpoint, CHECKPOINT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Checkpoints the log now, on the calling thread.
+     *
+     * @return false if readers or a writer kept the checkpoint from copying the whole log,
+     * or it failed.
+     */
+    boolean checkpoint() {
+        try {
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            // Returns whether it was blocked, the pages in the log, and the pages copied.
+            Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+            try {
+                if (!cursor.moveToFirst()) {
+                    return false;
+                }
+                int logPages = cursor.getInt(1);
+                int checkpointed = cursor.getInt(2);
+                boolean busy = cursor.getInt(0) != 0 || checkpointed < logPages;
+                mStats.onCheckpoint(busy, logPages, checkpointed);
+                Log.d(LOG_TAG, "Checkpoint: " + checkpointed + " of " + logPages + " pages");
+                return !busy;
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            Log.e(LOG_TAG, "Checkpoint failed", e);
+            return false;
+        }
+    }
+}
@@ -5,9 +5,7 @@ import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.TimeZone;
 
 /**
  * Defines table and column names for the weather database.
@@ -31,38 +29,35 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_SYNC_STATE = "sync_state";
+    public static final String PATH_HOURLY = "hourly";
 
-    // Format used for storing dates in the database.  ALso used for converting those strings
-    // back into date objects for comparison/processing.
-    public static final String DATE_FORMAT = "yyyyMMdd";
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
 
     /**
-     * Converts Date class to a string representation, used for easy comparison and database lookup.
+     * Converts an instant to the day it falls on, in the local time zone.  Days are stored in
+     * the database as these integer keys, so they compare, sort and index as numbers, and
+     * no date is ever formatted or parsed on the way in or out.
      *
-     * @param date The input date
-     * @return a DB-friendly representation of the date, using the format defined in DATE_FORMAT.
+     * @param millis the instant, in milliseconds since the epoch
+     * @return the number of days since 1970-01-01.
      */
-    public static String getDbDateString(Date date) {
-        // Because the API returns a unix timestamp (measured in seconds),
-        // it must be converted to milliseconds in order to be converted to valid date.
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
-        return sdf.format(date);
+    public static long getDayFromMillis(long millis) {
+        long localMillis = millis + TimeZone.getDefault().getOffset(millis);
+        // Floors, rather than truncates, the days before the epoch.
+        return (localMillis - (localMillis < 0 ? DAY_MILLIS - 1 : 0)) / DAY_MILLIS;
     }
 
     /**
-     * Converts a dateText to a long Unix time representation
+     * Converts a day back to an instant, to display it.
      *
-     * @param dateText the input date string
-     * @return the Date object
+     * @param day the number of days since 1970-01-01
+     * @return noon of the day in the local time zone, in milliseconds since the epoch.  Noon
+     * is inside the day whatever daylight saving time does around midnight.
      */
-    public static Date getDateFromDb(String dateText) {
-        SimpleDateFormat dbDateFormat = new SimpleDateFormat(DATE_FORMAT);
-        try {
-            return dbDateFormat.parse(dateText);
-        } catch (ParseException e) {
-            e.printStackTrace();
-            return null;
-        }
+    public static long getMillisFromDay(long day) {
+        long noon = day * DAY_MILLIS + DAY_MILLIS / 2;
+        return noon - TimeZone.getDefault().getOffset(noon);
     }
 
     /* Inner class that defines the table contents of the location table */
@@ -92,6 +87,20 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // The id of the city upstream, as returned by the first sync.  Requests name the
+        // city by it once it's known, rather than by the location setting.  May be null.
+        public static final String COLUMN_CITY_ID = "city_id";
+
+        // Provider method resolving the location setting passed as its argument to the _id
+        // of its row, from memory.  If the extras hold a location row under
+        // KEY_LOCATION_VALUES, the location is inserted when it isn't stored yet.  The result
+        // holds the _id under KEY_LOCATION_ID, -1 if the location isn't stored, and the
+        // COLUMN_CITY_ID under KEY_CITY_ID, 0 if it isn't known.
+        public static final String METHOD_RESOLVE_LOCATION = "resolve_location";
+        public static final String KEY_LOCATION_VALUES = "location_values";
+        public static final String KEY_LOCATION_ID = "location_id";
+        public static final String KEY_CITY_ID = "city_id";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -112,8 +121,9 @@ public class WeatherContract {
 
         // Column with the foreign key into the location table.
         public static final String COLUMN_LOC_KEY = "location_id";
-        // Date, stored as Text with format yyyy-MM-dd
-        public static final String COLUMN_DATETEXT = "date";
+        // Date, stored as an integer: the number of days since 1970-01-01, in the local time
+        // zone.  See getDayFromMillis().
+        public static final String COLUMN_DATE = "date";
         // Weather id as returned by API, to identify the icon to be used
         public static final String COLUMN_WEATHER_ID = "weather_id";
 
@@ -137,6 +147,11 @@ public class WeatherContract {
         // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
         public static final String COLUMN_DEGREES = "degrees";
 
+        // Provider method storing a ForecastBatch, passed as the extras by its toBundle().
+        // The days are upserted like bulkInsert() does; the result holds the rows changed.
+        public static final String METHOD_INSERT_BATCH = "insert_batch";
+        public static final String KEY_ROWS_CHANGED = "rows_changed";
+
 
         public static Uri buildWeatherUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
@@ -146,14 +161,21 @@ public class WeatherContract {
             return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
         }
 
+        /**
+         * @param startDate the first day to return, in days since 1970-01-01.
+         */
         public static Uri buildWeatherLocationWithStartDate(
-                String locationSetting, String startDate) {
+                String locationSetting, long startDate) {
             return CONTENT_URI.buildUpon().appendPath(locationSetting)
-                    .appendQueryParameter(COLUMN_DATETEXT, startDate).build();
+                    .appendQueryParameter(COLUMN_DATE, Long.toString(startDate)).build();
         }
 
-        public static Uri buildWeatherLocationWithDate(String locationSetting, String date) {
-            return CONTENT_URI.buildUpon().appendPath(locationSetting).appendPath(date).build();
+        /**
+         * @param date the day to return, in days since 1970-01-01.
+         */
+        public static Uri buildWeatherLocationWithDate(String locationSetting, long date) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendPath(Long.toString(date)).build();
         }
 
         public static String getLocationSettingFromUri(Uri uri) {
@@ -165,7 +187,158 @@ public class WeatherContract {
         }
 
         public static String getStartDateFromUri(Uri uri) {
-            return uri.getQueryParameter(COLUMN_DATETEXT);
+            return uri.getQueryParameter(COLUMN_DATE);
+        }
+    }
+
+    /* Inner class that defines the table contents of the hourly table */
+    public static final class HourlyEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HOURLY).build();
+
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+
+        // The intraday forecast, one row every 3 hours.  That is about 8 times the rows of
+        // the daily forecast, so the rows are kept small: no text, and the time is an
+        // integer.  It's a table of its own so the daily queries never scan it.
+        public static final String TABLE_NAME = "hourly";
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // Start of the forecast period, in seconds since the epoch, as sent by the API.
+        public static final String COLUMN_TIME = "time";
+        // Weather id as returned by API, to identify the icon to be used
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+        // Temperature at that time (stored as a float)
+        public static final String COLUMN_TEMP = "temp";
+        // Humidity is stored as an integer percentage
+        public static final String COLUMN_HUMIDITY = "humidity";
+        public static final String COLUMN_PRESSURE = "pressure";
+        public static final String COLUMN_WIND_SPEED = "wind";
+        // Meteorological degrees (e.g, 0 is north, 180 is south).
+        public static final String COLUMN_DEGREES = "degrees";
+
+        public static Uri buildHourlyLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        /**
+         * @param startTime the first time to return, in seconds since the epoch.
+         */
+        public static Uri buildHourlyLocationWithStartTime(String locationSetting,
+                                                           long startTime) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendQueryParameter(COLUMN_TIME, Long.toString(startTime)).build();
         }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static String getStartTimeFromUri(Uri uri) {
+            return uri.getQueryParameter(COLUMN_TIME);
+        }
+    }
+
+    /* Inner class that defines the table contents of the sync_state table */
+    public static final class SyncStateEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_STATE).build();
+
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_STATE;
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_STATE;
+
+        public static final String TABLE_NAME = "sync_state";
+
+        // The location setting the state belongs to.  It's not a foreign key into the
+        // location table because the state of a location must be kept even before its
+        // first successful sync has created the location row.
+        public static final String COLUMN_LOCATION_SETTING = "location_setting";
+
+        // Validators sent by the server with the last stored forecast, echoed back in the
+        // If-None-Match and If-Modified-Since headers of the next request.
+        public static final String COLUMN_ETAG = "etag";
+        public static final String COLUMN_LAST_MODIFIED = "last_modified";
+
+        // Hash of the last stored response body, used when the server sends no validators.
+        public static final String COLUMN_CONTENT_HASH = "content_hash";
+
+        // Size of the last response body, as received (possibly gzipped) and once decompressed.
+        public static final String COLUMN_BYTES_RECEIVED = "bytes_received";
+        public static final String COLUMN_BYTES_DECODED = "bytes_decoded";
+
+        // The sync schedule of the location.  Sorting the table by COLUMN_NEXT_SYNC lists
+        // the locations in the order they will be synced.
+        // When the last successful sync finished, in milliseconds since the epoch.
+        public static final String COLUMN_LAST_SYNC = "last_sync";
+        // When the location is due to be synced again, in milliseconds since the epoch.
+        public static final String COLUMN_NEXT_SYNC = "next_sync";
+        // How much the forecast has been changing between syncs, from 0 (never) to 1
+        // (every day of it, every time).
+        public static final String COLUMN_VOLATILITY = "volatility";
+        // When the forecast of the location was last on screen, in milliseconds since the epoch.
+        public static final String COLUMN_LAST_VIEWED = "last_viewed";
+        // Number of syncs in a row that failed.  While it's not 0, COLUMN_NEXT_SYNC is the
+        // time of the next retry.
+        public static final String COLUMN_FAILURE_COUNT = "failure_count";
+
+        public static Uri buildSyncStateUri(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+    }
+
+    /* Inner class that defines the statistics the provider keeps about the database */
+    public static final class DatabaseStatsEntry {
+
+        // Provider method, called on BASE_CONTENT_URI, returning how long the provider has
+        // waited on the database since its process started, under the keys below.
+        public static final String METHOD_GET_DATABASE_STATS = "get_database_stats";
+
+        // Write transactions begun, the time they waited for the write lock in total, and
+        // the longest wait, in milliseconds.
+        public static final String KEY_WRITE_LOCK_WAITS = "write_lock_waits";
+        public static final String KEY_WRITE_LOCK_WAIT_MILLIS = "write_lock_wait_millis";
+        public static final String KEY_MAX_WRITE_LOCK_WAIT_MILLIS = "max_write_lock_wait_millis";
+
+        // Queries run, the time until their first rows in total, and the longest, in
+        // milliseconds.
+        public static final String KEY_READS = "reads";
+        public static final String KEY_READ_MILLIS = "read_millis";
+        public static final String KEY_MAX_READ_MILLIS = "max_read_millis";
+
+        // Checkpoints run, the ones readers or a writer kept from finishing, the pages
+        // they copied into the database, and the pages in the log after the last one.
+        public static final String KEY_CHECKPOINTS = "checkpoints";
+        public static final String KEY_BUSY_CHECKPOINTS = "busy_checkpoints";
+        public static final String KEY_CHECKPOINTED_PAGES = "checkpointed_pages";
+        public static final String KEY_LOG_PAGES = "log_pages";
+    }
+
+    /* Inner class that defines the maintenance of the database */
+    public static final class MaintenanceEntry {
+
+        // Provider method, called on BASE_CONTENT_URI, purging the past days older than
+        // the history kept, giving the space they held back to the file system, and
+        // refreshing the statistics of the query planner.  The extras may hold the days of
+        // history kept under KEY_RETENTION_DAYS.  The result holds the rows purged and the
+        // size of the database before and after.
+        public static final String METHOD_RUN_MAINTENANCE = "run_maintenance";
+        public static final String KEY_RETENTION_DAYS = "retention_days";
+        public static final int DEFAULT_RETENTION_DAYS = 7;
+
+        public static final String KEY_ROWS_PURGED = "rows_purged";
+        // In bytes, the pages of the database, free ones included.
+        public static final String KEY_SIZE_BEFORE = "size_before";
+        public static final String KEY_SIZE_AFTER = "size_after";
+        public static final String KEY_DURATION_MILLIS = "duration_millis";
     }
-}
\ No newline at end of file
+}
@@ -1,23 +1,98 @@
 package com.echedeylima.weather.app.data;
 
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.util.Log;
 
+import com.echedeylima.weather.app.data.WeatherContract.HourlyEntry;
 import com.echedeylima.weather.app.data.WeatherContract.LocationEntry;
+import com.echedeylima.weather.app.data.WeatherContract.SyncStateEntry;
 import com.echedeylima.weather.app.data.WeatherContract.WeatherEntry;
 
 
 public class WeatherDbHelper extends SQLiteOpenHelper {
     private static final String TAG = WeatherDbHelper.class.getSimpleName();
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 2;
     public static final String DATABASE_NAME = "weather.db";
+    public static final String WEATHER_LOCATION_DATE_INDEX = "weather_location_date";
+
+    // One step per version after the first, in order.  A change of schema bumps
+    // DATABASE_VERSION, makes the same change in onCreate(), and adds its step here, so an
+    // update keeps the cached forecasts instead of sending every device back to the network
+    // at once.
+    private static final Migration[] MIGRATIONS = {
+            new Migration(2) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Version 1 is the schema the app first shipped with: the location and
+                    // weather tables, with the weather dates as yyyyMMdd text.
+                    db.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME + " ADD COLUMN " +
+                            LocationEntry.COLUMN_CITY_ID + " INTEGER");
+                    migrateWeatherDatesToDays(db);
+                    createWeatherIndex(db);
+                    createSyncStateTable(db);
+                    createHourlyTable(db);
+                    BackfillRunner.createTable(db);
+                }
+            }
+    };
+
+    // Every backfill a step of MIGRATIONS may register, in the order they run.  Entries are
+    // kept for as long as a database that registered them may be upgraded.
+    static final Backfill[] BACKFILLS = {};
+
+    // False once a WalCheckpointer checkpoints the log in place of SQLite.
+    private volatile boolean mAutoCheckpoint = true;
 
     public WeatherDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
+    /**
+     * With a write-ahead log, readers see the last commit while a writer goes on, each on a
+     * connection of its own from the pool, so a long sync doesn't hold up the lists.  From
+     * Jelly Bean on it's enabled here, before the tables are created.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        if (db.isReadOnly()) {
+            return;
+        }
+        // Lets maintenance give free pages back a few at a time rather than rewriting the
+        // whole file.  It only takes on a database without tables, and not once the log is
+        // enabled, so it comes first; on an existing database it does nothing.
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        db.enableWriteAheadLogging();
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (db.isReadOnly()) {
+            return;
+        }
+        // onConfigure() is only called from Jelly Bean on.
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            db.enableWriteAheadLogging();
+        }
+        if (!mAutoCheckpoint) {
+            // Set on the connection that writes; the pragma returns the new value.
+            DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint = 0", null);
+        }
+    }
+
+    /**
+     * Stops SQLite from checkpointing the log inside the commit that fills it, for the
+     * connections opened from now on.  Whoever calls it checkpoints the log instead.
+     */
+    void disableAutoCheckpoint() {
+        mAutoCheckpoint = false;
+    }
+
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
         final String CREATE_LOCATION_TABLE = "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
@@ -26,9 +101,65 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_CITY_ID + " INTEGER, " +
                 "UNIQUE (" + LocationEntry.COLUMN_LOCATION_SETTING + ") ON CONFLICT IGNORE );";
 
-        final String CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
+        sqLiteDatabase.execSQL(CREATE_LOCATION_TABLE);
+        Log.d(TAG, CREATE_LOCATION_TABLE);
+        createWeatherTable(sqLiteDatabase, WeatherEntry.TABLE_NAME);
+        createWeatherIndex(sqLiteDatabase);
+        createSyncStateTable(sqLiteDatabase);
+        createHourlyTable(sqLiteDatabase);
+        BackfillRunner.createTable(sqLiteDatabase);
+    }
+
+    private static void createSyncStateTable(SQLiteDatabase db) {
+        final String CREATE_SYNC_STATE_TABLE = "CREATE TABLE " + SyncStateEntry.TABLE_NAME + " (" +
+                SyncStateEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                SyncStateEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
+                SyncStateEntry.COLUMN_ETAG + " TEXT, " +
+                SyncStateEntry.COLUMN_LAST_MODIFIED + " TEXT, " +
+                SyncStateEntry.COLUMN_CONTENT_HASH + " TEXT, " +
+                SyncStateEntry.COLUMN_BYTES_RECEIVED + " INTEGER NOT NULL DEFAULT 0, " +
+                SyncStateEntry.COLUMN_BYTES_DECODED + " INTEGER NOT NULL DEFAULT 0, " +
+                SyncStateEntry.COLUMN_LAST_SYNC + " INTEGER NOT NULL DEFAULT 0, " +
+                SyncStateEntry.COLUMN_NEXT_SYNC + " INTEGER NOT NULL DEFAULT 0, " +
+                SyncStateEntry.COLUMN_VOLATILITY + " REAL NOT NULL DEFAULT 0, " +
+                SyncStateEntry.COLUMN_LAST_VIEWED + " INTEGER NOT NULL DEFAULT 0, " +
+                SyncStateEntry.COLUMN_FAILURE_COUNT + " INTEGER NOT NULL DEFAULT 0);";
+
+        db.execSQL(CREATE_SYNC_STATE_TABLE);
+        Log.d(TAG, CREATE_SYNC_STATE_TABLE);
+    }
+
+    private static void createHourlyTable(SQLiteDatabase db) {
+        final String CREATE_HOURLY_TABLE = "CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+                // No AUTOINCREMENT: the rows of a location are replaced on every sync, and
+                // reusing their ids saves the bookkeeping of sqlite_sequence.
+                HourlyEntry._ID + " INTEGER PRIMARY KEY, " +
+                HourlyEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_TIME + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_TEMP + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_HUMIDITY + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+
+                " FOREIGN KEY (" + HourlyEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+
+                // One row per location and time.  The index behind the constraint is also
+                // what the per location, time ordered queries read.
+                " UNIQUE (" + HourlyEntry.COLUMN_LOC_KEY + ", " +
+                HourlyEntry.COLUMN_TIME + "));";
+
+        db.execSQL(CREATE_HOURLY_TABLE);
+        Log.d(TAG, CREATE_HOURLY_TABLE);
+    }
+
+    private static void createWeatherTable(SQLiteDatabase db, String tableName) {
+        final String CREATE_WEATHER_TABLE = "CREATE TABLE " + tableName + " (" +
                 // Why AutoIncrement here, and not above?
                 // Unique keys will be auto-generated in either case.  But for weather
                 // forecasting, it's reasonable to assume the user will want information
@@ -38,7 +169,7 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
 
                 // the ID of the location entry associated with this weather data
                 WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
-                WeatherEntry.COLUMN_DATETEXT + " TEXT NOT NULL, " +
+                WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
                 WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
                 WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
 
@@ -55,26 +186,96 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
 
                 // To assure the application have just one weather entry per day
-                // per location, it's created a UNIQUE constraint with REPLACE strategy
-                " UNIQUE (" + WeatherEntry.COLUMN_DATETEXT + ", " +
-                WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
+                // per location, it's created a UNIQUE constraint.  Days are upserted by
+                // the provider, so rows keep their _id instead of being replaced.
+                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
+                WeatherEntry.COLUMN_LOC_KEY + "));";
 
-        sqLiteDatabase.execSQL(CREATE_LOCATION_TABLE);
-        Log.d(TAG, CREATE_LOCATION_TABLE);
-        sqLiteDatabase.execSQL(CREATE_WEATHER_TABLE);
+        db.execSQL(CREATE_WEATHER_TABLE);
         Log.d(TAG, CREATE_WEATHER_TABLE);
     }
 
+    /**
+     * The forecast list reads the days of a location from a date on, in date order.  This
+     * index has them in that order, and holds every weather column the list shows, so the
+     * query never reads the table itself.  The _id comes along as the rowid.
+     */
+    private static void createWeatherIndex(SQLiteDatabase db) {
+        final String CREATE_WEATHER_INDEX = "CREATE INDEX " + WEATHER_LOCATION_DATE_INDEX +
+                " ON " + WeatherEntry.TABLE_NAME + " (" +
+                WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DATE + ", " +
+                WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                WeatherEntry.COLUMN_WEATHER_ID + ");";
+
+        db.execSQL(CREATE_WEATHER_INDEX);
+        Log.d(TAG, CREATE_WEATHER_INDEX);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        // Upgrades run inside a transaction, so a step that fails leaves the old schema and
+        // its data as they were, and the whole upgrade is tried again on the next open.
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version > oldVersion && migration.version <= newVersion) {
+                Log.d(TAG, "Migrating to version " + migration.version);
+                migration.migrate(sqLiteDatabase);
+            }
+        }
+    }
+
     @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i2) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
-        // Note that this only fires if you change the version number for your database.
-        // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
+    public void onDowngrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        // A schema this version doesn't know is discarded: this database is only a cache for
+        // online data.  The sync adapter then rebuilds it from the archive of raw responses
+        // it keeps, without going to the network.
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + SyncStateEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HourlyEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + BackfillRunner.TABLE_NAME);
         onCreate(sqLiteDatabase);
     }
+
+    /**
+     * The weather dates go from the yyyyMMdd text of version 1 to integer days since the
+     * epoch, the keys WeatherContract.getDayFromMillis() gives the provider.
+     * SQLite can't change the type of a column, so the rows are copied into a table with
+     * the new schema, converting the dates on the way, and it takes the place of the old
+     * one.  Rows keep their _id.
+     */
+    private static void migrateWeatherDatesToDays(SQLiteDatabase db) {
+        final String newTable = WeatherEntry.TABLE_NAME + "_new";
+        db.execSQL("DROP TABLE IF EXISTS " + newTable);
+        createWeatherTable(db, newTable);
+
+        // julianday() wants the date as yyyy-MM-dd, and day 0 is julian day 2440587.5.
+        // A row whose date isn't 8 digits can't be converted and is left behind; the next
+        // sync fetches its day again.
+        final String day = "CAST(julianday(" +
+                "substr(" + WeatherEntry.COLUMN_DATE + ", 1, 4) || '-' || " +
+                "substr(" + WeatherEntry.COLUMN_DATE + ", 5, 2) || '-' || " +
+                "substr(" + WeatherEntry.COLUMN_DATE + ", 7, 2)) - 2440587.5 AS INTEGER)";
+        final String otherColumns = WeatherEntry._ID + ", " +
+                WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                WeatherEntry.COLUMN_HUMIDITY + ", " +
+                WeatherEntry.COLUMN_PRESSURE + ", " +
+                WeatherEntry.COLUMN_WIND_SPEED + ", " +
+                WeatherEntry.COLUMN_DEGREES;
+        db.execSQL("INSERT INTO " + newTable +
+                " (" + otherColumns + ", " + WeatherEntry.COLUMN_DATE + ")" +
+                " SELECT " + otherColumns + ", " + day +
+                " FROM " + WeatherEntry.TABLE_NAME +
+                " WHERE length(" + WeatherEntry.COLUMN_DATE + ") = 8" +
+                " AND " + WeatherEntry.COLUMN_DATE + " NOT GLOB '*[^0-9]*'");
+
+        db.execSQL("DROP TABLE " + WeatherEntry.TABLE_NAME);
+        db.execSQL("ALTER TABLE " + newTable + " RENAME TO " + WeatherEntry.TABLE_NAME);
+    }
 }
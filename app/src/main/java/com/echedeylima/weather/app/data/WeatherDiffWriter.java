@@ -0,0 +1,474 @@
+package com.echedeylima.weather.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.echedeylima.weather.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes days of weather by comparing them with the rows already stored.
+ * <p/>
+ * A day that isn't stored yet is inserted.  A day that is stored only has the columns that
+ * changed updated, in place, and a day that didn't change isn't touched at all.  Rows
+ * keep their _id from one sync to the next, so lists bound to them don't rebind rows whose
+ * weather is the same, and the indices aren't rewritten for nothing.
+ * <p/>
+ * New rows, and the changed rows of a {@link ForecastBatch}, are written through statements
+ * compiled once per writer, with the values bound by position, so the SQL isn't rebuilt
+ * and reparsed for every row.  An UPDATE sets only the columns that changed; one is
+ * compiled for each set of changed columns met, which for a forecast is a handful.
+ * <p/>
+ * Between locations or batches, once {@link #CHUNK_SIZE} rows have been written, the
+ * transaction yields, letting queries waiting on the database run in the middle of a
+ * large load.  A writer must be closed.
+ */
+class WeatherDiffWriter {
+
+    static final String sLocationAndDateRangeSelection =
+            WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherEntry.COLUMN_DATE + " >= ? AND " +
+                    WeatherEntry.COLUMN_DATE + " <= ? ";
+
+    private static final String sIdSelection = WeatherEntry._ID + " = ? ";
+
+    // Rows written before the transaction may yield to other threads.
+    static final int CHUNK_SIZE = 200;
+
+    // The columns the compiled INSERT binds, in the order of its parameters.
+    private static final String[] INSERT_COLUMNS = {
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    // The weather columns are the ones of INSERT_COLUMNS after the date.  A set of them is
+    // a bit mask, bit j standing for weather column j.
+    private static final int INSERT_WEATHER_OFFSET = 2;
+    private static final int NUM_WEATHER_COLUMNS = INSERT_COLUMNS.length - INSERT_WEATHER_OFFSET;
+
+    private static final String sInsertSql;
+
+    static {
+        StringBuilder insert = new StringBuilder("INSERT INTO " + WeatherEntry.TABLE_NAME + " (");
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < INSERT_COLUMNS.length; i++) {
+            insert.append(i > 0 ? ", " : "").append(INSERT_COLUMNS[i]);
+            values.append(i > 0 ? ", ?" : "?");
+        }
+        sInsertSql = insert.append(") VALUES (").append(values).append(")").toString();
+    }
+
+    // The columns a ForecastBatch holds, compared by write(ForecastBatch).
+    private static final String[] BATCH_COLUMNS = {
+            WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    // These indices are tied to BATCH_COLUMNS.  The weather columns are in the order of
+    // INSERT_COLUMNS, from COL_WEATHER_ID on.
+    private static final int COL_ID = 0;
+    private static final int COL_DATE = 1;
+    private static final int COL_WEATHER_ID = 2;
+    private static final int COL_SHORT_DESC = 3;
+    private static final int COL_MIN_TEMP = 4;
+    private static final int COL_MAX_TEMP = 5;
+    private static final int COL_HUMIDITY = 6;
+    private static final int COL_PRESSURE = 7;
+    private static final int COL_WIND_SPEED = 8;
+    private static final int COL_DEGREES = 9;
+
+    private final SQLiteDatabase mDb;
+    // Compiled the first time they are needed, a write of unchanged days needs none.
+    private SQLiteStatement mInsert;
+    // The UPDATEs, by the set of weather columns they set.
+    private final Map<Integer, SQLiteStatement> mUpdates = new HashMap<Integer, SQLiteStatement>();
+    private int mRowsSinceYield;
+
+    WeatherDiffWriter(SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    /**
+     * Releases the compiled statements.
+     */
+    void close() {
+        if (mInsert != null) {
+            mInsert.close();
+            mInsert = null;
+        }
+        for (SQLiteStatement update : mUpdates.values()) {
+            update.close();
+        }
+        mUpdates.clear();
+    }
+
+    /**
+     * Writes the given days.  Must be called inside a transaction.
+     *
+     * @param days the days to write, each with its location key and date.
+     * @return the number of rows inserted or changed.
+     */
+    int write(ContentValues[] days) {
+        // A batch is usually the forecast of a single location, but nothing requires it.
+        Map<Long, List<ContentValues>> daysByLocation = new HashMap<Long, List<ContentValues>>();
+        for (ContentValues day : days) {
+            Long locationId = day.getAsLong(WeatherEntry.COLUMN_LOC_KEY);
+            List<ContentValues> locationDays = daysByLocation.get(locationId);
+            if (locationDays == null) {
+                locationDays = new ArrayList<ContentValues>(days.length);
+                daysByLocation.put(locationId, locationDays);
+            }
+            locationDays.add(day);
+        }
+
+        int changedRows = 0;
+        for (Map.Entry<Long, List<ContentValues>> entry : daysByLocation.entrySet()) {
+            changedRows += writeLocation(entry.getKey(), entry.getValue());
+            onRowsWritten(entry.getValue().size());
+        }
+        return changedRows;
+    }
+
+    /**
+     * Writes the days of a batch, comparing them column by column with the stored rows
+     * straight from its arrays.  Must be called inside a transaction.
+     *
+     * @return the number of rows inserted or changed.
+     */
+    int write(ForecastBatch batch) {
+        int size = batch.size();
+        if (size == 0) {
+            return 0;
+        }
+        long[] days = new long[size];
+        long firstDay = Long.MAX_VALUE;
+        long lastDay = Long.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            days[i] = WeatherContract.getDayFromMillis(batch.dates[i] * 1000L);
+            firstDay = Math.min(firstDay, days[i]);
+            lastDay = Math.max(lastDay, days[i]);
+        }
+
+        Cursor cursor = mDb.query(WeatherEntry.TABLE_NAME,
+                BATCH_COLUMNS,
+                sLocationAndDateRangeSelection,
+                new String[]{String.valueOf(batch.locationId),
+                        String.valueOf(firstDay), String.valueOf(lastDay)},
+                null,
+                null,
+                null);
+        int changedRows = 0;
+        try {
+            Map<Long, Integer> storedDays = new HashMap<Long, Integer>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                storedDays.put(cursor.getLong(COL_DATE), cursor.getPosition());
+            }
+
+            for (int i = 0; i < size; i++) {
+                Integer position = storedDays.get(days[i]);
+                if (position == null) {
+                    SQLiteStatement insert = getInsert();
+                    insert.bindLong(1, batch.locationId);
+                    insert.bindLong(2, days[i]);
+                    bindWeather(insert, INSERT_WEATHER_OFFSET, batch, i);
+                    if (insert.executeInsert() != -1) {
+                        changedRows++;
+                    }
+                    continue;
+                }
+
+                cursor.moveToPosition(position);
+                int changedColumns = getChangedColumns(cursor, batch, i);
+                if (changedColumns != 0) {
+                    SQLiteStatement update = getUpdate(changedColumns);
+                    int index = 0;
+                    for (int column = 0; column < NUM_WEATHER_COLUMNS; column++) {
+                        if ((changedColumns & (1 << column)) != 0) {
+                            bindWeatherColumn(update, ++index, column, batch, i);
+                        }
+                    }
+                    update.bindLong(index + 1, cursor.getLong(COL_ID));
+                    changedRows += update.executeUpdateDelete();
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        onRowsWritten(size);
+        return changedRows;
+    }
+
+    /**
+     * Counts the rows of a location or batch just written, yielding the transaction once
+     * {@link #CHUNK_SIZE} of them are reached.  Only between them, so no one ever sees half
+     * of a forecast.
+     */
+    private void onRowsWritten(int rows) {
+        mRowsSinceYield += rows;
+        if (mRowsSinceYield >= CHUNK_SIZE) {
+            mDb.yieldIfContendedSafely();
+            mRowsSinceYield = 0;
+        }
+    }
+
+    /**
+     * @return the set of weather columns in which day i of the batch differs from the row
+     * the cursor is on, 0 if it's the same day.
+     */
+    private static int getChangedColumns(Cursor stored, ForecastBatch batch, int i) {
+        boolean[] changed = {
+                stored.getLong(COL_WEATHER_ID) != batch.weatherIds[i],
+                !sameValue(stored, COL_SHORT_DESC, batch.descriptions[i]),
+                stored.getDouble(COL_MIN_TEMP) != batch.min[i],
+                stored.getDouble(COL_MAX_TEMP) != batch.max[i],
+                stored.getDouble(COL_HUMIDITY) != batch.humidity[i],
+                stored.getDouble(COL_PRESSURE) != batch.pressure[i],
+                stored.getDouble(COL_WIND_SPEED) != batch.wind[i],
+                stored.getDouble(COL_DEGREES) != batch.degrees[i]
+        };
+        int changedColumns = 0;
+        for (int column = 0; column < changed.length; column++) {
+            if (changed[column]) {
+                changedColumns |= 1 << column;
+            }
+        }
+        return changedColumns;
+    }
+
+    /**
+     * Binds the weather columns of day i of the batch, the ones after the date in
+     * INSERT_COLUMNS.
+     *
+     * @param offset the number of parameters before them in the statement
+     */
+    private static void bindWeather(SQLiteStatement statement, int offset,
+                                    ForecastBatch batch, int i) {
+        for (int column = 0; column < NUM_WEATHER_COLUMNS; column++) {
+            bindWeatherColumn(statement, offset + column + 1, column, batch, i);
+        }
+    }
+
+    /**
+     * Binds weather column {@code column} of day i of the batch to parameter {@code index}.
+     */
+    private static void bindWeatherColumn(SQLiteStatement statement, int index, int column,
+                                          ForecastBatch batch, int i) {
+        switch (column) {
+            case 0:
+                statement.bindLong(index, batch.weatherIds[i]);
+                break;
+            case 1:
+                if (batch.descriptions[i] == null) {
+                    statement.bindNull(index);
+                } else {
+                    statement.bindString(index, batch.descriptions[i]);
+                }
+                break;
+            case 2:
+                statement.bindDouble(index, batch.min[i]);
+                break;
+            case 3:
+                statement.bindDouble(index, batch.max[i]);
+                break;
+            case 4:
+                statement.bindLong(index, batch.humidity[i]);
+                break;
+            case 5:
+                statement.bindDouble(index, batch.pressure[i]);
+                break;
+            case 6:
+                statement.bindDouble(index, batch.wind[i]);
+                break;
+            default:
+                statement.bindDouble(index, batch.degrees[i]);
+                break;
+        }
+    }
+
+    private SQLiteStatement getInsert() {
+        if (mInsert == null) {
+            mInsert = mDb.compileStatement(sInsertSql);
+        }
+        return mInsert;
+    }
+
+    /**
+     * @return an UPDATE of the weather columns in the set, in their order, by _id.
+     */
+    private SQLiteStatement getUpdate(int changedColumns) {
+        SQLiteStatement update = mUpdates.get(changedColumns);
+        if (update == null) {
+            StringBuilder sql = new StringBuilder("UPDATE " + WeatherEntry.TABLE_NAME + " SET ");
+            String separator = "";
+            for (int column = 0; column < NUM_WEATHER_COLUMNS; column++) {
+                if ((changedColumns & (1 << column)) != 0) {
+                    sql.append(separator)
+                            .append(INSERT_COLUMNS[INSERT_WEATHER_OFFSET + column])
+                            .append(" = ?");
+                    separator = ", ";
+                }
+            }
+            sql.append(" WHERE ").append(sIdSelection);
+            update = mDb.compileStatement(sql.toString());
+            mUpdates.put(changedColumns, update);
+        }
+        return update;
+    }
+
+    /**
+     * Inserts a day, through the compiled INSERT if it has exactly its columns.
+     *
+     * @return false if the row couldn't be inserted.
+     */
+    private boolean insertDay(ContentValues day) {
+        if (day.size() != INSERT_COLUMNS.length) {
+            return mDb.insert(WeatherEntry.TABLE_NAME, null, day) != -1;
+        }
+        for (String column : INSERT_COLUMNS) {
+            if (!day.containsKey(column)) {
+                return mDb.insert(WeatherEntry.TABLE_NAME, null, day) != -1;
+            }
+        }
+        SQLiteStatement insert = getInsert();
+        for (int i = 0; i < INSERT_COLUMNS.length; i++) {
+            bindValue(insert, i + 1, day.get(INSERT_COLUMNS[i]));
+        }
+        return insert.executeInsert() != -1;
+    }
+
+    private int writeLocation(Long locationId, List<ContentValues> days) {
+        long firstDay = Long.MAX_VALUE;
+        long lastDay = Long.MIN_VALUE;
+        for (ContentValues day : days) {
+            long date = day.getAsLong(WeatherEntry.COLUMN_DATE);
+            firstDay = Math.min(firstDay, date);
+            lastDay = Math.max(lastDay, date);
+        }
+
+        Cursor cursor = mDb.query(WeatherEntry.TABLE_NAME,
+                null,
+                sLocationAndDateRangeSelection,
+                new String[]{String.valueOf(locationId),
+                        String.valueOf(firstDay), String.valueOf(lastDay)},
+                null,
+                null,
+                null);
+        int changedRows = 0;
+        try {
+            // Position of each stored day in the cursor, by date.
+            Map<Long, Integer> storedDays = new HashMap<Long, Integer>(cursor.getCount());
+            int dateIndex = cursor.getColumnIndex(WeatherEntry.COLUMN_DATE);
+            while (cursor.moveToNext()) {
+                storedDays.put(cursor.getLong(dateIndex), cursor.getPosition());
+            }
+
+            int idIndex = cursor.getColumnIndex(WeatherEntry._ID);
+            for (ContentValues day : days) {
+                Integer position = storedDays.get(day.getAsLong(WeatherEntry.COLUMN_DATE));
+                if (position == null) {
+                    if (insertDay(day)) {
+                        changedRows++;
+                    }
+                    continue;
+                }
+
+                cursor.moveToPosition(position);
+                ContentValues changes = getChanges(cursor, day);
+                if (changes.size() > 0) {
+                    changedRows += mDb.update(WeatherEntry.TABLE_NAME, changes, sIdSelection,
+                            new String[]{cursor.getString(idIndex)});
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return changedRows;
+    }
+
+    /**
+     * @return the values of the day that differ from the row the cursor is on.
+     */
+    private static ContentValues getChanges(Cursor stored, ContentValues day) {
+        ContentValues changes = new ContentValues();
+        for (Map.Entry<String, Object> entry : day.valueSet()) {
+            int index = stored.getColumnIndex(entry.getKey());
+            if (index == -1 || !sameValue(stored, index, entry.getValue())) {
+                putValue(changes, entry.getKey(), entry.getValue());
+            }
+        }
+        return changes;
+    }
+
+    private static boolean sameValue(Cursor stored, int index, Object value) {
+        switch (stored.getType(index)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return value == null;
+            case Cursor.FIELD_TYPE_INTEGER:
+                if (value instanceof Double || value instanceof Float) {
+                    // SQLite stores whole reals in INTEGER columns as integers.
+                    return stored.getLong(index) == ((Number) value).doubleValue();
+                }
+                return value instanceof Number
+                        && stored.getLong(index) == ((Number) value).longValue();
+            case Cursor.FIELD_TYPE_FLOAT:
+                return value instanceof Number
+                        && stored.getDouble(index) == ((Number) value).doubleValue();
+            default:
+                return value != null && value.toString().equals(stored.getString(index));
+        }
+    }
+
+    private static void putValue(ContentValues values, String key, Object value) {
+        if (value == null) {
+            values.putNull(key);
+        } else if (value instanceof Double || value instanceof Float) {
+            values.put(key, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            values.put(key, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            values.put(key, (Boolean) value);
+        } else if (value instanceof byte[]) {
+            values.put(key, (byte[]) value);
+        } else {
+            values.put(key, value.toString());
+        }
+    }
+
+    static void bindValue(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Double || value instanceof Float) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            statement.bindLong(index, (Boolean) value ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+}
@@ -8,20 +8,32 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
 
 public class WeatherProvider extends ContentProvider {
 
+    private static final String LOG_TAG = WeatherProvider.class.getSimpleName();
+
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
+    private LocationResolver mLocationResolver;
+    private final DatabaseStats mStats = new DatabaseStats();
+    private WalCheckpointer mCheckpointer;
 
     private static final int WEATHER = 100;
     private static final int WEATHER_WITH_LOCATION = 101;
     private static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
     private static final int LOCATION = 300;
     private static final int LOCATION_ID = 301;
+    private static final int SYNC_STATE = 400;
+    private static final int SYNC_STATE_WITH_LOCATION = 401;
+    private static final int HOURLY = 500;
+    private static final int HOURLY_WITH_LOCATION = 501;
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    // The query shapes below are also checked by QueryPlans.
+    static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
 
     static {
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
@@ -34,18 +46,42 @@ public class WeatherProvider extends ContentProvider {
                         "." + WeatherContract.LocationEntry._ID);
     }
 
-    private static final String sLocationSettingSelection =
+    static final SQLiteQueryBuilder sHourlyByLocationSettingQueryBuilder;
+
+    static {
+        sHourlyByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
+        sHourlyByLocationSettingQueryBuilder.setTables(
+                WeatherContract.HourlyEntry.TABLE_NAME + " INNER JOIN " +
+                        WeatherContract.LocationEntry.TABLE_NAME +
+                        " ON " + WeatherContract.HourlyEntry.TABLE_NAME +
+                        "." + WeatherContract.HourlyEntry.COLUMN_LOC_KEY +
+                        " = " + WeatherContract.LocationEntry.TABLE_NAME +
+                        "." + WeatherContract.LocationEntry._ID);
+    }
+
+    static final String sLocationSettingSelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
-    private static final String sLocationSettingWithStartDateSelection =
+    static final String sLocationSettingWithStartDateSelection =
+            WeatherContract.LocationEntry.TABLE_NAME +
+                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
+
+    static final String sLocationSettingAndDaySelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
-                    WeatherContract.WeatherEntry.COLUMN_DATETEXT + " >= ? ";
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
-    private static final String sLocationSettingAndDaySelection =
+    static final String sLocationSettingWithStartTimeSelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
-                    WeatherContract.WeatherEntry.COLUMN_DATETEXT + " = ? ";
+                    WeatherContract.HourlyEntry.COLUMN_TIME + " >= ? ";
+
+    static final String sHourlySortOrder =
+            WeatherContract.HourlyEntry.COLUMN_TIME + " ASC";
+
+    static final String sSyncStateLocationSettingSelection =
+            WeatherContract.SyncStateEntry.COLUMN_LOCATION_SETTING + " = ? ";
 
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
@@ -87,6 +123,32 @@ public class WeatherProvider extends ContentProvider {
         );
     }
 
+    private Cursor getHourlyByLocationSetting(Uri uri, String[] projection, String sortOrder) {
+        String locationSetting = WeatherContract.HourlyEntry.getLocationSettingFromUri(uri);
+        String startTime = WeatherContract.HourlyEntry.getStartTimeFromUri(uri);
+
+        String[] selectionArgs;
+        String selection;
+
+        if (startTime == null) {
+            selection = sLocationSettingSelection;
+            selectionArgs = new String[]{locationSetting};
+        } else {
+            selectionArgs = new String[]{locationSetting, startTime};
+            selection = sLocationSettingWithStartTimeSelection;
+        }
+
+        // Time order is the order of the (location, time) index, so it costs no sort.
+        return sHourlyByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+                projection,
+                selection,
+                selectionArgs,
+                null,
+                null,
+                sortOrder != null ? sortOrder : sHourlySortOrder
+        );
+    }
+
     private static UriMatcher buildUriMatcher() {
         // I know what you're thinking.  Why create a UriMatcher when you can use regular
         // expressions instead?  Because you're not crazy, that's why.
@@ -100,17 +162,27 @@ public class WeatherProvider extends ContentProvider {
         // For each type of URI you want to add, create a corresponding code.
         matcher.addURI(authority, WeatherContract.PATH_WEATHER, WEATHER);
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*", WEATHER_WITH_LOCATION);
-        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/*", WEATHER_WITH_LOCATION_AND_DATE);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
         matcher.addURI(authority, WeatherContract.PATH_LOCATION + "/#", LOCATION_ID);
 
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_STATE, SYNC_STATE);
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_STATE + "/*", SYNC_STATE_WITH_LOCATION);
+
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY, HOURLY);
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY + "/*", HOURLY_WITH_LOCATION);
+
         return matcher;
     }
 
     @Override
     public boolean onCreate() {
         mOpenHelper = new WeatherDbHelper(getContext());
+        mCheckpointer = new WalCheckpointer(mOpenHelper, mStats);
+        mLocationResolver = new LocationResolver(mOpenHelper);
+        // Backfills left by the last upgrade, or by a process killed halfway through them.
+        new BackfillRunner(mOpenHelper, WeatherDbHelper.BACKFILLS).runInBackground();
         return true;
     }
 
@@ -119,6 +191,7 @@ public class WeatherProvider extends ContentProvider {
                         String sortOrder) {
         // Here's the switch statement that, given a URI, will determine what kind of request it is,
         // and query the database accordingly.
+        long start = System.nanoTime();
         Cursor retCursor;
         switch (sUriMatcher.match(uri)) {
             // "weather/*/*"
@@ -170,10 +243,56 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "sync_state/*"
+            case SYNC_STATE_WITH_LOCATION: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.SyncStateEntry.TABLE_NAME,
+                        projection,
+                        sSyncStateLocationSettingSelection,
+                        new String[]{WeatherContract.SyncStateEntry.getLocationSettingFromUri(uri)},
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "sync_state"
+            case SYNC_STATE: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.SyncStateEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "hourly/*"
+            case HOURLY_WITH_LOCATION: {
+                retCursor = getHourlyByLocationSetting(uri, projection, sortOrder);
+                break;
+            }
+            // "hourly"
+            case HOURLY: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.HourlyEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
+        // The read is counted once the caller reads the first rows.
+        retCursor = new ReadTimingCursor(retCursor, mStats, System.nanoTime() - start);
         retCursor.setNotificationUri(getContext().getContentResolver(), uri);
         return retCursor;
     }
@@ -195,6 +314,13 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
             case LOCATION_ID:
                 return WeatherContract.LocationEntry.CONTENT_ITEM_TYPE;
+            case SYNC_STATE:
+                return WeatherContract.SyncStateEntry.CONTENT_TYPE;
+            case SYNC_STATE_WITH_LOCATION:
+                return WeatherContract.SyncStateEntry.CONTENT_ITEM_TYPE;
+            case HOURLY:
+            case HOURLY_WITH_LOCATION:
+                return WeatherContract.HourlyEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -217,15 +343,21 @@ public class WeatherProvider extends ContentProvider {
             }
             case LOCATION: {
                 long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
-                if (_id > 0)
+                if (_id > 0) {
+                    mLocationResolver.onInserted(
+                            values.getAsString(
+                                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING),
+                            _id,
+                            values.getAsLong(WeatherContract.LocationEntry.COLUMN_CITY_ID));
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
-                else
+                } else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
             }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
+        mCheckpointer.onWrite();
         getContext().getContentResolver().notifyChange(uri, null);
         return returnUri;
     }
@@ -243,12 +375,22 @@ public class WeatherProvider extends ContentProvider {
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                mLocationResolver.invalidate();
+                break;
+            case SYNC_STATE:
+                rowsDeleted = db.delete(
+                        WeatherContract.SyncStateEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            case HOURLY:
+                rowsDeleted = db.delete(
+                        WeatherContract.HourlyEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (selection == null || rowsDeleted != 0) {
+            mCheckpointer.onWrite();
             getContext().getContentResolver().notifyChange(uri, null);
         }
         return rowsDeleted;
@@ -269,39 +411,180 @@ public class WeatherProvider extends ContentProvider {
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                mLocationResolver.invalidate();
+                break;
+            case SYNC_STATE_WITH_LOCATION:
+                // The state row of a location is created the first time it's updated.
+                rowsUpdated = upsertSyncState(db,
+                        WeatherContract.SyncStateEntry.getLocationSettingFromUri(uri), values);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
+            mCheckpointer.onWrite();
             getContext().getContentResolver().notifyChange(uri, null);
         }
         return rowsUpdated;
     }
 
+    private int upsertSyncState(SQLiteDatabase db, String locationSetting, ContentValues values) {
+        int rowsUpdated;
+        beginWrite(db);
+        try {
+            rowsUpdated = db.update(WeatherContract.SyncStateEntry.TABLE_NAME, values,
+                    sSyncStateLocationSettingSelection, new String[]{locationSetting});
+            if (rowsUpdated == 0) {
+                ContentValues stateValues = new ContentValues(values);
+                stateValues.put(WeatherContract.SyncStateEntry.COLUMN_LOCATION_SETTING,
+                        locationSetting);
+                if (db.insert(WeatherContract.SyncStateEntry.TABLE_NAME, null, stateValues) != -1) {
+                    rowsUpdated = 1;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return rowsUpdated;
+    }
+
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
+        long start = System.nanoTime();
+        int returnCount;
         switch (match) {
-            case WEATHER:
-                db.beginTransaction();
-                int returnCount = 0;
+            case WEATHER: {
+                // Days are compared with the stored rows, so only the ones that are new or
+                // changed are written, and rows keep their _id.
+                WeatherDiffWriter writer = new WeatherDiffWriter(db);
+                beginWrite(db);
                 try {
-                    for (ContentValues value : values) {
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
-                            returnCount++;
-                        }
-                    }
+                    returnCount = writer.write(values);
                     db.setTransactionSuccessful();
                 } finally {
                     db.endTransaction();
+                    writer.close();
                 }
+                logThroughput(WeatherContract.WeatherEntry.TABLE_NAME, values.length, start);
+                // Nothing to reload if the forecast is the same.
+                if (returnCount > 0) {
+                    mCheckpointer.onWrite();
+                    getContext().getContentResolver().notifyChange(uri, null);
+                }
+                return returnCount;
+            }
+            case HOURLY: {
+                // The intraday forecast of a location is replaced as a whole.
+                HourlyWriter writer = new HourlyWriter(db);
+                beginWrite(db);
+                try {
+                    returnCount = writer.replace(values);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                    writer.close();
+                }
+                logThroughput(WeatherContract.HourlyEntry.TABLE_NAME, values.length, start);
+                mCheckpointer.onWrite();
                 getContext().getContentResolver().notifyChange(uri, null);
                 return returnCount;
+            }
             default:
                 return super.bulkInsert(uri, values);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Begins a write transaction, counting the time it waited for the write lock.  Readers
+     * aren't locked out by it, they read the last commit from the write-ahead log.
+     */
+    private void beginWrite(SQLiteDatabase db) {
+        long start = System.nanoTime();
+        db.beginTransactionNonExclusive();
+        mStats.onWriteLockWait(System.nanoTime() - start);
+    }
+
+    /**
+     * Logs how fast a bulk write went through, counting every row handed in, written
+     * or not, so runs over the same data can be compared.
+     */
+    private static void logThroughput(String table, int rows, long startNanos) {
+        long nanos = Math.max(System.nanoTime() - startNanos, 1);
+        Log.d(LOG_TAG, "Bulk write to " + table + ": " + rows + " rows in "
+                + (nanos / 1000000) + " ms, " + (rows * 1000000000L / nanos) + " rows/s");
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.LocationEntry.METHOD_RESOLVE_LOCATION.equals(method)) {
+            return resolveLocation(arg, extras);
+        }
+        if (WeatherContract.DatabaseStatsEntry.METHOD_GET_DATABASE_STATS.equals(method)) {
+            return mStats.toBundle();
+        }
+        if (WeatherContract.MaintenanceEntry.METHOD_RUN_MAINTENANCE.equals(method)) {
+            return runMaintenance(extras);
+        }
+        if (!WeatherContract.WeatherEntry.METHOD_INSERT_BATCH.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+        // A ForecastBatch travels as a Bundle of arrays, with no ContentValues per day.
+        ForecastBatch batch = ForecastBatch.fromBundle(extras);
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long start = System.nanoTime();
+        WeatherDiffWriter writer = new WeatherDiffWriter(db);
+        beginWrite(db);
+        int returnCount;
+        try {
+            returnCount = writer.write(batch);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            writer.close();
+        }
+        logThroughput(WeatherContract.WeatherEntry.TABLE_NAME, batch.size(), start);
+        if (returnCount > 0) {
+            mCheckpointer.onWrite();
+            getContext().getContentResolver().notifyChange(
+                    WeatherContract.WeatherEntry.CONTENT_URI, null);
+        }
+        Bundle result = new Bundle();
+        result.putInt(WeatherContract.WeatherEntry.KEY_ROWS_CHANGED, returnCount);
+        return result;
+    }
+
+    private Bundle runMaintenance(Bundle extras) {
+        int retentionDays = extras != null ? extras.getInt(
+                WeatherContract.MaintenanceEntry.KEY_RETENTION_DAYS,
+                WeatherContract.MaintenanceEntry.DEFAULT_RETENTION_DAYS)
+                : WeatherContract.MaintenanceEntry.DEFAULT_RETENTION_DAYS;
+        Bundle result = DatabaseMaintenance.run(mOpenHelper.getWritableDatabase(),
+                WeatherContract.getDayFromMillis(System.currentTimeMillis()), retentionDays);
+        // The vacuum went through the log; it can go back into the database.
+        mCheckpointer.onWrite();
+        if (result.getInt(WeatherContract.MaintenanceEntry.KEY_ROWS_PURGED) > 0) {
+            getContext().getContentResolver().notifyChange(
+                    WeatherContract.WeatherEntry.CONTENT_URI, null);
+        }
+        return result;
+    }
+
+    private Bundle resolveLocation(String locationSetting, Bundle extras) {
+        ContentValues values = extras != null ? extras.<ContentValues>getParcelable(
+                WeatherContract.LocationEntry.KEY_LOCATION_VALUES) : null;
+        long locationId = mLocationResolver.getId(locationSetting);
+        if (locationId == -1 && values != null) {
+            locationId = mLocationResolver.insertIfAbsent(locationSetting, values);
+            getContext().getContentResolver().notifyChange(
+                    WeatherContract.LocationEntry.CONTENT_URI, null);
+        }
+        Bundle result = new Bundle();
+        result.putLong(WeatherContract.LocationEntry.KEY_LOCATION_ID, locationId);
+        result.putLong(WeatherContract.LocationEntry.KEY_CITY_ID,
+                mLocationResolver.getCityId(locationSetting));
+        return result;
+    }
+}
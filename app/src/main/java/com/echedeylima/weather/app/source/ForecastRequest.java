@@ -0,0 +1,26 @@
+package com.echedeylima.weather.app.source;
+
+/**
+ * What a {@link WeatherSource} is asked for.
+ */
+public class ForecastRequest {
+
+    public final String locationSetting;
+    public final int numDays;
+    public final String units;
+
+    // The id of the city upstream, if it's known, 0 otherwise.  A source should prefer it
+    // to the location setting, which has to be looked up.
+    public long cityId;
+
+    // Validators of the forecast already stored, if any.  A source may answer with
+    // a "not modified" response when they still match.
+    public String etag;
+    public String lastModified;
+
+    public ForecastRequest(String locationSetting, int numDays, String units) {
+        this.locationSetting = locationSetting;
+        this.numDays = numDays;
+        this.units = units;
+    }
+}
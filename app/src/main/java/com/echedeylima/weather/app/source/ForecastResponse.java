@@ -0,0 +1,84 @@
+package com.echedeylima.weather.app.source;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * What a {@link WeatherSource} answers: either the forecast body, along with the
+ * validators that identify it, or "not modified".
+ */
+public class ForecastResponse implements Closeable {
+
+    private final ResponseBody mBody;
+    private final String mEtag;
+    private final String mLastModified;
+
+    public ForecastResponse(ResponseBody body, String etag, String lastModified) {
+        mBody = body;
+        mEtag = etag;
+        mLastModified = lastModified;
+    }
+
+    /**
+     * @return a response telling the stored forecast is still current.
+     */
+    public static ForecastResponse notModified() {
+        return new ForecastResponse(null, null, null);
+    }
+
+    public boolean isNotModified() {
+        return mBody == null;
+    }
+
+    /**
+     * @return the decompressed forecast JSON, or null if not modified.
+     */
+    public InputStream getStream() {
+        return mBody == null ? null : mBody.getStream();
+    }
+
+    public String getEtag() {
+        return mEtag;
+    }
+
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * @return the number of bytes received so far, possibly compressed.
+     */
+    public long getWireBytes() {
+        return mBody == null ? 0 : mBody.getWireBytes();
+    }
+
+    /**
+     * @return the number of decompressed bytes read from {@link #getStream()} so far.
+     */
+    public long getDecodedBytes() {
+        return mBody == null ? 0 : mBody.getDecodedBytes();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mBody != null) {
+            mBody.close();
+        }
+    }
+
+    /**
+     * Gives up on the response, e.g. because the sync reading it was cancelled.  May be
+     * called from any thread, while the body is being read: a read blocked on the network
+     * fails instead of waiting for its timeout.  The response must still be closed.
+     */
+    public void abort() {
+        if (mBody != null) {
+            try {
+                mBody.close();
+            } catch (IOException e) {
+                // Nothing left to read anyway.
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.echedeylima.weather.app.source;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The HTTP layer shared by every forecast request.
+ * <p/>
+ * HttpURLConnection keeps a pool of keep-alive sockets per host, but a socket only goes
+ * back to it when the body has been read to the end and closed, and never after
+ * {@link HttpURLConnection#disconnect()}.  Requests opened and released through this
+ * class follow those rules, so back to back requests for many locations pay for the DNS
+ * lookup and the TCP handshake once instead of once per location.
+ * <p/>
+ * The platform connection doesn't multiplex requests, so each concurrent request still
+ * holds a socket of its own; the pool is sized for the sync's parallelism.
+ */
+public class HttpClient {
+
+    private static final String LOG_TAG = HttpClient.class.getSimpleName();
+
+    // Idle sockets kept per host.  Enough for the preferred location's lane plus the
+    // workers of a multi-location sync.
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    private static final int READ_TIMEOUT_MILLIS = 30 * 1000;
+
+    // A body with more than this left unread isn't worth draining to save a socket.
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    // A socket released this recently is most likely still in the pool, so there's no
+    // point in pre-connecting.
+    private static final long RECENT_RELEASE_MILLIS = 15 * 1000;
+
+    private static HttpClient sInstance;
+
+    private final ExecutorService mPreconnectExecutor;
+    private volatile long mLastReleaseTime;
+
+    private HttpClient() {
+        // These are read by the platform when the first connection is made.
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", Integer.toString(MAX_IDLE_CONNECTIONS));
+
+        mPreconnectExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "HttpClient preconnect");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public static synchronized HttpClient getInstance() {
+        if (sInstance == null) {
+            sInstance = new HttpClient();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Opens a GET request with the client's timeouts.  The caller adds its own headers,
+     * connects, and hands the connection to {@link #release} or {@link #abort} once done.
+     */
+    public HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("GET");
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        return connection;
+    }
+
+    /**
+     * Returns the socket of a finished request to the pool.  Whatever is left of the body
+     * is read first; if there's too much left the socket is closed instead.
+     *
+     * @param body the body of the connection, or null if it hasn't been opened.
+     */
+    public void release(HttpURLConnection connection, ResponseBody body) throws IOException {
+        boolean drained;
+        if (body != null) {
+            drained = body.drainAndClose(MAX_DRAIN_BYTES);
+        } else {
+            drained = drainAndClose(connection);
+        }
+        if (drained) {
+            mLastReleaseTime = SystemClock.elapsedRealtime();
+        } else {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Gives up on a request that failed; its socket is closed, not pooled.
+     */
+    public void abort(HttpURLConnection connection) {
+        connection.disconnect();
+    }
+
+    /**
+     * Resolves the host of a URL and opens a pooled connection to it in the background,
+     * so the requests that follow find a warm socket.  Call it as early as possible,
+     * while the rest of the work that precedes the requests is being done.
+     */
+    public void preconnect(final URL url) {
+        if (SystemClock.elapsedRealtime() - mLastReleaseTime < RECENT_RELEASE_MILLIS) {
+            return;
+        }
+        mPreconnectExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                HttpURLConnection connection = null;
+                try {
+                    InetAddress.getAllByName(url.getHost());
+                    connection = open(url);
+                    connection.setRequestMethod("HEAD");
+                    connection.connect();
+                    // Whatever the status, the answer has to be consumed for the
+                    // socket to be kept.
+                    connection.getResponseCode();
+                    release(connection, null);
+                } catch (IOException e) {
+                    Log.d(LOG_TAG, "Preconnect to " + url.getHost() + " failed", e);
+                    if (connection != null) {
+                        abort(connection);
+                    }
+                }
+            }
+        });
+    }
+
+    private static boolean drainAndClose(HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getResponseCode() < HttpURLConnection.HTTP_BAD_REQUEST
+                ? connection.getInputStream()
+                : connection.getErrorStream();
+        if (in == null) {
+            // No body at all, e.g. a HEAD request or a 304.
+            return true;
+        }
+        try {
+            return ResponseBody.drain(in, MAX_DRAIN_BYTES);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.echedeylima.weather.app.source;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * Fetches the forecasts from the OpenWeatherMap API.
+ */
+public class HttpWeatherSource implements WeatherSource {
+
+    private static final String LOG_TAG = HttpWeatherSource.class.getSimpleName();
+
+    // Possible parameters are avaiable at OWM's forecast API page, at
+    // http://openweathermap.org/API#forecast
+    public static final String OWM_BASE_URL = "http://api.openweathermap.org/data/2.5/";
+
+    private static final String DAILY_FORECAST_PATH = "forecast/daily";
+    private static final String HOURLY_FORECAST_PATH = "forecast";
+    private static final String QUERY_PARAM = "q";
+    private static final String CITY_ID_PARAM = "id";
+    private static final String FORMAT_PARAM = "mode";
+    private static final String UNITS_PARAM = "units";
+    private static final String DAYS_PARAM = "cnt";
+
+    private static final String FORMAT = "json";
+
+    private final String mBaseUrl;
+
+    public HttpWeatherSource() {
+        this(OWM_BASE_URL);
+    }
+
+    /**
+     * @param baseUrl the root of the API, ending with a slash.
+     */
+    public HttpWeatherSource(String baseUrl) {
+        mBaseUrl = baseUrl;
+    }
+
+    @Override
+    public ForecastResponse fetchDailyForecast(ForecastRequest request) throws IOException {
+        // Construct the URL for the OpenWeatherMap query
+        Uri builtUri = appendCity(Uri.parse(mBaseUrl + DAILY_FORECAST_PATH).buildUpon(),
+                request)
+                .appendQueryParameter(FORMAT_PARAM, FORMAT)
+                .appendQueryParameter(UNITS_PARAM, request.units)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(request.numDays))
+                .build();
+
+        return fetch(new URL(builtUri.toString()), request);
+    }
+
+    @Override
+    public ForecastResponse fetchHourlyForecast(ForecastRequest request) throws IOException {
+        // The 3-hourly forecast always covers 5 days, so there is no count to ask for.
+        Uri builtUri = appendCity(Uri.parse(mBaseUrl + HOURLY_FORECAST_PATH).buildUpon(),
+                request)
+                .appendQueryParameter(FORMAT_PARAM, FORMAT)
+                .appendQueryParameter(UNITS_PARAM, request.units)
+                .build();
+
+        return fetch(new URL(builtUri.toString()), request);
+    }
+
+    /**
+     * Names the city by its id once it's known: the API doesn't have to look it up, and
+     * can't resolve it to a different place than the first time.
+     */
+    private static Uri.Builder appendCity(Uri.Builder builder, ForecastRequest request) {
+        if (request.cityId != 0) {
+            return builder.appendQueryParameter(CITY_ID_PARAM, Long.toString(request.cityId));
+        }
+        return builder.appendQueryParameter(QUERY_PARAM, request.locationSetting);
+    }
+
+    private ForecastResponse fetch(URL url, ForecastRequest request) throws IOException {
+        // Create the request to OpenWeatherMap, and open the connection.  The connection
+        // comes from the shared client, so it may reuse a pooled socket.
+        final HttpClient client = HttpClient.getInstance();
+        final HttpURLConnection urlConnection = client.open(url);
+        boolean opened = false;
+        try {
+            ResponseBody.acceptGzip(urlConnection);
+            if (request.etag != null) {
+                urlConnection.setRequestProperty("If-None-Match", request.etag);
+            }
+            if (request.lastModified != null) {
+                urlConnection.setRequestProperty("If-Modified-Since", request.lastModified);
+            }
+            urlConnection.connect();
+
+            if (urlConnection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                client.release(urlConnection, null);
+                opened = true;
+                return ForecastResponse.notModified();
+            }
+
+            // The body is decompressed as it's read, on its way to the caller.
+            final ResponseBody body = ResponseBody.open(urlConnection);
+            ForecastResponse response = new ForecastResponse(
+                    body,
+                    urlConnection.getHeaderField("ETag"),
+                    urlConnection.getHeaderField("Last-Modified")) {
+                private volatile boolean mAborted;
+
+                @Override
+                public void close() throws IOException {
+                    // Hands the socket back to the pool rather than disconnecting.  An
+                    // aborted socket is already closed.
+                    if (!mAborted) {
+                        client.release(urlConnection, body);
+                    }
+                }
+
+                @Override
+                public void abort() {
+                    // Closing the socket is the only way to end a read blocked on it.
+                    mAborted = true;
+                    client.abort(urlConnection);
+                }
+            };
+            opened = true;
+            return response;
+        } finally {
+            if (!opened) {
+                client.abort(urlConnection);
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return mBaseUrl;
+    }
+
+    @Override
+    public void preconnect() {
+        try {
+            HttpClient.getInstance().preconnect(new URL(mBaseUrl));
+        } catch (MalformedURLException e) {
+            Log.w(LOG_TAG, "Can't preconnect to " + mBaseUrl, e);
+        }
+    }
+}
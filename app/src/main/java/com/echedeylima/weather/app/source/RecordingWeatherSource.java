@@ -0,0 +1,247 @@
+package com.echedeylima.weather.app.source;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Decorates another {@link WeatherSource}, saving every forecast it returns so that
+ * a {@link ReplayWeatherSource} can serve it later.
+ * <p/>
+ * The body is copied to disk as the caller reads it, so recording doesn't change how
+ * the response is consumed.  Whatever the caller leaves unread is read into the recording
+ * when the response is closed, unless it was aborted.  A recording only replaces the
+ * previous one for the same request once the body has been read to the end.
+ */
+public class RecordingWeatherSource implements WeatherSource {
+
+    private static final String LOG_TAG = RecordingWeatherSource.class.getSimpleName();
+
+    static final String HEADER_ETAG = "ETag";
+    static final String HEADER_LAST_MODIFIED = "Last-Modified";
+
+    // The most of a body left unread worth reading to finish its recording.  Parsers stop
+    // at the end of the JSON, so usually no more than a newline is left.
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    // What a recording holds, the first part of its name.
+    static final String DAILY = "daily";
+    static final String HOURLY = "hourly";
+
+    private final WeatherSource mSource;
+    private final File mDirectory;
+
+    /**
+     * @param source    the source whose responses are recorded
+     * @param directory where the recordings are written
+     */
+    public RecordingWeatherSource(WeatherSource source, File directory) {
+        mSource = source;
+        mDirectory = directory;
+    }
+
+    /**
+     * @return the file holding the recorded body for a request.
+     */
+    static File getBodyFile(File directory, String kind, ForecastRequest request) {
+        return new File(directory, getRecordingName(kind, request) + ".json");
+    }
+
+    /**
+     * @return the file holding the recorded validators for a request.
+     */
+    static File getHeadersFile(File directory, String kind, ForecastRequest request) {
+        return new File(directory, getRecordingName(kind, request) + ".properties");
+    }
+
+    private static String getRecordingName(String kind, ForecastRequest request) {
+        String name = kind + "_" + request.locationSetting + "_" + request.numDays + "_"
+                + request.units;
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    @Override
+    public ForecastResponse fetchDailyForecast(ForecastRequest request) throws IOException {
+        return record(DAILY, request, mSource.fetchDailyForecast(request));
+    }
+
+    @Override
+    public ForecastResponse fetchHourlyForecast(ForecastRequest request) throws IOException {
+        return record(HOURLY, request, mSource.fetchHourlyForecast(request));
+    }
+
+    private ForecastResponse record(final String kind, final ForecastRequest request,
+                                    final ForecastResponse response) throws IOException {
+        if (response.isNotModified()) {
+            return response;
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(LOG_TAG, "Can't create " + mDirectory + ", not recording");
+            return response;
+        }
+
+        final File bodyFile = getBodyFile(mDirectory, kind, request);
+        final File partialFile = new File(bodyFile.getPath() + ".part");
+        final RecordingInputStream recordingStream = new RecordingInputStream(
+                response.getStream(), new FileOutputStream(partialFile));
+
+        return new ForecastResponse(null, response.getEtag(), response.getLastModified()) {
+            private volatile boolean mAborted;
+
+            @Override
+            public boolean isNotModified() {
+                return false;
+            }
+
+            @Override
+            public InputStream getStream() {
+                return recordingStream;
+            }
+
+            @Override
+            public long getWireBytes() {
+                return response.getWireBytes();
+            }
+
+            @Override
+            public long getDecodedBytes() {
+                return response.getDecodedBytes();
+            }
+
+            @Override
+            public void abort() {
+                mAborted = true;
+                response.abort();
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    // Releasing the response drains the body past the recording, so the
+                    // rest of it is read through the recording first.
+                    if (!mAborted && !recordingStream.mComplete) {
+                        drainRecording(recordingStream);
+                    }
+                    response.close();
+                } finally {
+                    recordingStream.closeRecording();
+                    if (recordingStream.mComplete) {
+                        saveHeaders(kind, request, response);
+                        if (!partialFile.renameTo(bodyFile)) {
+                            Log.w(LOG_TAG, "Can't save recording " + bodyFile);
+                        }
+                    } else {
+                        // Don't keep a truncated body around, it would replay as an error.
+                        partialFile.delete();
+                    }
+                }
+            }
+        };
+    }
+
+    private static void drainRecording(RecordingInputStream recordingStream) {
+        try {
+            ResponseBody.drain(recordingStream, MAX_DRAIN_BYTES);
+        } catch (IOException e) {
+            // The recording stays incomplete and is dropped; the response is still
+            // released.
+            Log.w(LOG_TAG, "Can't read the rest of the body to record it", e);
+        }
+    }
+
+    @Override
+    public void preconnect() {
+        mSource.preconnect();
+    }
+
+    @Override
+    public String getName() {
+        return mSource.getName();
+    }
+
+    private void saveHeaders(String kind, ForecastRequest request, ForecastResponse response)
+            throws IOException {
+        Properties headers = new Properties();
+        if (response.getEtag() != null) {
+            headers.setProperty(HEADER_ETAG, response.getEtag());
+        }
+        if (response.getLastModified() != null) {
+            headers.setProperty(HEADER_LAST_MODIFIED, response.getLastModified());
+        }
+        OutputStream out = new FileOutputStream(getHeadersFile(mDirectory, kind, request));
+        try {
+            headers.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Copies everything read from a stream to an output stream.
+     */
+    private static class RecordingInputStream extends FilterInputStream {
+        private final OutputStream mRecording;
+        private boolean mRecordingClosed;
+        boolean mComplete;
+
+        RecordingInputStream(InputStream in, OutputStream recording) {
+            super(in);
+            mRecording = recording;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                mComplete = true;
+            } else {
+                mRecording.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read == -1) {
+                mComplete = true;
+            } else {
+                mRecording.write(buffer, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // Skipped bytes must still end up in the recording.
+            byte[] buffer = new byte[(int) Math.min(count, 4096)];
+            long skipped = 0;
+            while (skipped < count) {
+                int read = read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+                if (read == -1) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        void closeRecording() throws IOException {
+            if (!mRecordingClosed) {
+                mRecordingClosed = true;
+                mRecording.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.echedeylima.weather.app.source;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Serves the forecasts saved by a {@link RecordingWeatherSource}, without touching
+ * the network.
+ * <p/>
+ * The recorded validators are honoured, so a request carrying the validators of the
+ * recording gets a "not modified" response, just like it would from the live API.
+ */
+public class ReplayWeatherSource implements WeatherSource {
+
+    private final File mDirectory;
+
+    /**
+     * @param directory where the recordings were written
+     */
+    public ReplayWeatherSource(File directory) {
+        mDirectory = directory;
+    }
+
+    @Override
+    public ForecastResponse fetchDailyForecast(ForecastRequest request) throws IOException {
+        return replay(RecordingWeatherSource.DAILY, request);
+    }
+
+    @Override
+    public ForecastResponse fetchHourlyForecast(ForecastRequest request) throws IOException {
+        return replay(RecordingWeatherSource.HOURLY, request);
+    }
+
+    private ForecastResponse replay(String kind, ForecastRequest request) throws IOException {
+        File bodyFile = RecordingWeatherSource.getBodyFile(mDirectory, kind, request);
+        if (!bodyFile.isFile()) {
+            throw new FileNotFoundException("No recording for " + request.locationSetting
+                    + " in " + mDirectory);
+        }
+
+        Properties headers = loadHeaders(
+                RecordingWeatherSource.getHeadersFile(mDirectory, kind, request));
+        String etag = headers.getProperty(RecordingWeatherSource.HEADER_ETAG);
+        String lastModified = headers.getProperty(RecordingWeatherSource.HEADER_LAST_MODIFIED);
+        if ((etag != null && etag.equals(request.etag))
+                || (lastModified != null && lastModified.equals(request.lastModified))) {
+            return ForecastResponse.notModified();
+        }
+
+        InputStream in = new BufferedInputStream(new FileInputStream(bodyFile));
+        return new ForecastResponse(ResponseBody.wrap(in, false), etag, lastModified);
+    }
+
+    @Override
+    public void preconnect() {
+        // Recordings are local files, there's nothing to connect to.
+    }
+
+    @Override
+    public String getName() {
+        return mDirectory.toURI().toString();
+    }
+
+    private static Properties loadHeaders(File headersFile) throws IOException {
+        Properties headers = new Properties();
+        if (headersFile.isFile()) {
+            InputStream in = new FileInputStream(headersFile);
+            try {
+                headers.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return headers;
+    }
+}
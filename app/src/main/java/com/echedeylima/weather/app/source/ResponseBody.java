@@ -0,0 +1,146 @@
+package com.echedeylima.weather.app.source;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The body of a forecast response.
+ * <p/>
+ * Compression is negotiated explicitly instead of being left to the platform, which
+ * only does it on some releases and hides the compressed size when it does.  The body
+ * is decompressed as it's read, and both the bytes received and the bytes handed to
+ * the reader are counted.
+ */
+public class ResponseBody {
+
+    private static final String GZIP = "gzip";
+    private static final int GZIP_BUFFER_SIZE = 8192;
+
+    private final CountingInputStream mWireStream;
+    private final CountingInputStream mDecodedStream;
+
+    private ResponseBody(CountingInputStream wireStream, CountingInputStream decodedStream) {
+        mWireStream = wireStream;
+        mDecodedStream = decodedStream;
+    }
+
+    /**
+     * Asks the server for a gzip encoded response.  Must be called before connecting.
+     */
+    public static void acceptGzip(HttpURLConnection connection) {
+        connection.setRequestProperty("Accept-Encoding", GZIP);
+    }
+
+    /**
+     * Opens the body of a connection, decompressing it if the server gzipped it.
+     */
+    public static ResponseBody open(HttpURLConnection connection) throws IOException {
+        return wrap(connection.getInputStream(),
+                GZIP.equalsIgnoreCase(connection.getContentEncoding()));
+    }
+
+    /**
+     * Wraps a body that doesn't come from a connection, such as a recorded one.
+     *
+     * @param gzipped whether the stream has to be decompressed
+     */
+    public static ResponseBody wrap(InputStream in, boolean gzipped) throws IOException {
+        CountingInputStream wireStream = new CountingInputStream(in);
+        InputStream decodedStream = wireStream;
+        if (gzipped) {
+            decodedStream = new GZIPInputStream(wireStream, GZIP_BUFFER_SIZE);
+        }
+        return new ResponseBody(wireStream, new CountingInputStream(decodedStream));
+    }
+
+    /**
+     * @return the decompressed body.
+     */
+    public InputStream getStream() {
+        return mDecodedStream;
+    }
+
+    /**
+     * @return the number of bytes read from the connection so far.
+     */
+    public long getWireBytes() {
+        return mWireStream.mCount;
+    }
+
+    /**
+     * @return the number of decompressed bytes read from {@link #getStream()} so far.
+     */
+    public long getDecodedBytes() {
+        return mDecodedStream.mCount;
+    }
+
+    public void close() throws IOException {
+        mDecodedStream.close();
+    }
+
+    /**
+     * Reads whatever is left of the body, as received, and closes it.  A keep-alive
+     * socket can only be reused once the body it carries has been read to the end.
+     *
+     * @param maxBytes the most bytes worth reading to get there
+     * @return true if the end of the body was reached.
+     */
+    public boolean drainAndClose(int maxBytes) throws IOException {
+        try {
+            return drain(mWireStream, maxBytes);
+        } finally {
+            close();
+        }
+    }
+
+    static boolean drain(InputStream in, int maxBytes) throws IOException {
+        byte[] buffer = new byte[4096];
+        int drained = 0;
+        int count;
+        while (drained <= maxBytes && (count = in.read(buffer)) != -1) {
+            drained += count;
+        }
+        return drained <= maxBytes;
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            mCount += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
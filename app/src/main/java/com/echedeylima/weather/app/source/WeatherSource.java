@@ -0,0 +1,46 @@
+package com.echedeylima.weather.app.source;
+
+import java.io.IOException;
+
+/**
+ * Where the raw forecasts come from.
+ * <p/>
+ * The sync code only sees this interface, so the live API can be swapped for recorded
+ * responses to run the whole ingest path offline, with repeatable timings.
+ *
+ * @see HttpWeatherSource
+ * @see RecordingWeatherSource
+ * @see ReplayWeatherSource
+ */
+public interface WeatherSource {
+
+    /**
+     * Fetches the daily forecast of a location.  The caller must close the response.
+     *
+     * @param request the location to fetch, and the validators of the copy already stored
+     * @return the forecast, or a response for which {@link ForecastResponse#isNotModified()}
+     * is true if the stored copy is still current.
+     * @throws IOException if the forecast can't be fetched
+     */
+    ForecastResponse fetchDailyForecast(ForecastRequest request) throws IOException;
+
+    /**
+     * Fetches the 3-hourly forecast of a location, for the next 5 days.  The number of
+     * days of the request is ignored.  The caller must close the response.
+     *
+     * @see #fetchDailyForecast(ForecastRequest)
+     */
+    ForecastResponse fetchHourlyForecast(ForecastRequest request) throws IOException;
+
+    /**
+     * Hints that requests are about to be made, so the source can get ready for them in
+     * the background, e.g. by opening a connection.  Returns immediately.
+     */
+    void preconnect();
+
+    /**
+     * @return what the source fetches from, e.g. the base URL of an API.  Failures are
+     * tracked per name, so sources that share an upstream should share a name.
+     */
+    String getName();
+}
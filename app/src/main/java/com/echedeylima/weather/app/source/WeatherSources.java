@@ -0,0 +1,40 @@
+package com.echedeylima.weather.app.source;
+
+import android.content.Context;
+
+/**
+ * Hands out the {@link WeatherSource} every fetch path uses.
+ */
+public class WeatherSources {
+
+    private static volatile WeatherSource sOverride;
+    private static WeatherSource sHttpSource;
+
+    private WeatherSources() {
+    }
+
+    /**
+     * @return the source to fetch forecasts from: the live API, unless another one has
+     * been set with {@link #setDefault(WeatherSource)}.
+     */
+    public static synchronized WeatherSource getDefault(Context context) {
+        WeatherSource override = sOverride;
+        if (override != null) {
+            return override;
+        }
+        if (sHttpSource == null) {
+            sHttpSource = new HttpWeatherSource();
+        }
+        return sHttpSource;
+    }
+
+    /**
+     * Replaces the live API, e.g. with a {@link ReplayWeatherSource} to run the ingest path
+     * offline, or a {@link RecordingWeatherSource} to capture fixtures.
+     *
+     * @param source the source to use, or null to go back to the live API.
+     */
+    public static void setDefault(WeatherSource source) {
+        sOverride = source;
+    }
+}
@@ -0,0 +1,34 @@
+package com.echedeylima.weather.app.sync;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter.
+ * <p/>
+ * Every failure in a row doubles the delay, up to a maximum.  The delay is then picked at
+ * random in its upper half, so devices that failed at the same moment, say during an
+ * outage, don't all come back at the same moment too.
+ */
+class Backoff {
+
+    private static final Random sRandom = new Random();
+
+    private Backoff() {
+    }
+
+    /**
+     * @param baseMillis the delay after the first failure, before jitter
+     * @param maxMillis  the longest delay, before jitter
+     * @param failures   the number of failures in a row, at least 1
+     * @return how long to wait before trying again.
+     */
+    static long getDelay(long baseMillis, long maxMillis, int failures) {
+        long delay = maxMillis;
+        // Past 30 doublings any sensible base is over the maximum anyway.
+        if (failures <= 30) {
+            delay = Math.min(maxMillis, baseMillis << (Math.max(failures, 1) - 1));
+        }
+        long half = delay / 2;
+        return half + (long) (sRandom.nextDouble() * (delay - half));
+    }
+}
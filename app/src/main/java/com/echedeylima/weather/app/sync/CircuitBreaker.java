@@ -0,0 +1,174 @@
+package com.echedeylima.weather.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stops syncing from a weather source that keeps failing.
+ * <p/>
+ * After {@link #FAILURE_THRESHOLD} failed requests in a row the breaker opens, and no
+ * request is made to the source until the open period, which backs off like a retry, has
+ * passed.  Then a single probe request is let through: if it succeeds the breaker closes,
+ * if it fails the breaker opens again for longer.  During an outage this keeps the radio
+ * quiet instead of failing one location after another.
+ * <p/>
+ * There is one breaker per source in the process, so syncs that overlap, say a periodic
+ * one and a manual one, count their failures together and see the same probe in flight.
+ * Its state is saved from that one instance and survives the process, so an outage isn't
+ * rediscovered on every sync.
+ */
+class CircuitBreaker {
+
+    private static final String LOG_TAG = CircuitBreaker.class.getSimpleName();
+
+    private static final String PREFS_NAME = "circuit_breakers";
+
+    // Failed requests in a row that open the breaker.
+    static final int FAILURE_THRESHOLD = 3;
+
+    // The first open period, and the longest, before jitter.
+    static final long BASE_OPEN_MILLIS = 5 * 60 * 1000L;
+    static final long MAX_OPEN_MILLIS = 6 * 60 * 60 * 1000L;
+
+    private static final String KEY_FAILURES = ".failures";
+    private static final String KEY_TRIPS = ".trips";
+    private static final String KEY_OPEN_UNTIL = ".open_until";
+
+    // The breakers read so far, by source name.  Guarded by itself.
+    private static final Map<String, CircuitBreaker> sBreakers =
+            new HashMap<String, CircuitBreaker>();
+
+    private final SharedPreferences mPrefs;
+    private final String mName;
+
+    // Guarded by this.
+    private int mFailures;
+    // Times the breaker opened since it was last closed.
+    private int mTrips;
+    // 0 while the breaker is closed.
+    private long mOpenUntil;
+    private boolean mProbeInFlight;
+    // The thread making the probe, while one is in flight.
+    private Thread mProbeThread;
+
+    private CircuitBreaker(SharedPreferences prefs, String name) {
+        mPrefs = prefs;
+        mName = name;
+        mFailures = prefs.getInt(name + KEY_FAILURES, 0);
+        mTrips = prefs.getInt(name + KEY_TRIPS, 0);
+        mOpenUntil = prefs.getLong(name + KEY_OPEN_UNTIL, 0);
+    }
+
+    /**
+     * Returns the breaker of a source, reading its saved state the first time it's asked
+     * for in the process.
+     *
+     * @param sourceName the name of the source, see
+     *                   {@link com.echedeylima.weather.app.source.WeatherSource#getName()}
+     */
+    static CircuitBreaker get(Context context, String sourceName) {
+        synchronized (sBreakers) {
+            CircuitBreaker breaker = sBreakers.get(sourceName);
+            if (breaker == null) {
+                breaker = new CircuitBreaker(context.getApplicationContext()
+                        .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE), sourceName);
+                sBreakers.put(sourceName, breaker);
+            }
+            return breaker;
+        }
+    }
+
+    /**
+     * @return true if a request may be made now.  Once the open period is over, only the
+     * first caller is let through, to probe the source.
+     */
+    synchronized boolean allowRequest(long now) {
+        if (mOpenUntil == 0) {
+            return true;
+        }
+        if (now < mOpenUntil || mProbeInFlight) {
+            return false;
+        }
+        mProbeInFlight = true;
+        mProbeThread = Thread.currentThread();
+        return true;
+    }
+
+    /**
+     * Ends the probe the calling thread was let through for, if any, however it went.  Call
+     * it in a finally after every request allowed: a probe that was cancelled, or failed for
+     * a reason that isn't the source's, reported nothing, and would keep the breaker
+     * rejecting every request.
+     */
+    synchronized void onRequestFinished() {
+        if (mProbeInFlight && mProbeThread == Thread.currentThread()) {
+            mProbeInFlight = false;
+            mProbeThread = null;
+        }
+    }
+
+    /**
+     * @return true if the breaker is open and its open period isn't over.
+     */
+    synchronized boolean isOpen(long now) {
+        return mOpenUntil != 0 && now < mOpenUntil;
+    }
+
+    /**
+     * @return when the breaker lets a probe through, in milliseconds since the epoch, or 0
+     * if it's closed.
+     */
+    synchronized long getOpenUntil() {
+        return mOpenUntil;
+    }
+
+    synchronized void onSuccess() {
+        if (mFailures == 0 && mOpenUntil == 0) {
+            return;
+        }
+        if (mOpenUntil != 0) {
+            Log.i(LOG_TAG, mName + " is back, closing");
+        }
+        mFailures = 0;
+        mTrips = 0;
+        mOpenUntil = 0;
+        mProbeInFlight = false;
+        mProbeThread = null;
+        save();
+    }
+
+    synchronized void onFailure(long now) {
+        mFailures++;
+        if (mProbeInFlight || (mOpenUntil == 0 && mFailures >= FAILURE_THRESHOLD)) {
+            mTrips++;
+            mOpenUntil = now + Backoff.getDelay(BASE_OPEN_MILLIS, MAX_OPEN_MILLIS, mTrips);
+            mProbeInFlight = false;
+            mProbeThread = null;
+            Log.w(LOG_TAG, mName + " failed " + mFailures + " times in a row, open for "
+                    + (mOpenUntil - now) / 1000 + " seconds");
+        }
+        save();
+    }
+
+    private void save() {
+        mPrefs.edit()
+                .putInt(mName + KEY_FAILURES, mFailures)
+                .putInt(mName + KEY_TRIPS, mTrips)
+                .putLong(mName + KEY_OPEN_UNTIL, mOpenUntil)
+                .apply();
+    }
+
+    /**
+     * Thrown instead of making a request while the breaker is open.
+     */
+    static class OpenException extends IOException {
+        OpenException(String sourceName) {
+            super("Circuit breaker for " + sourceName + " is open");
+        }
+    }
+}
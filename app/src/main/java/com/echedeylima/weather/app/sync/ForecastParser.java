@@ -0,0 +1,246 @@
+package com.echedeylima.weather.app.sync;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Pull-based parser for the OpenWeatherMap daily forecast response.
+ * <p/>
+ * The response stream is read token by token, so neither the complete body nor a
+ * JSON object tree is ever held in memory.  Every day is handed to the {@link Listener}
+ * as soon as its closing brace has been read.
+ */
+public class ForecastParser {
+
+    // These are the names of the JSON objects that need to be extracted.
+
+    // Location information
+    private static final String OWM_CITY = "city";
+    private static final String OWM_CITY_ID = "id";
+    private static final String OWM_CITY_NAME = "name";
+    private static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    private static final String OWM_LATITUDE = "lat";
+    private static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    private static final String OWM_LIST = "list";
+
+    private static final String OWM_DATETIME = "dt";
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_MAX = "max";
+    private static final String OWM_MIN = "min";
+
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+
+    /**
+     * Receives the pieces of the forecast as they are read from the stream.
+     * The city may be reported before or after the days, depending on the order
+     * of the keys in the response.
+     */
+    public interface Listener {
+        /**
+         * @param cityId the id of the city upstream, 0 if the response has none.
+         */
+        void onCity(long cityId, String cityName, double lat, double lon);
+
+        /**
+         * @param day the parsed day.  The same instance is reused for every day, so
+         *            implementations must copy the values they want to keep.
+         */
+        void onDay(DayForecast day);
+    }
+
+    /**
+     * One element of the "list" array.
+     */
+    public static class DayForecast {
+        public long dateTime;
+        public double pressure;
+        public int humidity;
+        public double windSpeed;
+        public double windDirection;
+        public double high;
+        public double low;
+        public String description;
+        public int weatherId;
+
+        void clear() {
+            dateTime = 0;
+            pressure = 0;
+            humidity = 0;
+            windSpeed = 0;
+            windDirection = 0;
+            high = 0;
+            low = 0;
+            description = null;
+            weatherId = 0;
+        }
+    }
+
+    private final DayForecast mDay = new DayForecast();
+
+    /**
+     * Parses the forecast from the given stream.  The stream is not closed.
+     *
+     * @return the number of days reported to the listener
+     * @throws IOException   if the stream can't be read
+     * @throws JSONException if the content is not a well formed forecast
+     */
+    public int parse(InputStream in, Listener listener) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            return readForecast(reader, listener);
+        } catch (MalformedJsonException e) {
+            throw new JSONException(e.getMessage());
+        } catch (IllegalStateException e) {
+            // Thrown by JsonReader when a token doesn't have the expected type.
+            throw new JSONException(e.getMessage());
+        } catch (NumberFormatException e) {
+            throw new JSONException(e.getMessage());
+        }
+    }
+
+    private int readForecast(JsonReader reader, Listener listener) throws IOException {
+        int days = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY.equals(name)) {
+                readCity(reader, listener);
+            } else if (OWM_LIST.equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    readDay(reader);
+                    listener.onDay(mDay);
+                    days++;
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return days;
+    }
+
+    private void readCity(JsonReader reader, Listener listener) throws IOException {
+        long cityId = 0;
+        String cityName = null;
+        double lat = 0;
+        double lon = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_ID.equals(name)) {
+                cityId = reader.nextLong();
+            } else if (OWM_CITY_NAME.equals(name)) {
+                cityName = reader.nextString();
+            } else if (OWM_COORD.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        lat = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        lon = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        listener.onCity(cityId, cityName, lat, lon);
+    }
+
+    private void readDay(JsonReader reader) throws IOException {
+        DayForecast day = mDay;
+        day.clear();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_DATETIME.equals(name)) {
+                day.dateTime = reader.nextLong();
+            } else if (OWM_PRESSURE.equals(name)) {
+                day.pressure = reader.nextDouble();
+            } else if (OWM_HUMIDITY.equals(name)) {
+                day.humidity = (int) reader.nextDouble();
+            } else if (OWM_WINDSPEED.equals(name)) {
+                day.windSpeed = reader.nextDouble();
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                day.windDirection = reader.nextDouble();
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                // Temperatures are in a child object called "temp".  Try not to name variables
+                // "temp" when working with temperature.  It confuses everybody.
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String tempName = reader.nextName();
+                    if (OWM_MAX.equals(tempName)) {
+                        day.high = reader.nextDouble();
+                    } else if (OWM_MIN.equals(tempName)) {
+                        day.low = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                // Description is in a child array called "weather", which is 1 element long.
+                // That element also contains a weather code.
+                reader.beginArray();
+                if (reader.hasNext()) {
+                    readWeather(reader, day);
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (day.description == null) {
+            throw new IllegalStateException("Day " + day.dateTime + " has no weather description");
+        }
+    }
+
+    private void readWeather(JsonReader reader, DayForecast day) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_DESCRIPTION.equals(name) && reader.peek() != JsonToken.NULL) {
+                day.description = reader.nextString();
+            } else if (OWM_WEATHER_ID.equals(name)) {
+                day.weatherId = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+}
@@ -0,0 +1,538 @@
+package com.echedeylima.weather.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.SQLException;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.echedeylima.weather.app.data.ForecastBatch;
+import com.echedeylima.weather.app.data.WeatherContract.HourlyEntry;
+import com.echedeylima.weather.app.data.WeatherContract.LocationEntry;
+import com.echedeylima.weather.app.data.WeatherContract.WeatherEntry;
+import com.echedeylima.weather.app.source.ForecastRequest;
+import com.echedeylima.weather.app.source.ForecastResponse;
+import com.echedeylima.weather.app.source.WeatherSource;
+import com.echedeylima.weather.app.source.WeatherSources;
+
+import org.json.JSONException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The one path a forecast takes from the API into the database:
+ * fetch &rarr; decode &rarr; map &rarr; write.
+ * <ul>
+ * <li>fetch: a {@link WeatherSource} makes the request, conditional on the validators of the
+ * stored forecast;</li>
+ * <li>decode: a {@link Decoder} turns the body into a {@link Forecast};</li>
+ * <li>map: a {@link Mapper} turns the forecast into rows;</li>
+ * <li>write: a {@link Writer} stores the rows.</li>
+ * </ul>
+ * Every stage can be swapped, and every run reports how long each stage took.  Around the
+ * stages, the pipeline skips forecasts that haven't changed, archives the raw bodies and
+ * keeps the sync state of the location.  A pipeline keeps no state of its own, so one can
+ * run several locations at once.
+ * <p/>
+ * The 3-hourly forecast takes a shorter path of its own, {@link #syncHourly(String)}.
+ * <p/>
+ * A run can be stopped through a {@link SyncCancellation}: the body is read through it,
+ * and it's checked again before anything is written.
+ */
+public class ForecastPipeline {
+
+    private static final String LOG_TAG = ForecastPipeline.class.getSimpleName();
+
+    static final int NUM_DAYS = 14;
+    static final String UNITS = "metric";
+    // Periods in the 3-hourly forecast: 5 days of 8.
+    static final int NUM_HOURS = 40;
+
+    /**
+     * A decoded forecast.  Its days come from the batch pool, and go back to it once the
+     * forecast is written or has failed.
+     */
+    public static class Forecast {
+        public long cityId;
+        public String cityName;
+        public double cityLatitude;
+        public double cityLongitude;
+        public final ForecastBatch days = ForecastBatch.obtain();
+    }
+
+    /**
+     * The rows a forecast is stored as.  The weather batch doesn't have its location id
+     * yet, since the location row may not exist.
+     */
+    public static class Rows {
+        public ContentValues location;
+        public ForecastBatch weather;
+    }
+
+    public interface Decoder {
+        /**
+         * Decodes a body.  The stream is not closed.  If decoding fails, the days of the
+         * forecast are recycled before the exception is thrown.
+         */
+        Forecast decode(InputStream body) throws IOException, JSONException;
+    }
+
+    public interface Mapper {
+        /**
+         * The rows may hold the days of the forecast as is; they are recycled with it.
+         */
+        Rows map(String locationSetting, Forecast forecast) throws JSONException;
+    }
+
+    public interface Writer {
+        /**
+         * @return the number of weather rows inserted or changed.
+         */
+        int write(String locationSetting, Rows rows);
+    }
+
+    /**
+     * How a run went.  Stage times are in nanoseconds.  The body is streamed from the
+     * fetch into the decoder, so the fetch time only runs up to the response headers and
+     * the time spent receiving the body is part of the decode time.
+     */
+    public static class Result {
+        // True if the stored forecast was current, in which case only the fetch ran.
+        public boolean unchanged;
+        public int days;
+        public int rowsWritten;
+        public long wireBytes;
+        public long decodedBytes;
+        public long fetchNanos;
+        public long decodeNanos;
+        public long mapNanos;
+        public long writeNanos;
+
+        @Override
+        public String toString() {
+            return (unchanged ? "unchanged" : rowsWritten + " of " + days + " days written")
+                    + ", " + wireBytes + " bytes received, " + decodedBytes + " decoded"
+                    + "; fetch " + toMillis(fetchNanos) + " ms, decode " + toMillis(decodeNanos)
+                    + " ms, map " + toMillis(mapNanos) + " ms, write " + toMillis(writeNanos)
+                    + " ms";
+        }
+
+        private static String toMillis(long nanos) {
+            return String.valueOf(nanos / 100000 / 10.0);
+        }
+    }
+
+    private final Context mContext;
+    private final WeatherSource mSource;
+    private final Decoder mDecoder;
+    private final Mapper mMapper;
+    private final Writer mWriter;
+
+    /**
+     * Creates a pipeline out of the default stages.
+     */
+    public ForecastPipeline(Context context) {
+        this(context, WeatherSources.getDefault(context), new JsonDecoder(),
+                new ContentValuesMapper(), new ProviderWriter(context));
+    }
+
+    public ForecastPipeline(Context context, WeatherSource source, Decoder decoder,
+                            Mapper mapper, Writer writer) {
+        mContext = context;
+        mSource = source;
+        mDecoder = decoder;
+        mMapper = mapper;
+        mWriter = writer;
+    }
+
+    public WeatherSource getSource() {
+        return mSource;
+    }
+
+    /**
+     * Fetches the forecast of a location and stores it, unless it hasn't changed since it
+     * was last stored.
+     */
+    public Result sync(String locationSetting) throws IOException, JSONException {
+        return sync(locationSetting, SyncCancellation.none());
+    }
+
+    /**
+     * @see #sync(String)
+     */
+    public Result sync(String locationSetting, SyncCancellation cancellation)
+            throws IOException, JSONException {
+        cancellation.throwIfCanceled();
+        Result result = new Result();
+
+        // What the last stored forecast looked like, and what this one looks like.
+        SyncState lastState = SyncState.load(mContext, locationSetting);
+        SyncState newState = new SyncState();
+
+        ForecastRequest request = new ForecastRequest(locationSetting, NUM_DAYS, UNITS);
+        request.cityId = getCityId(mContext, locationSetting);
+        request.etag = lastState.etag;
+        request.lastModified = lastState.lastModified;
+
+        long start = System.nanoTime();
+        ForecastResponse response = mSource.fetchDailyForecast(request);
+        result.fetchNanos = System.nanoTime() - start;
+        Forecast forecast = null;
+        try {
+            try {
+                if (response.isNotModified()) {
+                    Log.d(LOG_TAG, "Forecast for " + locationSetting + " not modified");
+                    ResponseArchive.getInstance(mContext).touch(locationSetting);
+                    result.unchanged = true;
+                    return result;
+                }
+                newState.etag = response.getEtag();
+                newState.lastModified = response.getLastModified();
+
+                // The body is decompressed as it's read, on its way to the decoder.
+                InputStream inputStream = cancellation.track(response);
+                if (!newState.hasValidators()) {
+                    // Without validators the only way to tell an unchanged forecast is to
+                    // hash it, so the raw bytes are read first.  They are still never
+                    // turned into a String.
+                    start = System.nanoTime();
+                    byte[] bytes = readFully(inputStream);
+                    result.decodeNanos = System.nanoTime() - start;
+                    newState.contentHash = SyncState.hash(bytes);
+                    if (newState.contentHash.equals(lastState.contentHash)) {
+                        Log.d(LOG_TAG, "Forecast for " + locationSetting + " unchanged");
+                        ResponseArchive.getInstance(mContext).touch(locationSetting);
+                        result.unchanged = true;
+                        return result;
+                    }
+                    inputStream = new ByteArrayInputStream(bytes);
+                }
+
+                forecast = decode(locationSetting, inputStream, newState, true, result);
+            } finally {
+                cancellation.untrack(response);
+                close(response, locationSetting);
+                if (!response.isNotModified()) {
+                    result.wireBytes = response.getWireBytes();
+                    result.decodedBytes = response.getDecodedBytes();
+                    SyncState.recordTransfer(mContext, locationSetting,
+                            result.wireBytes, result.decodedBytes);
+                }
+                if (result.unchanged) {
+                    Log.d(LOG_TAG, "Forecast for " + locationSetting + ": " + result);
+                }
+            }
+
+            mapAndWrite(locationSetting, forecast, newState, result, cancellation);
+            return result;
+        } finally {
+            if (forecast != null) {
+                // The arrays are reused by the next forecast decoded.
+                forecast.days.recycle();
+            }
+        }
+    }
+
+    /**
+     * Fetches the 3-hourly forecast of a location and replaces the stored one.  Its periods
+     * move with every run of the weather model, so it's neither diffed nor archived.
+     *
+     * @return the number of hourly rows written.  Nothing is fetched, and 0 is returned,
+     * if the daily forecast of the location hasn't been stored yet.
+     */
+    public int syncHourly(String locationSetting) throws IOException, JSONException {
+        return syncHourly(locationSetting, SyncCancellation.none());
+    }
+
+    /**
+     * @see #syncHourly(String)
+     */
+    public int syncHourly(String locationSetting, SyncCancellation cancellation)
+            throws IOException, JSONException {
+        cancellation.throwIfCanceled();
+        Bundle ids = resolveLocation(mContext, locationSetting, null);
+        long locationId = ids.getLong(LocationEntry.KEY_LOCATION_ID, -1);
+        if (locationId == -1) {
+            return 0;
+        }
+
+        long start = System.nanoTime();
+        final List<ContentValues> hours = new ArrayList<ContentValues>(NUM_HOURS);
+        final Long locationKey = locationId;
+        ForecastRequest request = new ForecastRequest(locationSetting, NUM_DAYS, UNITS);
+        request.cityId = ids.getLong(LocationEntry.KEY_CITY_ID, 0);
+        ForecastResponse response = mSource.fetchHourlyForecast(request);
+        try {
+            new HourlyForecastParser().parse(cancellation.track(response),
+                    new HourlyForecastParser.Listener() {
+                        @Override
+                        public void onHour(HourlyForecastParser.HourForecast hour) {
+                            ContentValues values = new ContentValues(9);
+                            values.put(HourlyEntry.COLUMN_LOC_KEY, locationKey);
+                            values.put(HourlyEntry.COLUMN_TIME, hour.dateTime);
+                            values.put(HourlyEntry.COLUMN_WEATHER_ID, hour.weatherId);
+                            values.put(HourlyEntry.COLUMN_TEMP, hour.temperature);
+                            values.put(HourlyEntry.COLUMN_HUMIDITY, hour.humidity);
+                            values.put(HourlyEntry.COLUMN_PRESSURE, hour.pressure);
+                            values.put(HourlyEntry.COLUMN_WIND_SPEED, hour.windSpeed);
+                            values.put(HourlyEntry.COLUMN_DEGREES, hour.windDirection);
+                            hours.add(values);
+                        }
+                    });
+        } finally {
+            cancellation.untrack(response);
+            close(response, locationSetting);
+        }
+        long fetchNanos = System.nanoTime() - start;
+
+        // Written in one transaction, replacing the previous periods of the location.
+        cancellation.throwIfCanceled();
+        start = System.nanoTime();
+        int rowsWritten = mContext.getContentResolver().bulkInsert(HourlyEntry.CONTENT_URI,
+                hours.toArray(new ContentValues[hours.size()]));
+        Log.d(LOG_TAG, "Hourly forecast for " + locationSetting + ": " + rowsWritten
+                + " periods written; fetch " + Result.toMillis(fetchNanos) + " ms, write "
+                + Result.toMillis(System.nanoTime() - start) + " ms");
+        return rowsWritten;
+    }
+
+    /**
+     * @return the upstream id of the city of the location, 0 if it isn't known yet.
+     */
+    static long getCityId(Context context, String locationSetting) {
+        return resolveLocation(context, locationSetting, null)
+                .getLong(LocationEntry.KEY_CITY_ID, 0);
+    }
+
+    /**
+     * Resolves a location to its _id through the provider, which keeps them in memory, so
+     * no query is run.
+     *
+     * @param locationValues the location row to insert if the location isn't stored yet,
+     *                       or null to only look it up.
+     * @return the ids of the location, as returned by the provider.
+     */
+    private static Bundle resolveLocation(Context context, String locationSetting,
+                                        ContentValues locationValues) {
+        Bundle extras = null;
+        if (locationValues != null) {
+            extras = new Bundle();
+            extras.putParcelable(LocationEntry.KEY_LOCATION_VALUES, locationValues);
+        }
+        Bundle result = context.getContentResolver().call(LocationEntry.CONTENT_URI,
+                LocationEntry.METHOD_RESOLVE_LOCATION, locationSetting, extras);
+        return result != null ? result : new Bundle();
+    }
+
+    /**
+     * Stores a forecast body obtained some other way, e.g. from the archive.  The body is
+     * not closed.
+     *
+     * @param newState the sync state to store with the forecast
+     */
+    Result ingest(String locationSetting, InputStream body, SyncState newState)
+            throws IOException, JSONException {
+        Result result = new Result();
+        Forecast forecast = decode(locationSetting, body, newState, false, result);
+        try {
+            mapAndWrite(locationSetting, forecast, newState, result, SyncCancellation.none());
+        } finally {
+            forecast.days.recycle();
+        }
+        return result;
+    }
+
+    /**
+     * Decodes a body, archiving it on the way if asked to.  The caller recycles the days of
+     * the forecast returned.
+     */
+    private Forecast decode(String locationSetting, InputStream body, SyncState newState,
+                              boolean archive, Result result)
+            throws IOException, JSONException {
+        // The body is archived as it's read, so the forecast can be derived from it again
+        // without the network.
+        ResponseArchive.Recording recording = null;
+        if (archive) {
+            try {
+                recording = ResponseArchive.getInstance(mContext).record(locationSetting, body);
+                body = recording;
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Not archiving the forecast for " + locationSetting, e);
+            }
+        }
+
+        long start = System.nanoTime();
+        Forecast forecast = null;
+        boolean decoded = false;
+        try {
+            forecast = mDecoder.decode(body);
+            if (recording != null) {
+                newState.contentHash = recording.commit();
+            }
+            decoded = true;
+        } finally {
+            if (!decoded) {
+                if (forecast != null) {
+                    forecast.days.recycle();
+                }
+                if (recording != null) {
+                    recording.abort();
+                }
+            }
+        }
+        result.decodeNanos += System.nanoTime() - start;
+        result.days = forecast.days.size();
+        return forecast;
+    }
+
+    private void mapAndWrite(String locationSetting, Forecast forecast, SyncState newState,
+                             Result result, SyncCancellation cancellation)
+            throws JSONException, SyncCancellation.CanceledException {
+        long start = System.nanoTime();
+        Rows rows = mMapper.map(locationSetting, forecast);
+        result.mapNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        // The write is one transaction; once it starts, it's seen through.
+        cancellation.throwIfCanceled();
+        result.rowsWritten = mWriter.write(locationSetting, rows);
+        result.writeNanos = System.nanoTime() - start;
+
+        // The forecast is stored, so the next sync may skip it if it doesn't change.
+        newState.save(mContext, locationSetting);
+
+        Log.d(LOG_TAG, "Forecast for " + locationSetting + ": " + result);
+    }
+
+    /**
+     * Closes a response from a finally block.  A failure to close only costs the socket,
+     * so it's logged rather than thrown, which would hide the exception the block runs for
+     * and skip the rest of it.
+     */
+    private static void close(ForecastResponse response, String locationSetting) {
+        try {
+            response.close();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Can't close the response for " + locationSetting, e);
+        }
+    }
+
+    /**
+     * Reads what's left of a stream into a byte array.
+     */
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes the OpenWeatherMap JSON with the streaming {@link ForecastParser}.
+     */
+    public static class JsonDecoder implements Decoder {
+        @Override
+        public Forecast decode(InputStream body) throws IOException, JSONException {
+            final Forecast forecast = new Forecast();
+            boolean decoded = false;
+            try {
+                new ForecastParser().parse(body, new ForecastParser.Listener() {
+                    @Override
+                    public void onCity(long cityId, String cityName, double lat, double lon) {
+                        forecast.cityId = cityId;
+                        forecast.cityName = cityName;
+                        forecast.cityLatitude = lat;
+                        forecast.cityLongitude = lon;
+                    }
+
+                    @Override
+                    public void onDay(ForecastParser.DayForecast day) {
+                        forecast.days.add(day.dateTime, day.weatherId, day.description,
+                                day.low, day.high, day.humidity, day.pressure, day.windSpeed,
+                                day.windDirection);
+                    }
+                });
+                decoded = true;
+            } finally {
+                if (!decoded) {
+                    forecast.days.recycle();
+                }
+            }
+            return forecast;
+        }
+    }
+
+    /**
+     * Maps a forecast onto the columns of the location table.
+     */
+    public static class ContentValuesMapper implements Mapper {
+        @Override
+        public Rows map(String locationSetting, Forecast forecast) throws JSONException {
+            if (forecast.cityName == null) {
+                throw new JSONException(
+                        "Forecast for " + locationSetting + " has no city information");
+            }
+
+            Rows rows = new Rows();
+            rows.location = new ContentValues();
+            rows.location.put(LocationEntry.COLUMN_CITY_NAME, forecast.cityName);
+            rows.location.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+            rows.location.put(LocationEntry.COLUMN_COORD_LAT, forecast.cityLatitude);
+            rows.location.put(LocationEntry.COLUMN_COORD_LONG, forecast.cityLongitude);
+            if (forecast.cityId != 0) {
+                rows.location.put(LocationEntry.COLUMN_CITY_ID, forecast.cityId);
+            }
+
+            // The days are already held the way the provider takes them.
+            rows.weather = forecast.days;
+            return rows;
+        }
+    }
+
+    /**
+     * Writes the rows through the content provider.  Only the days that are new or changed
+     * are written.
+     */
+    public static class ProviderWriter implements Writer {
+        private final Context mContext;
+
+        public ProviderWriter(Context context) {
+            mContext = context;
+        }
+
+        @Override
+        public int write(String locationSetting, Rows rows) {
+            rows.weather.locationId = addLocation(locationSetting, rows.location);
+            if (rows.weather.size() == 0) {
+                return 0;
+            }
+            Bundle result = mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                    WeatherEntry.METHOD_INSERT_BATCH, null, rows.weather.toBundle());
+            return result != null ? result.getInt(WeatherEntry.KEY_ROWS_CHANGED) : 0;
+        }
+
+        /**
+         * Helper method to handle insertion of a new location in the weather database.
+         * The provider inserts it only if it isn't there yet, so concurrent syncs of a new
+         * location don't race.
+         *
+         * @return the row ID of the location.
+         */
+        private long addLocation(String locationSetting, ContentValues locationValues) {
+            long locationId = resolveLocation(mContext, locationSetting, locationValues)
+                    .getLong(LocationEntry.KEY_LOCATION_ID, -1);
+            if (locationId == -1) {
+                throw new SQLException("Failed to insert location " + locationSetting);
+            }
+            return locationId;
+        }
+    }
+}
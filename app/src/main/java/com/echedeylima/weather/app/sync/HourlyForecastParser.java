@@ -0,0 +1,181 @@
+package com.echedeylima.weather.app.sync;
+
+import android.util.JsonReader;
+import android.util.MalformedJsonException;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Pull-based parser for the OpenWeatherMap 3-hourly forecast response.
+ * <p/>
+ * Like {@link ForecastParser}, the stream is read token by token and every period is
+ * handed to the {@link Listener} as soon as it has been read.  Only what the hourly table
+ * stores is kept; the city is already known from the daily forecast, so it's skipped.
+ */
+public class HourlyForecastParser {
+
+    private static final String OWM_LIST = "list";
+
+    private static final String OWM_DATETIME = "dt";
+
+    // Temperature, pressure and humidity are children of the "main" object.
+    private static final String OWM_MAIN = "main";
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+
+    // Speed and direction are children of the "wind" object.
+    private static final String OWM_WIND = "wind";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_WEATHER_ID = "id";
+
+    public interface Listener {
+        /**
+         * @param hour the parsed period.  The same instance is reused for every period, so
+         *             implementations must copy the values they want to keep.
+         */
+        void onHour(HourForecast hour);
+    }
+
+    /**
+     * One element of the "list" array.
+     */
+    public static class HourForecast {
+        public long dateTime;
+        public double temperature;
+        public double pressure;
+        public int humidity;
+        public double windSpeed;
+        public double windDirection;
+        public int weatherId;
+
+        void clear() {
+            dateTime = 0;
+            temperature = 0;
+            pressure = 0;
+            humidity = 0;
+            windSpeed = 0;
+            windDirection = 0;
+            weatherId = 0;
+        }
+    }
+
+    private final HourForecast mHour = new HourForecast();
+
+    /**
+     * Parses the forecast from the given stream.  The stream is not closed.
+     *
+     * @return the number of periods reported to the listener
+     * @throws IOException   if the stream can't be read
+     * @throws JSONException if the content is not a well formed forecast
+     */
+    public int parse(InputStream in, Listener listener) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            return readForecast(reader, listener);
+        } catch (MalformedJsonException e) {
+            throw new JSONException(e.getMessage());
+        } catch (IllegalStateException e) {
+            // Thrown by JsonReader when a token doesn't have the expected type.
+            throw new JSONException(e.getMessage());
+        } catch (NumberFormatException e) {
+            throw new JSONException(e.getMessage());
+        }
+    }
+
+    private int readForecast(JsonReader reader, Listener listener) throws IOException {
+        int hours = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_LIST.equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    readHour(reader);
+                    listener.onHour(mHour);
+                    hours++;
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return hours;
+    }
+
+    private void readHour(JsonReader reader) throws IOException {
+        HourForecast hour = mHour;
+        hour.clear();
+        boolean hasWeather = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_DATETIME.equals(name)) {
+                hour.dateTime = reader.nextLong();
+            } else if (OWM_MAIN.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String mainName = reader.nextName();
+                    if (OWM_TEMPERATURE.equals(mainName)) {
+                        hour.temperature = reader.nextDouble();
+                    } else if (OWM_PRESSURE.equals(mainName)) {
+                        hour.pressure = reader.nextDouble();
+                    } else if (OWM_HUMIDITY.equals(mainName)) {
+                        hour.humidity = (int) reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WIND.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String windName = reader.nextName();
+                    if (OWM_WINDSPEED.equals(windName)) {
+                        hour.windSpeed = reader.nextDouble();
+                    } else if (OWM_WIND_DIRECTION.equals(windName)) {
+                        hour.windDirection = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                // The weather code is in a child array called "weather", 1 element long.
+                reader.beginArray();
+                if (reader.hasNext()) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (OWM_WEATHER_ID.equals(reader.nextName())) {
+                            hour.weatherId = reader.nextInt();
+                            hasWeather = true;
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (!hasWeather) {
+            throw new IllegalStateException("Period " + hour.dateTime + " has no weather id");
+        }
+    }
+}
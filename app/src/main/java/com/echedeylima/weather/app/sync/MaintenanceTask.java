@@ -0,0 +1,68 @@
+package com.echedeylima.weather.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.SQLException;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.echedeylima.weather.app.Utility;
+import com.echedeylima.weather.app.data.WeatherContract;
+import com.echedeylima.weather.app.data.WeatherContract.MaintenanceEntry;
+
+/**
+ * Runs the maintenance of the database through the provider, with the history the user
+ * chose to keep, and remembers when it last ran.  It runs from the idle job of
+ * {@link WeatherJobService}, or before Lollipop after a periodic sync once it's due.
+ */
+class MaintenanceTask {
+
+    private static final String LOG_TAG = MaintenanceTask.class.getSimpleName();
+
+    private static final String PREFS_NAME = "maintenance";
+    private static final String KEY_LAST_RUN = "last_run";
+
+    // How often the maintenance runs.  Once a day purges the day that has just gone by.
+    static final long INTERVAL_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private MaintenanceTask() {
+    }
+
+    /**
+     * @return true if the maintenance hasn't run for INTERVAL_MILLIS.
+     */
+    static boolean isDue(Context context, long now) {
+        return now - getPrefs(context).getLong(KEY_LAST_RUN, 0) >= INTERVAL_MILLIS;
+    }
+
+    /**
+     * Runs the maintenance on the calling thread, which must not be the main thread.
+     *
+     * @return false if it failed, in which case it's tried again the next time.
+     */
+    static boolean run(Context context) {
+        Bundle extras = new Bundle();
+        extras.putInt(MaintenanceEntry.KEY_RETENTION_DAYS, Utility.getRetentionDays(context));
+        Bundle result;
+        try {
+            result = context.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                    MaintenanceEntry.METHOD_RUN_MAINTENANCE, null, extras);
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Maintenance failed", e);
+            return false;
+        }
+        if (result == null) {
+            return false;
+        }
+        Log.d(LOG_TAG, "Maintenance: " + result.getInt(MaintenanceEntry.KEY_ROWS_PURGED)
+                + " rows purged, size " + result.getLong(MaintenanceEntry.KEY_SIZE_BEFORE)
+                + " -> " + result.getLong(MaintenanceEntry.KEY_SIZE_AFTER) + " bytes in "
+                + result.getLong(MaintenanceEntry.KEY_DURATION_MILLIS) + "ms");
+        getPrefs(context).edit().putLong(KEY_LAST_RUN, System.currentTimeMillis()).apply();
+        return true;
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,136 @@
+package com.echedeylima.weather.app.sync;
+
+import android.os.Process;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Syncs a set of locations concurrently.
+ * <p/>
+ * The priority location, the one the user is looking at, is synced on the calling thread
+ * as soon as the run starts, so it never waits in a queue behind other cities.  The rest
+ * are spread over a bounded pool of background priority threads.  A location that fails
+ * doesn't stop the others: its exception is kept in its {@link Result}.
+ */
+class MultiLocationSync {
+
+    private static final String LOG_TAG = MultiLocationSync.class.getSimpleName();
+
+    /**
+     * Syncs a single location.
+     */
+    interface LocationSyncer {
+        /**
+         * @return the number of weather rows written for the location.
+         */
+        int syncLocation(String locationSetting) throws IOException, JSONException;
+    }
+
+    /**
+     * How the sync of one location went.
+     */
+    static class Result {
+        final String locationSetting;
+        int rowsWritten;
+        Exception error;
+
+        Result(String locationSetting) {
+            this.locationSetting = locationSetting;
+        }
+    }
+
+    private final int mMaxParallelLocations;
+
+    MultiLocationSync(int maxParallelLocations) {
+        mMaxParallelLocations = maxParallelLocations;
+    }
+
+    /**
+     * Syncs every location and waits for all of them to finish.
+     *
+     * @param priorityLocation the location synced first, on the calling thread.  May be null.
+     * @param otherLocations   the locations synced on the worker pool.
+     * @return one result per location, the priority location first.  If the calling thread
+     * is interrupted, the locations that hadn't finished are left out.
+     */
+    List<Result> run(String priorityLocation, Collection<String> otherLocations,
+                     final LocationSyncer syncer) {
+        List<Result> results = new ArrayList<Result>(otherLocations.size() + 1);
+        ExecutorService executor = null;
+        List<Future<Result>> futures = new ArrayList<Future<Result>>(otherLocations.size());
+
+        if (!otherLocations.isEmpty()) {
+            executor = Executors.newFixedThreadPool(
+                    Math.min(mMaxParallelLocations, otherLocations.size()),
+                    new BackgroundThreadFactory());
+            for (final String locationSetting : otherLocations) {
+                futures.add(executor.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return syncOne(syncer, locationSetting);
+                    }
+                }));
+            }
+            // No more work is coming; let the threads die once the queue drains.
+            executor.shutdown();
+        }
+
+        if (priorityLocation != null) {
+            results.add(syncOne(syncer, priorityLocation));
+        }
+
+        for (Future<Result> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                // The sync has been cancelled: stop the locations still in flight.
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                // syncOne() catches everything, so this can't happen.
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    private static Result syncOne(LocationSyncer syncer, String locationSetting) {
+        Result result = new Result(locationSetting);
+        try {
+            result.rowsWritten = syncer.syncLocation(locationSetting);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Error syncing " + locationSetting, e);
+            result.error = e;
+        }
+        return result;
+    }
+
+    private static class BackgroundThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "LocationSync #" + mCount.getAndIncrement());
+        }
+    }
+}
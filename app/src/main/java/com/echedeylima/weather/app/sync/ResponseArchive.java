@@ -0,0 +1,371 @@
+package com.echedeylima.weather.app.sync;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * On-device archive of the raw forecast responses.
+ * <p/>
+ * Bodies are stored gzipped, in a file named after the SHA-1 of their content, so a
+ * forecast that comes back unchanged is stored once however many times it's fetched.  An
+ * index maps every location to its latest body, which is what the stored forecast can be
+ * derived from again without the network, e.g. after the database has been recreated.
+ * <p/>
+ * The archive is kept under its maximum size, {@link #MAX_SIZE_BYTES} for the app's: the
+ * least recently used bodies are evicted first, the ones no location points to before the
+ * ones that are still indexed.
+ */
+class ResponseArchive {
+
+    private static final String LOG_TAG = ResponseArchive.class.getSimpleName();
+
+    private static final String DIRECTORY_NAME = "responses";
+    private static final String INDEX_FILE_NAME = "index.properties";
+    private static final String BODY_SUFFIX = ".json.gz";
+
+    static final long MAX_SIZE_BYTES = 512 * 1024;
+
+    private static ResponseArchive sInstance;
+
+    private final File mDirectory;
+    private final File mIndexFile;
+    private final long mMaxSizeBytes;
+
+    // Guarded by this.  Location setting -> hash of its latest body and when it was
+    // archived, as "<hash> <millis>".
+    private final Properties mIndex = new Properties();
+
+    /**
+     * Opens an archive of its own.  The app shares the one of {@link #getInstance}.
+     */
+    ResponseArchive(File directory, long maxSizeBytes) {
+        mDirectory = directory;
+        mIndexFile = new File(directory, INDEX_FILE_NAME);
+        mMaxSizeBytes = maxSizeBytes;
+        loadIndex();
+    }
+
+    static synchronized ResponseArchive getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ResponseArchive(
+                    new File(context.getFilesDir(), DIRECTORY_NAME), MAX_SIZE_BYTES);
+        }
+        return sInstance;
+    }
+
+    /**
+     * An archived body, as indexed for a location.
+     */
+    static class Entry {
+        final String hash;
+        final long archivedAt;
+        private final File mFile;
+
+        Entry(String hash, long archivedAt, File file) {
+            this.hash = hash;
+            this.archivedAt = archivedAt;
+            mFile = file;
+        }
+
+        /**
+         * @return the decompressed body.  The caller must close it.
+         */
+        InputStream open() throws IOException {
+            // Reading it counts as a use.
+            mFile.setLastModified(System.currentTimeMillis());
+            return new GZIPInputStream(new FileInputStream(mFile));
+        }
+    }
+
+    /**
+     * Starts archiving a body.  The returned stream must be read instead of the body, and
+     * then either {@link Recording#commit()}ted or {@link Recording#abort()}ed.
+     */
+    Recording record(String locationSetting, InputStream body) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Can't create " + mDirectory);
+        }
+        return new Recording(locationSetting, body,
+                File.createTempFile("response", ".tmp", mDirectory));
+    }
+
+    /**
+     * @return the latest body archived for a location, or null if there's none.
+     */
+    synchronized Entry getLatest(String locationSetting) {
+        String value = mIndex.getProperty(locationSetting);
+        if (value == null) {
+            return null;
+        }
+        int separator = value.indexOf(' ');
+        String hash = value.substring(0, separator);
+        File file = getBodyFile(hash);
+        if (!file.isFile()) {
+            return null;
+        }
+        return new Entry(hash, Long.parseLong(value.substring(separator + 1)), file);
+    }
+
+    /**
+     * @return every location that has an archived body.
+     */
+    synchronized Set<String> getLocations() {
+        return new HashSet<String>(mIndex.stringPropertyNames());
+    }
+
+    /**
+     * Marks the latest body of a location as still current, e.g. because the server said
+     * it wasn't modified, so it's the last to be evicted.
+     */
+    synchronized void touch(String locationSetting) {
+        Entry entry = getLatest(locationSetting);
+        if (entry != null) {
+            entry.mFile.setLastModified(System.currentTimeMillis());
+        }
+    }
+
+    private File getBodyFile(String hash) {
+        return new File(mDirectory, hash + BODY_SUFFIX);
+    }
+
+    private synchronized void onCommitted(String locationSetting, String hash, File tempFile) {
+        File bodyFile = getBodyFile(hash);
+        if (bodyFile.exists()) {
+            // The same body has been archived before.
+            tempFile.delete();
+            bodyFile.setLastModified(System.currentTimeMillis());
+        } else if (!tempFile.renameTo(bodyFile)) {
+            tempFile.delete();
+            Log.w(LOG_TAG, "Can't archive " + bodyFile);
+            return;
+        }
+        mIndex.setProperty(locationSetting, hash + " " + System.currentTimeMillis());
+        saveIndex();
+        trim();
+    }
+
+    /**
+     * Evicts bodies until the archive fits in its maximum size.
+     */
+    private void trim() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(BODY_SUFFIX)) {
+                size += file.length();
+            }
+        }
+        if (size <= mMaxSizeBytes) {
+            return;
+        }
+
+        final Set<String> indexed = new HashSet<String>();
+        for (String value : getIndexValues()) {
+            indexed.add(value.substring(0, value.indexOf(' ')) + BODY_SUFFIX);
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                boolean lhsIndexed = indexed.contains(lhs.getName());
+                boolean rhsIndexed = indexed.contains(rhs.getName());
+                if (lhsIndexed != rhsIndexed) {
+                    return lhsIndexed ? 1 : -1;
+                }
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (size <= mMaxSizeBytes) {
+                break;
+            }
+            if (file.getName().endsWith(BODY_SUFFIX)) {
+                long length = file.length();
+                if (file.delete()) {
+                    size -= length;
+                }
+            }
+        }
+    }
+
+    private Collection<String> getIndexValues() {
+        Set<String> values = new HashSet<String>();
+        for (String locationSetting : mIndex.stringPropertyNames()) {
+            values.add(mIndex.getProperty(locationSetting));
+        }
+        return values;
+    }
+
+    private void loadIndex() {
+        if (!mIndexFile.isFile()) {
+            return;
+        }
+        try {
+            InputStream in = new FileInputStream(mIndexFile);
+            try {
+                mIndex.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Can't read " + mIndexFile + ", starting over", e);
+            mIndex.clear();
+        }
+    }
+
+    private void saveIndex() {
+        // Written aside and renamed, so a crash never leaves half an index behind.
+        File tempFile = new File(mDirectory, INDEX_FILE_NAME + ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(tempFile);
+            try {
+                mIndex.store(out, null);
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(mIndexFile)) {
+                Log.w(LOG_TAG, "Can't replace " + mIndexFile);
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Can't write " + mIndexFile, e);
+        }
+    }
+
+    /**
+     * A body on its way into the archive.  It's compressed and hashed as it's read.  The
+     * archive failing to write it never gets in the way of reading it.
+     */
+    class Recording extends FilterInputStream {
+        private final String mLocationSetting;
+        private final File mTempFile;
+        private final OutputStream mOut;
+        private final MessageDigest mDigest;
+        private boolean mFailed;
+
+        private Recording(String locationSetting, InputStream body, File tempFile)
+                throws IOException {
+            super(body);
+            mLocationSetting = locationSetting;
+            mTempFile = tempFile;
+            mOut = new GZIPOutputStream(new FileOutputStream(tempFile));
+            try {
+                mDigest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                // Every Android release ships SHA-1.
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mDigest.update((byte) b);
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mDigest.update(buffer, offset, read);
+                write(buffer, offset, read);
+            }
+            return read;
+        }
+
+        private void write(byte[] buffer, int offset, int count) {
+            if (mFailed) {
+                return;
+            }
+            try {
+                mOut.write(buffer, offset, count);
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Can't archive the response for " + mLocationSetting, e);
+                mFailed = true;
+            }
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // Skipped bytes must still be archived.
+            byte[] buffer = new byte[(int) Math.min(count, 4096)];
+            long skipped = 0;
+            while (skipped < count) {
+                int read = read(buffer, 0, (int) Math.min(count - skipped, buffer.length));
+                if (read == -1) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Reads what's left of the body and archives it as the latest body of the location.
+         *
+         * @return the hex encoded SHA-1 of the body.
+         * @throws IOException if the rest of the body can't be read
+         */
+        String commit() throws IOException {
+            byte[] buffer = new byte[4096];
+            while (read(buffer, 0, buffer.length) != -1) {
+                // Just reading to the end.
+            }
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Can't archive the response for " + mLocationSetting, e);
+                mFailed = true;
+            }
+            String hash = SyncState.toHex(mDigest.digest());
+            if (mFailed) {
+                mTempFile.delete();
+            } else {
+                onCommitted(mLocationSetting, hash, mTempFile);
+            }
+            return hash;
+        }
+
+        /**
+         * Throws away what has been recorded.
+         */
+        void abort() {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // The file is deleted anyway.
+            }
+            mTempFile.delete();
+        }
+    }
+}
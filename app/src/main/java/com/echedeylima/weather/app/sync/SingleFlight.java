@@ -0,0 +1,133 @@
+package com.echedeylima.weather.app.sync;
+
+import android.os.SystemClock;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Makes sure a location is only fetched and written by one sync at a time.
+ * <p/>
+ * Refreshes, settings changes and the periodic sync can all ask for the same location at
+ * once.  The first caller does the work; callers arriving while it's in flight wait for
+ * it and share its result instead of making their own request and fighting over the
+ * database; if the first caller's sync is cancelled, they sync the location themselves.
+ * A location that has just been synced successfully isn't synced again for a short while
+ * either, which absorbs bursts of back to back requests.
+ */
+class SingleFlight {
+
+    // A location synced this recently is considered fresh.
+    private static final long RECENT_MILLIS = 10 * 1000;
+
+    private static final SingleFlight sInstance = new SingleFlight();
+
+    private static class Flight {
+        final CountDownLatch done = new CountDownLatch(1);
+        int rowsWritten;
+        Exception error;
+        long completedAt;
+    }
+
+    // Guarded by this.  The flights that are in progress or finished recently, by location.
+    private final Map<String, Flight> mFlights = new HashMap<String, Flight>();
+
+    static SingleFlight getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Syncs a location, unless a sync of it is already in flight or has just succeeded.
+     *
+     * @return the number of rows written by the sync that did the work, or 0 if the
+     * location was fresh.
+     */
+    int syncLocation(String locationSetting, MultiLocationSync.LocationSyncer syncer)
+            throws IOException, JSONException {
+        while (true) {
+            Flight flight;
+            boolean leader = false;
+            synchronized (this) {
+                flight = mFlights.get(locationSetting);
+                if (flight != null && flight.done.getCount() == 0
+                        && SystemClock.elapsedRealtime() - flight.completedAt > RECENT_MILLIS) {
+                    // The last sync is stale; start a new one.
+                    flight = null;
+                }
+                if (flight == null) {
+                    flight = new Flight();
+                    mFlights.put(locationSetting, flight);
+                    leader = true;
+                } else if (flight.done.getCount() == 0) {
+                    return 0;
+                }
+            }
+
+            if (leader) {
+                return lead(locationSetting, syncer, flight);
+            }
+
+            try {
+                flight.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for " + locationSetting);
+            }
+            if (!(flight.error instanceof SyncCancellation.CanceledException)) {
+                return joinedResult(flight);
+            }
+            // The leader's sync was cancelled, not this one: the flight is gone, so this
+            // caller syncs the location itself, or joins whoever got there first.
+        }
+    }
+
+    private int lead(String locationSetting, MultiLocationSync.LocationSyncer syncer,
+                     Flight flight) throws IOException, JSONException {
+        boolean succeeded = false;
+        try {
+            flight.rowsWritten = syncer.syncLocation(locationSetting);
+            succeeded = true;
+        } catch (IOException e) {
+            flight.error = e;
+            throw e;
+        } catch (JSONException e) {
+            flight.error = e;
+            throw e;
+        } catch (RuntimeException e) {
+            flight.error = e;
+            throw e;
+        } finally {
+            synchronized (this) {
+                flight.completedAt = SystemClock.elapsedRealtime();
+                if (!succeeded) {
+                    // Nobody should skip a sync because this one failed.
+                    mFlights.remove(locationSetting);
+                    if (flight.error == null) {
+                        flight.error = new IOException("Sync of " + locationSetting
+                                + " was aborted");
+                    }
+                }
+            }
+            flight.done.countDown();
+        }
+        return flight.rowsWritten;
+    }
+
+    private static int joinedResult(Flight flight) throws IOException, JSONException {
+        Exception error = flight.error;
+        if (error == null) {
+            return flight.rowsWritten;
+        } else if (error instanceof IOException) {
+            throw (IOException) error;
+        } else if (error instanceof JSONException) {
+            throw (JSONException) error;
+        } else {
+            throw (RuntimeException) error;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.echedeylima.weather.app.sync;
+
+import android.util.Log;
+
+import com.echedeylima.weather.app.source.ForecastResponse;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops a sync cooperatively, when it's cancelled or runs out of time.
+ * <p/>
+ * The sync checks it between stages, and every read of a response body goes through it,
+ * so a cancelled sync stops in the middle of a download or a parse.  A read that is
+ * blocked on the network is ended by aborting the responses in flight.  The write of a
+ * location is a single transaction: it's checked right before it starts, and is never
+ * left half done.
+ * <p/>
+ * Once cancelled, the sync fails with a {@link CanceledException}, an
+ * {@link InterruptedIOException}, so it unwinds through the usual I/O error paths.
+ */
+public class SyncCancellation {
+
+    private static final String LOG_TAG = SyncCancellation.class.getSimpleName();
+
+    /**
+     * Thrown by a sync that was cancelled.  Not a failure of the source.
+     */
+    public static class CanceledException extends InterruptedIOException {
+        public CanceledException(String reason) {
+            super("Sync canceled: " + reason);
+        }
+    }
+
+    // Fires the deadlines.  It only ever cancels, so one thread serves every sync.
+    private static ScheduledExecutorService sTimer;
+
+    // Guarded by this.
+    private String mReason;
+    private final Set<ForecastResponse> mResponses = new HashSet<ForecastResponse>();
+    private ScheduledFuture<?> mDeadline;
+
+    /**
+     * @return a cancellation that is only cancelled by calling {@link #cancel(String)}.
+     */
+    public static SyncCancellation none() {
+        return new SyncCancellation();
+    }
+
+    /**
+     * @param timeoutMillis how long the sync may take before it's cancelled, or 0 or less
+     *                      for no deadline.
+     */
+    public static SyncCancellation withTimeout(long timeoutMillis) {
+        final SyncCancellation cancellation = new SyncCancellation();
+        if (timeoutMillis <= 0) {
+            return cancellation;
+        }
+        cancellation.mDeadline = getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                cancellation.cancel("deadline of the sync passed");
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        return cancellation;
+    }
+
+    private SyncCancellation() {
+    }
+
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (sTimer == null) {
+            sTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "SyncCancellation deadline");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sTimer;
+    }
+
+    /**
+     * Cancels the sync, and aborts the responses it's reading.  Only the first reason is
+     * kept.
+     */
+    public void cancel(String reason) {
+        ForecastResponse[] responses;
+        synchronized (this) {
+            if (mReason != null) {
+                return;
+            }
+            Log.d(LOG_TAG, "Canceling sync: " + reason);
+            mReason = reason;
+            responses = mResponses.toArray(new ForecastResponse[mResponses.size()]);
+            mResponses.clear();
+        }
+        for (ForecastResponse response : responses) {
+            response.abort();
+        }
+    }
+
+    public synchronized boolean isCanceled() {
+        return mReason != null;
+    }
+
+    public synchronized void throwIfCanceled() throws CanceledException {
+        if (mReason != null) {
+            throw new CanceledException(mReason);
+        }
+    }
+
+    /**
+     * Tracks a response while it's read, so {@link #cancel(String)} can abort it.  If the
+     * sync is already cancelled the response is aborted right away.
+     *
+     * @return the body of the response, checking for cancellation on every read.
+     */
+    InputStream track(ForecastResponse response) throws CanceledException {
+        synchronized (this) {
+            if (mReason == null) {
+                mResponses.add(response);
+                return new CancellableInputStream(response.getStream());
+            }
+        }
+        response.abort();
+        throw new CanceledException(mReason);
+    }
+
+    /**
+     * Stops tracking a response, once it's been closed.
+     */
+    synchronized void untrack(ForecastResponse response) {
+        mResponses.remove(response);
+    }
+
+    /**
+     * Stops the deadline.  Call it once the sync is over.
+     */
+    public synchronized void close() {
+        if (mDeadline != null) {
+            mDeadline.cancel(false);
+            mDeadline = null;
+        }
+    }
+
+    private class CancellableInputStream extends FilterInputStream {
+        CancellableInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            throwIfCanceled();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            throwIfCanceled();
+            try {
+                return super.read(buffer, offset, count);
+            } catch (IOException e) {
+                // An aborted response fails its read with whatever error the connection
+                // makes of it; report the cancellation instead.
+                throwIfCanceled();
+                throw e;
+            }
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            throwIfCanceled();
+            return super.skip(count);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.echedeylima.weather.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * How far each location of an unfinished sync got.
+ * <p/>
+ * A run marks the locations it's about to sync, and each location moves through its stages
+ * as they're stored.  When a run is cancelled or runs out of time, the locations it didn't
+ * finish are still marked: the next run syncs them even if the scheduler wouldn't, and
+ * picks each one up at the stage it stopped at instead of starting it over.
+ */
+class SyncProgress {
+
+    private static final String PREFS_NAME = "sync_progress";
+
+    // Stages of a location.  A finished location has no stage.
+    // Nothing has been stored yet.
+    static final int STAGE_PENDING = 0;
+    // The daily forecast is stored; the hourly one isn't.
+    static final int STAGE_DAILY_DONE = 1;
+
+    private final SharedPreferences mPrefs;
+
+    private SyncProgress(SharedPreferences prefs) {
+        mPrefs = prefs;
+    }
+
+    static SyncProgress load(Context context) {
+        return new SyncProgress(context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+    }
+
+    /**
+     * @return the locations a run didn't finish.
+     */
+    Set<String> getUnfinished() {
+        return new LinkedHashSet<String>(mPrefs.getAll().keySet());
+    }
+
+    /**
+     * @return the stage a location stopped at, {@link #STAGE_PENDING} if it isn't marked.
+     */
+    int getStage(String locationSetting) {
+        return mPrefs.getInt(locationSetting, STAGE_PENDING);
+    }
+
+    /**
+     * Marks the locations a run is about to sync.  Locations that are already marked keep
+     * their stage.
+     */
+    void onPlanned(Collection<String> locationSettings) {
+        Map<String, ?> marked = mPrefs.getAll();
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (String locationSetting : locationSettings) {
+            if (!marked.containsKey(locationSetting)) {
+                editor.putInt(locationSetting, STAGE_PENDING);
+            }
+        }
+        editor.apply();
+    }
+
+    void onStage(String locationSetting, int stage) {
+        mPrefs.edit().putInt(locationSetting, stage).apply();
+    }
+
+    /**
+     * Clears a location, because it's done or shouldn't be resumed, e.g. it was deleted.
+     */
+    void forget(String locationSetting) {
+        mPrefs.edit().remove(locationSetting).apply();
+    }
+}
@@ -0,0 +1,115 @@
+package com.echedeylima.weather.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The last few sync runs, with why each of them ran: the user asked for it, the sync
+ * adapter was run by the framework, or one of the jobs of {@link WeatherJobService} found
+ * its constraints met.  Kept so the schedule can be checked on a device, where the logs of
+ * past runs are usually gone.
+ */
+class SyncRunLog {
+
+    private static final String LOG_TAG = SyncRunLog.class.getSimpleName();
+
+    private static final String PREFS_NAME = "sync_runs";
+
+    // Number of runs kept; older ones are overwritten.
+    static final int MAX_RUNS = 20;
+
+    private static final String KEY_NEXT = "next";
+    private static final String KEY_RUN = "run_";
+
+    /**
+     * One recorded run.
+     */
+    static class Run {
+        String reason;
+        long startedAt;
+        long durationMillis;
+        int locations;
+        long rowsWritten;
+
+        @Override
+        public String toString() {
+            return reason + " at " + startedAt + ": " + locations + " locations, "
+                    + rowsWritten + " rows in " + durationMillis + "ms";
+        }
+    }
+
+    /**
+     * Records a run that has just finished.
+     *
+     * @param reason    why the run happened, one of the REASON_ constants of
+     *                  {@link WeatherSync}
+     * @param startedAt when the run started, in milliseconds
+     */
+    static synchronized void record(Context context, String reason, long startedAt,
+                                    int locations, long rowsWritten) {
+        Run run = new Run();
+        run.reason = reason;
+        run.startedAt = startedAt;
+        run.durationMillis = System.currentTimeMillis() - startedAt;
+        run.locations = locations;
+        run.rowsWritten = rowsWritten;
+        Log.d(LOG_TAG, "Sync run: " + run);
+
+        SharedPreferences prefs = getPrefs(context);
+        int next = prefs.getInt(KEY_NEXT, 0);
+        prefs.edit()
+                .putString(KEY_RUN + (next % MAX_RUNS), encode(run))
+                .putInt(KEY_NEXT, next + 1)
+                .apply();
+    }
+
+    /**
+     * @return the recorded runs, latest first.
+     */
+    static synchronized List<Run> getRuns(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        int next = prefs.getInt(KEY_NEXT, 0);
+        List<Run> runs = new ArrayList<Run>();
+        for (int i = next - 1; i >= 0 && i >= next - MAX_RUNS; i--) {
+            Run run = decode(prefs.getString(KEY_RUN + (i % MAX_RUNS), null));
+            if (run != null) {
+                runs.add(run);
+            }
+        }
+        return runs;
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static String encode(Run run) {
+        return run.reason + ',' + run.startedAt + ',' + run.durationMillis + ','
+                + run.locations + ',' + run.rowsWritten;
+    }
+
+    private static Run decode(String encoded) {
+        if (encoded == null) {
+            return null;
+        }
+        String[] fields = encoded.split(",");
+        if (fields.length != 5) {
+            return null;
+        }
+        try {
+            Run run = new Run();
+            run.reason = fields[0];
+            run.startedAt = Long.parseLong(fields[1]);
+            run.durationMillis = Long.parseLong(fields[2]);
+            run.locations = Integer.parseInt(fields[3]);
+            run.rowsWritten = Long.parseLong(fields[4]);
+            return run;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
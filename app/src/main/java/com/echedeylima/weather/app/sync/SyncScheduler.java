@@ -0,0 +1,243 @@
+package com.echedeylima.weather.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import com.echedeylima.weather.app.data.WeatherContract.SyncStateEntry;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides when each location is synced next.
+ * <p/>
+ * The periodic sync only ticks the scheduler; on every tick the locations that are due are
+ * synced and the others are left alone.  A location's interval depends on:
+ * <ul>
+ * <li>how much its forecast has been changing: volatile weather is synced often, stable
+ * weather rarely;</li>
+ * <li>whether anybody looks at it: a city that hasn't been on screen for a few days is
+ * synced once a day at most;</li>
+ * <li>how old its data is: nothing is left unsynced for longer than {@link #MAX_AGE_MILLIS}.</li>
+ * </ul>
+ * The decisions are stored in the sync_state table, so the schedule can be queried through
+ * {@link SyncStateEntry#CONTENT_URI}.
+ */
+class SyncScheduler {
+
+    private static final String LOG_TAG = SyncScheduler.class.getSimpleName();
+
+    private static final long HOUR_MILLIS = 60 * 60 * 1000L;
+    private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+    // Interval of a location that is being looked at, for completely volatile and
+    // completely stable weather.
+    static final long MIN_INTERVAL_MILLIS = HOUR_MILLIS;
+    static final long MAX_INTERVAL_MILLIS = 12 * HOUR_MILLIS;
+
+    // A location that hasn't been viewed for this long is synced at most once per
+    // UNVIEWED_INTERVAL_MILLIS.
+    private static final long VIEWED_RECENTLY_MILLIS = 3 * DAY_MILLIS;
+    private static final long UNVIEWED_INTERVAL_MILLIS = DAY_MILLIS;
+
+    // No location's data gets older than this, whatever the rest of the schedule says.
+    static final long MAX_AGE_MILLIS = DAY_MILLIS;
+
+    // Weight of the latest sync in the volatility; the rest is carried over from the
+    // previous ones.
+    private static final double VOLATILITY_WEIGHT = 0.5;
+
+    // Retry delays of a location whose sync fails, before jitter.
+    private static final long BASE_RETRY_MILLIS = 5 * 60 * 1000L;
+    private static final long MAX_RETRY_MILLIS = 12 * HOUR_MILLIS;
+
+    private static final String[] SCHEDULE_COLUMNS = {
+            SyncStateEntry.COLUMN_LOCATION_SETTING,
+            SyncStateEntry.COLUMN_LAST_SYNC,
+            SyncStateEntry.COLUMN_NEXT_SYNC,
+            SyncStateEntry.COLUMN_VOLATILITY,
+            SyncStateEntry.COLUMN_LAST_VIEWED,
+            SyncStateEntry.COLUMN_FAILURE_COUNT
+    };
+
+    // These indices are tied to SCHEDULE_COLUMNS.
+    private static final int COL_LOCATION_SETTING = 0;
+    private static final int COL_LAST_SYNC = 1;
+    private static final int COL_NEXT_SYNC = 2;
+    private static final int COL_VOLATILITY = 3;
+    private static final int COL_LAST_VIEWED = 4;
+    private static final int COL_FAILURE_COUNT = 5;
+
+    /**
+     * The schedule of one location.
+     */
+    static class Schedule {
+        long lastSync;
+        long nextSync;
+        double volatility;
+        long lastViewed;
+        int failureCount;
+
+        boolean isDue(long now) {
+            if (failureCount > 0) {
+                // Backing off: only the retry time counts, however old the data is.
+                return nextSync <= now || nextSync - now > MAX_RETRY_MILLIS;
+            }
+            // A last sync in the future means the clock has been set back.
+            return nextSync <= now || now - lastSync >= MAX_AGE_MILLIS || lastSync > now;
+        }
+    }
+
+    private final Context mContext;
+    private final String mPreferredLocation;
+    private final Map<String, Schedule> mSchedules;
+
+    // Guarded by this.  The earliest retry scheduled by onLocationFailed(), or 0.
+    private long mEarliestRetry;
+
+    private SyncScheduler(Context context, String preferredLocation,
+                          Map<String, Schedule> schedules) {
+        mContext = context;
+        mPreferredLocation = preferredLocation;
+        mSchedules = schedules;
+    }
+
+    /**
+     * Reads the schedule of every location.
+     *
+     * @param preferredLocation the location the user has chosen, which always counts as viewed.
+     */
+    static SyncScheduler load(Context context, String preferredLocation) {
+        Map<String, Schedule> schedules = new HashMap<String, Schedule>();
+        Cursor cursor = context.getContentResolver().query(
+                SyncStateEntry.CONTENT_URI,
+                SCHEDULE_COLUMNS,
+                null,
+                null,
+                null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    Schedule schedule = new Schedule();
+                    schedule.lastSync = cursor.getLong(COL_LAST_SYNC);
+                    schedule.nextSync = cursor.getLong(COL_NEXT_SYNC);
+                    schedule.volatility = cursor.getDouble(COL_VOLATILITY);
+                    schedule.lastViewed = cursor.getLong(COL_LAST_VIEWED);
+                    schedule.failureCount = cursor.getInt(COL_FAILURE_COUNT);
+                    schedules.put(cursor.getString(COL_LOCATION_SETTING), schedule);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return new SyncScheduler(context, preferredLocation, schedules);
+    }
+
+    /**
+     * @return the locations, out of the given ones, that are due to be synced.  Locations
+     * that have never been synced are always due.
+     */
+    Set<String> getDueLocations(Collection<String> locations, long now) {
+        Set<String> due = new LinkedHashSet<String>();
+        for (String locationSetting : locations) {
+            Schedule schedule = mSchedules.get(locationSetting);
+            if (schedule == null || schedule.isDue(now)) {
+                due.add(locationSetting);
+            }
+        }
+        return due;
+    }
+
+    /**
+     * Schedules the next sync of a location that has just been synced successfully.
+     * Called concurrently for different locations.
+     *
+     * @param changedDays the number of stored days the sync changed
+     * @param totalDays   the number of days in the forecast, 0 if it wasn't read at all
+     *                    because it hadn't changed
+     */
+    void onLocationSynced(String locationSetting, int changedDays, int totalDays, long now) {
+        Schedule last = mSchedules.get(locationSetting);
+        double lastVolatility = last != null ? last.volatility : 0;
+        long lastViewed = last != null ? last.lastViewed : 0;
+
+        double changed = totalDays > 0 ? (double) changedDays / totalDays : 0;
+        double volatility = VOLATILITY_WEIGHT * changed + (1 - VOLATILITY_WEIGHT) * lastVolatility;
+        boolean viewed = locationSetting.equals(mPreferredLocation)
+                || now - lastViewed < VIEWED_RECENTLY_MILLIS;
+        long nextSync = now + getInterval(volatility, viewed);
+
+        ContentValues values = new ContentValues();
+        values.put(SyncStateEntry.COLUMN_LAST_SYNC, now);
+        values.put(SyncStateEntry.COLUMN_NEXT_SYNC, nextSync);
+        values.put(SyncStateEntry.COLUMN_VOLATILITY, volatility);
+        values.put(SyncStateEntry.COLUMN_FAILURE_COUNT, 0);
+        mContext.getContentResolver().update(
+                SyncStateEntry.buildSyncStateUri(locationSetting), values, null, null);
+
+        Log.d(LOG_TAG, locationSetting + ": " + changedDays + "/" + totalDays
+                + " days changed, volatility " + volatility + ", viewed " + viewed
+                + ", next sync in " + (nextSync - now) / 60000 + " minutes");
+    }
+
+    /**
+     * Schedules a retry of a location whose sync has just failed.  Every failure in a row
+     * backs the retry off further.  Called concurrently for different locations.
+     *
+     * @return when the location will be retried, in milliseconds since the epoch.
+     */
+    long onLocationFailed(String locationSetting, long now) {
+        Schedule last = mSchedules.get(locationSetting);
+        int failureCount = (last != null ? last.failureCount : 0) + 1;
+        long retryAt = now + Backoff.getDelay(BASE_RETRY_MILLIS, MAX_RETRY_MILLIS, failureCount);
+
+        ContentValues values = new ContentValues();
+        values.put(SyncStateEntry.COLUMN_NEXT_SYNC, retryAt);
+        values.put(SyncStateEntry.COLUMN_FAILURE_COUNT, failureCount);
+        mContext.getContentResolver().update(
+                SyncStateEntry.buildSyncStateUri(locationSetting), values, null, null);
+
+        Log.d(LOG_TAG, locationSetting + ": failure " + failureCount + " in a row, retry in "
+                + (retryAt - now) / 60000 + " minutes");
+        synchronized (this) {
+            if (mEarliestRetry == 0 || retryAt < mEarliestRetry) {
+                mEarliestRetry = retryAt;
+            }
+        }
+        return retryAt;
+    }
+
+    /**
+     * @return the earliest retry scheduled since the schedule was loaded, in milliseconds
+     * since the epoch, or 0 if no location has failed.
+     */
+    synchronized long getEarliestRetry() {
+        return mEarliestRetry;
+    }
+
+    /**
+     * @return how long to wait before syncing a location again.
+     */
+    static long getInterval(double volatility, boolean viewed) {
+        long interval = MAX_INTERVAL_MILLIS
+                - (long) ((MAX_INTERVAL_MILLIS - MIN_INTERVAL_MILLIS) * volatility);
+        if (!viewed) {
+            interval = Math.max(interval, UNVIEWED_INTERVAL_MILLIS);
+        }
+        return Math.min(interval, MAX_AGE_MILLIS);
+    }
+
+    /**
+     * @return the values that record a location as viewed now.
+     */
+    static ContentValues getViewedValues(long now) {
+        ContentValues values = new ContentValues();
+        values.put(SyncStateEntry.COLUMN_LAST_VIEWED, now);
+        return values;
+    }
+}
@@ -0,0 +1,119 @@
+package com.echedeylima.weather.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+import com.echedeylima.weather.app.data.WeatherContract.SyncStateEntry;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * What the last successful sync of a location left behind, so the next one can tell
+ * whether the upstream forecast has changed at all.
+ */
+class SyncState {
+
+    private static final String[] SYNC_STATE_COLUMNS = {
+            SyncStateEntry.COLUMN_ETAG,
+            SyncStateEntry.COLUMN_LAST_MODIFIED,
+            SyncStateEntry.COLUMN_CONTENT_HASH
+    };
+
+    // These indices are tied to SYNC_STATE_COLUMNS.
+    private static final int COL_ETAG = 0;
+    private static final int COL_LAST_MODIFIED = 1;
+    private static final int COL_CONTENT_HASH = 2;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    String etag;
+    String lastModified;
+    String contentHash;
+
+    /**
+     * @return true if the server sent a validator it can check a conditional request against.
+     */
+    boolean hasValidators() {
+        return etag != null || lastModified != null;
+    }
+
+    /**
+     * Reads the state stored for a location.  Locations that were never synced get an
+     * empty state.
+     */
+    static SyncState load(Context context, String locationSetting) {
+        SyncState state = new SyncState();
+        Cursor cursor = context.getContentResolver().query(
+                SyncStateEntry.buildSyncStateUri(locationSetting),
+                SYNC_STATE_COLUMNS,
+                null,
+                null,
+                null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    state.etag = cursor.getString(COL_ETAG);
+                    state.lastModified = cursor.getString(COL_LAST_MODIFIED);
+                    state.contentHash = cursor.getString(COL_CONTENT_HASH);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Stores this state for a location.  Only call it once the forecast it describes
+     * has been written, or a failed write would be skipped by the next sync.
+     */
+    void save(Context context, String locationSetting) {
+        ContentValues values = new ContentValues();
+        values.put(SyncStateEntry.COLUMN_ETAG, etag);
+        values.put(SyncStateEntry.COLUMN_LAST_MODIFIED, lastModified);
+        values.put(SyncStateEntry.COLUMN_CONTENT_HASH, contentHash);
+        context.getContentResolver().update(
+                SyncStateEntry.buildSyncStateUri(locationSetting), values, null, null);
+    }
+
+    /**
+     * Stores the size of the response body a location's sync has just read.  It's recorded
+     * whether the forecast was stored or skipped.
+     */
+    static void recordTransfer(Context context, String locationSetting,
+                               long bytesReceived, long bytesDecoded) {
+        ContentValues values = new ContentValues();
+        values.put(SyncStateEntry.COLUMN_BYTES_RECEIVED, bytesReceived);
+        values.put(SyncStateEntry.COLUMN_BYTES_DECODED, bytesDecoded);
+        context.getContentResolver().update(
+                SyncStateEntry.buildSyncStateUri(locationSetting), values, null, null);
+    }
+
+    /**
+     * @return the hex encoded SHA-1 of a response body.
+     */
+    static String hash(byte[] body) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android release ships SHA-1.
+            throw new IllegalStateException(e);
+        }
+        return toHex(digest.digest(body));
+    }
+
+    /**
+     * @return the hex encoding of a digest.
+     */
+    static String toHex(byte[] hash) {
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,207 @@
+package com.echedeylima.weather.app.sync;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SyncResult;
+import android.os.Build;
+import android.os.Handler;
+import android.os.PersistableBundle;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Runs the periodic syncs on Lollipop and later, in place of the sync adapter's periodic
+ * sync.
+ * <p/>
+ * There are two jobs.  One keeps the preferred location fresh on any network.  The other
+ * syncs every due location, which can mean many requests and writes, so it waits for an
+ * unmetered network and a charger.  A refresh the user asks for doesn't wait for either:
+ * it still goes through {@link WeatherSyncAdapter#syncImmediately(Context)}.
+ * <p/>
+ * A third job runs the {@link MaintenanceTask} once a day, while the device is idle and
+ * charging, since its vacuum rewrites part of the database.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class WeatherJobService extends JobService {
+
+    private static final String LOG_TAG = WeatherJobService.class.getSimpleName();
+
+    static final int JOB_PREFERRED_LOCATION = 1;
+    static final int JOB_ALL_LOCATIONS = 2;
+    static final int JOB_MAINTENANCE = 3;
+
+    private static final long SYNC_INTERVAL_MILLIS = WeatherSyncAdapter.SYNC_INTERVAL * 1000L;
+    // The constrained job doesn't have to run as often: the preferred location is kept
+    // fresh by the other one, and the rest can wait for a charger.
+    private static final long ALL_LOCATIONS_INTERVAL_MILLIS = 3 * SYNC_INTERVAL_MILLIS;
+
+    // Job extra: how long a run may take, in milliseconds.  The system may stop a job
+    // sooner, which cancels the run the same way.
+    private static final String EXTRA_TIMEOUT_MILLIS = "timeout_millis";
+    private static final long PREFERRED_LOCATION_TIMEOUT_MILLIS = 60 * 1000L;
+    private static final long ALL_LOCATIONS_TIMEOUT_MILLIS = 5 * 60 * 1000L;
+
+    // Runs in progress, by job id.  Only touched on the main thread.
+    private final SparseArray<WeatherSync> mRuns = new SparseArray<WeatherSync>();
+
+    /**
+     * Schedules the sync jobs.  A pending job that was scheduled differently, e.g. by an
+     * older version with another interval, is replaced; one that is already scheduled as
+     * it should be is left alone, so its period doesn't start over.
+     */
+    public static void scheduleJobs(Context context) {
+        JobScheduler jobScheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        ComponentName service = new ComponentName(context, WeatherJobService.class);
+        JobInfo[] jobs = {
+                new JobInfo.Builder(JOB_PREFERRED_LOCATION, service)
+                        .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                        .setPeriodic(SYNC_INTERVAL_MILLIS)
+                        .setPersisted(true)
+                        .setExtras(getTimeoutExtras(PREFERRED_LOCATION_TIMEOUT_MILLIS))
+                        .build(),
+                new JobInfo.Builder(JOB_ALL_LOCATIONS, service)
+                        .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                        .setRequiresCharging(true)
+                        .setPeriodic(ALL_LOCATIONS_INTERVAL_MILLIS)
+                        .setPersisted(true)
+                        .setExtras(getTimeoutExtras(ALL_LOCATIONS_TIMEOUT_MILLIS))
+                        .build(),
+                new JobInfo.Builder(JOB_MAINTENANCE, service)
+                        .setRequiresDeviceIdle(true)
+                        .setRequiresCharging(true)
+                        .setPeriodic(MaintenanceTask.INTERVAL_MILLIS)
+                        .setPersisted(true)
+                        .build()
+        };
+
+        SparseArray<JobInfo> pendingJobs = new SparseArray<JobInfo>();
+        for (JobInfo job : jobScheduler.getAllPendingJobs()) {
+            pendingJobs.put(job.getId(), job);
+        }
+        for (JobInfo job : jobs) {
+            if (!isSameJob(pendingJobs.get(job.getId()), job)) {
+                // Replaces the pending job with the same id, if there is one.
+                jobScheduler.schedule(job);
+            }
+        }
+    }
+
+    /**
+     * @return true if the pending job, which may be null, is scheduled the way the job is.
+     */
+    private static boolean isSameJob(JobInfo pending, JobInfo job) {
+        return pending != null
+                && pending.getService().equals(job.getService())
+                && pending.getNetworkType() == job.getNetworkType()
+                && pending.isRequireCharging() == job.isRequireCharging()
+                && pending.isRequireDeviceIdle() == job.isRequireDeviceIdle()
+                && pending.isPeriodic() == job.isPeriodic()
+                && pending.getIntervalMillis() == job.getIntervalMillis()
+                && pending.isPersisted() == job.isPersisted()
+                && isSameExtras(pending.getExtras(), job.getExtras());
+    }
+
+    private static boolean isSameExtras(PersistableBundle pending, PersistableBundle extras) {
+        if (pending.size() != extras.size()) {
+            return false;
+        }
+        for (String key : extras.keySet()) {
+            Object value = extras.get(key);
+            if (value == null ? pending.get(key) != null : !value.equals(pending.get(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static PersistableBundle getTimeoutExtras(long timeoutMillis) {
+        PersistableBundle extras = new PersistableBundle();
+        extras.putLong(EXTRA_TIMEOUT_MILLIS, timeoutMillis);
+        return extras;
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final int jobId = params.getJobId();
+        if (jobId == JOB_MAINTENANCE) {
+            startMaintenance(params);
+            return true;
+        }
+
+        final String reason;
+        final boolean preferredOnly;
+        if (jobId == JOB_PREFERRED_LOCATION) {
+            reason = WeatherSync.REASON_JOB_PREFERRED;
+            preferredOnly = true;
+        } else if (jobId == JOB_ALL_LOCATIONS) {
+            reason = WeatherSync.REASON_JOB_ALL;
+            preferredOnly = false;
+        } else {
+            Log.w(LOG_TAG, "Unknown job " + jobId);
+            return false;
+        }
+
+        // The sync blocks on the network and the database, so it can't run here, on the
+        // main thread.
+        final WeatherSync sync = new WeatherSync(this, params.getExtras().getLong(
+                EXTRA_TIMEOUT_MILLIS, WeatherSync.DEFAULT_TIMEOUT_MILLIS));
+        mRuns.put(jobId, sync);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sync.run(reason, false, preferredOnly, new SyncResult());
+                } finally {
+                    onRunFinished(params, sync);
+                }
+            }
+        }, "WeatherJob-" + jobId).start();
+        return true;
+    }
+
+    private void startMaintenance(final JobParameters params) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // A failed run is tried again the next day; nothing is lost meanwhile.
+                MaintenanceTask.run(WeatherJobService.this);
+                jobFinished(params, false);
+            }
+        }, "WeatherJob-" + JOB_MAINTENANCE).start();
+    }
+
+    private void onRunFinished(final JobParameters params, final WeatherSync sync) {
+        // Failed locations are retried by the scheduler on the next run, so the job
+        // itself is never rescheduled early.
+        jobFinished(params, false);
+        new Handler(getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                // The job may already be running again.
+                if (mRuns.get(params.getJobId()) == sync) {
+                    mRuns.remove(params.getJobId());
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // The constraints are no longer met, e.g. the charger was unplugged.  The
+        // maintenance isn't in mRuns: it can't stop in the middle of a statement, so it's
+        // left to finish.
+        WeatherSync sync = mRuns.get(params.getJobId());
+        if (sync != null) {
+            sync.cancel("job " + params.getJobId() + " stopped");
+            mRuns.remove(params.getJobId());
+        }
+        // Periodic jobs come back anyway, and resume what this run didn't finish.
+        return false;
+    }
+}
@@ -0,0 +1,340 @@
+package com.echedeylima.weather.app.sync;
+
+import android.content.Context;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.util.Log;
+
+import com.echedeylima.weather.app.Utility;
+import com.echedeylima.weather.app.data.WeatherContract.LocationEntry;
+import com.echedeylima.weather.app.source.WeatherSource;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * One run of the sync, whatever started it: the sync adapter, or one of the jobs of
+ * {@link WeatherJobService}.
+ * <p/>
+ * A run has a deadline, and can be cancelled by whoever started it.  Either way it stops
+ * at the next read or write, the locations it didn't finish are left in
+ * {@link SyncProgress}, and the next run resumes them.
+ */
+class WeatherSync {
+
+    private static final String LOG_TAG = WeatherSync.class.getSimpleName();
+
+    // Why a run happened, recorded with it by SyncRunLog.
+    // The user asked for fresh weather.
+    static final String REASON_MANUAL = "manual";
+    // The framework ran the sync adapter on its own, e.g. its periodic sync before
+    // Lollipop.
+    static final String REASON_SYNC_ADAPTER = "sync_adapter";
+    // The job keeping the preferred location fresh, on any network.
+    static final String REASON_JOB_PREFERRED = "job_preferred";
+    // The job refreshing every location, on an unmetered network while charging.
+    static final String REASON_JOB_ALL = "job_all";
+
+    // Number of locations, besides the preferred one, fetched at the same time.
+    private static final int MAX_PARALLEL_LOCATIONS = 3;
+
+    // How long a run may take, unless its caller says otherwise.
+    static final long DEFAULT_TIMEOUT_MILLIS = 2 * 60 * 1000L;
+
+    private final Context mContext;
+    private final SyncCancellation mCancellation;
+
+    /**
+     * @param timeoutMillis how long the run may take, counting from now, or 0 or less for
+     *                      no deadline
+     */
+    WeatherSync(Context context, long timeoutMillis) {
+        mContext = context;
+        mCancellation = SyncCancellation.withTimeout(timeoutMillis);
+    }
+
+    /**
+     * Stops the run.  May be called from any thread.
+     */
+    void cancel(String reason) {
+        mCancellation.cancel(reason);
+    }
+
+    /**
+     * Syncs the locations that are due.
+     *
+     * @param reason        why the run happened, one of the REASON_ constants
+     * @param manual        true if the user asked for it, in which case the preferred
+     *                      location is synced even if it's not due
+     * @param preferredOnly true to leave the other locations to a later run
+     * @param syncResult    where the outcome is reported
+     */
+    void run(String reason, boolean manual, boolean preferredOnly, SyncResult syncResult) {
+        try {
+            runLocations(reason, manual, preferredOnly, syncResult);
+        } finally {
+            mCancellation.close();
+        }
+    }
+
+    private void runLocations(String reason, boolean manual, boolean preferredOnly,
+                              SyncResult syncResult) {
+        long startedAt = System.currentTimeMillis();
+        Log.d(LOG_TAG, "Sync started, reason: " + reason);
+
+        // While the source keeps failing, leave it alone and tell the framework when to
+        // come back.
+        long now = startedAt;
+        final ForecastPipeline pipeline = new ForecastPipeline(mContext);
+        final WeatherSource source = pipeline.getSource();
+        final CircuitBreaker breaker = CircuitBreaker.get(mContext, source.getName());
+        if (breaker.isOpen(now)) {
+            Log.d(LOG_TAG, "Circuit breaker for " + source.getName() + " is open, not syncing");
+            syncResult.delayUntil = breaker.getOpenUntil() / 1000;
+            SyncRunLog.record(mContext, reason, startedAt, 0, 0);
+            return;
+        }
+
+        // Get a connection ready while the locations are read from the database.
+        source.preconnect();
+
+        // No locations at all means the database has been recreated, so rebuild it from
+        // the archived responses before going to the network.
+        String preferredLocation = Utility.getPreferredLocation(mContext);
+        Set<String> otherLocations = getStoredLocations();
+        if (otherLocations.isEmpty() && restoreFromArchive(pipeline, preferredLocation) > 0) {
+            otherLocations = getStoredLocations();
+        }
+
+        // The location the user is looking at is synced first, then every other stored one.
+        // Out of those, only the ones the scheduler says are due are synced, except for the
+        // preferred location on a sync the user asked for.
+        // The locations an earlier run didn't finish are synced whether they're due or not.
+        final SyncScheduler scheduler = SyncScheduler.load(mContext, preferredLocation);
+        final SyncProgress progress = SyncProgress.load(mContext);
+        Set<String> unfinished = progress.getUnfinished();
+        for (String locationSetting : unfinished) {
+            if (!otherLocations.contains(locationSetting)) {
+                // Deleted since.
+                progress.forget(locationSetting);
+            }
+        }
+        unfinished.retainAll(otherLocations);
+        boolean preferredUnfinished = unfinished.remove(preferredLocation);
+        otherLocations.remove(preferredLocation);
+        if (preferredOnly) {
+            otherLocations = Collections.emptySet();
+        } else {
+            Set<String> dueLocations = scheduler.getDueLocations(otherLocations, now);
+            unfinished.addAll(dueLocations);
+            otherLocations = unfinished;
+        }
+        if (manual) {
+            // The user asked for fresh weather: start it over.
+            progress.forget(preferredLocation);
+        } else if (!preferredUnfinished && scheduler.getDueLocations(
+                Collections.singleton(preferredLocation), now).isEmpty()) {
+            preferredLocation = null;
+        }
+        if (preferredLocation != null) {
+            progress.onPlanned(Collections.singleton(preferredLocation));
+        }
+        progress.onPlanned(otherLocations);
+
+        // Each location goes through the single-flight gate, so a location that is being
+        // synced by someone else, or has just been, isn't fetched and written twice.
+        // Whoever does the work checks the circuit breaker first, and records how it went
+        // with the breaker and the location's retry schedule.
+        final MultiLocationSync.LocationSyncer syncer = new MultiLocationSync.LocationSyncer() {
+            @Override
+            public int syncLocation(String locationSetting) throws IOException, JSONException {
+                mCancellation.throwIfCanceled();
+                if (!breaker.allowRequest(System.currentTimeMillis())) {
+                    throw new CircuitBreaker.OpenException(source.getName());
+                }
+                try {
+                    int rowsWritten = WeatherSync.this.syncLocation(pipeline, locationSetting,
+                            scheduler, progress);
+                    breaker.onSuccess();
+                    return rowsWritten;
+                } catch (SyncCancellation.CanceledException e) {
+                    // Nobody's fault; the location is resumed by the next run.
+                    throw e;
+                } catch (IOException e) {
+                    onUpstreamFailure(locationSetting);
+                    throw e;
+                } catch (JSONException e) {
+                    onUpstreamFailure(locationSetting);
+                    throw e;
+                } catch (RuntimeException e) {
+                    // Not the source's fault, e.g. a database error: only this location
+                    // backs off.
+                    scheduler.onLocationFailed(locationSetting, System.currentTimeMillis());
+                    progress.forget(locationSetting);
+                    throw e;
+                } finally {
+                    breaker.onRequestFinished();
+                }
+            }
+
+            private void onUpstreamFailure(String locationSetting) {
+                long now = System.currentTimeMillis();
+                breaker.onFailure(now);
+                scheduler.onLocationFailed(locationSetting, now);
+                // Its retry is up to the scheduler now.
+                progress.forget(locationSetting);
+            }
+        };
+        List<MultiLocationSync.Result> results = new MultiLocationSync(MAX_PARALLEL_LOCATIONS).run(
+                preferredLocation, otherLocations, new MultiLocationSync.LocationSyncer() {
+                    @Override
+                    public int syncLocation(String locationSetting)
+                            throws IOException, JSONException {
+                        return SingleFlight.getInstance().syncLocation(locationSetting, syncer);
+                    }
+                });
+
+        // A failed location doesn't stop the others; it's reported so the framework can
+        // decide whether to retry.
+        int canceled = 0;
+        for (MultiLocationSync.Result result : results) {
+            if (result.error == null) {
+                syncResult.stats.numInserts += result.rowsWritten;
+            } else if (result.error instanceof SyncCancellation.CanceledException) {
+                // Left for the next run to resume.
+                syncResult.stats.numSkippedEntries++;
+                canceled++;
+            } else if (result.error instanceof CircuitBreaker.OpenException) {
+                // Not tried at all; it's still due on the next sync.
+                syncResult.stats.numSkippedEntries++;
+            } else if (result.error instanceof IOException) {
+                syncResult.stats.numIoExceptions++;
+            } else if (result.error instanceof JSONException) {
+                syncResult.stats.numParseExceptions++;
+            } else if (result.error instanceof SQLException) {
+                syncResult.databaseError = true;
+            } else {
+                // The location was skipped because of an unexpected error.
+                syncResult.stats.numSkippedEntries++;
+            }
+        }
+
+        // The framework retries failed syncs on its own schedule; hold it back until the
+        // breaker lets requests through again, or the first failed location is due.
+        long retryAt = breaker.getOpenUntil();
+        if (retryAt == 0) {
+            retryAt = scheduler.getEarliestRetry();
+        }
+        if (retryAt != 0) {
+            syncResult.delayUntil = retryAt / 1000;
+        }
+        SyncRunLog.record(mContext, reason, startedAt, results.size(),
+                syncResult.stats.numInserts);
+        Log.d(LOG_TAG, "WeatherSync Complete. " + results.size() + " locations, "
+                + syncResult.stats.numInserts + " rows, " + canceled + " canceled");
+    }
+
+    /**
+     * @return the location settings of every location stored in the database.
+     */
+    private Set<String> getStoredLocations() {
+        Set<String> locations = new LinkedHashSet<String>();
+        Cursor cursor = mContext.getContentResolver().query(
+                LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_LOCATION_SETTING},
+                null,
+                null,
+                null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    locations.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * Fetches the forecast of one location and stores it, starting at the stage an earlier
+     * run stopped at.  Called concurrently for different locations.
+     *
+     * @param locationQuery the location setting to send to the API
+     * @param scheduler     told about the sync once it has succeeded
+     * @param progress      told about every stage stored
+     * @return the number of weather rows written, 0 if the forecast hadn't changed.
+     */
+    private int syncLocation(ForecastPipeline pipeline, String locationQuery,
+                             SyncScheduler scheduler, SyncProgress progress)
+            throws IOException, JSONException {
+        int rowsWritten = 0;
+        if (progress.getStage(locationQuery) < SyncProgress.STAGE_DAILY_DONE) {
+            ForecastPipeline.Result result = pipeline.sync(locationQuery, mCancellation);
+            scheduler.onLocationSynced(locationQuery, result.rowsWritten, result.days,
+                    System.currentTimeMillis());
+            progress.onStage(locationQuery, SyncProgress.STAGE_DAILY_DONE);
+            rowsWritten = result.rowsWritten;
+        }
+
+        // The intraday forecast rides along.  It's secondary: a failure is only logged,
+        // so it doesn't put off the next sync of the daily forecast.
+        try {
+            pipeline.syncHourly(locationQuery, mCancellation);
+        } catch (SyncCancellation.CanceledException e) {
+            throw e;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Error syncing the hourly forecast for " + locationQuery, e);
+        } catch (JSONException e) {
+            Log.w(LOG_TAG, "Error parsing the hourly forecast for " + locationQuery, e);
+        }
+        progress.forget(locationQuery);
+        return rowsWritten;
+    }
+
+    /**
+     * Stores the latest archived forecast of every archived location again, without the
+     * network.  Used when the database has been recreated, e.g. by a schema downgrade.
+     *
+     * @return the number of locations restored.
+     */
+    int restoreFromArchive(ForecastPipeline pipeline, String preferredLocation) {
+        ResponseArchive archive = ResponseArchive.getInstance(mContext);
+        // The restored forecasts count as syncs made when they were archived, so the
+        // scheduler doesn't refetch them right away.
+        SyncScheduler scheduler = SyncScheduler.load(mContext, preferredLocation);
+        int restored = 0;
+        for (String locationSetting : archive.getLocations()) {
+            ResponseArchive.Entry entry = archive.getLatest(locationSetting);
+            if (entry == null) {
+                continue;
+            }
+            try {
+                SyncState state = new SyncState();
+                state.contentHash = entry.hash;
+                InputStream in = entry.open();
+                try {
+                    pipeline.ingest(locationSetting, in, state);
+                } finally {
+                    in.close();
+                }
+                scheduler.onLocationSynced(locationSetting, 0, 0, entry.archivedAt);
+                restored++;
+            } catch (IOException e) {
+                // The location is simply synced from the network instead.
+                Log.w(LOG_TAG, "Can't restore " + locationSetting + " from the archive", e);
+            } catch (JSONException e) {
+                Log.w(LOG_TAG, "Can't restore " + locationSetting + " from the archive", e);
+            }
+        }
+        return restored;
+    }
+}
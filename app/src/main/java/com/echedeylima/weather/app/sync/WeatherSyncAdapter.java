@@ -3,46 +3,36 @@ package com.echedeylima.weather.app.sync;
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.content.AbstractThreadedSyncAdapter;
+import android.content.AsyncQueryHandler;
 import android.content.ContentProviderClient;
 import android.content.ContentResolver;
-import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.SyncRequest;
 import android.content.SyncResult;
-import android.database.Cursor;
-import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
 
 import com.echedeylima.weather.app.R;
-import com.echedeylima.weather.app.Utility;
-import com.echedeylima.weather.app.data.WeatherContract;
 import com.echedeylima.weather.app.data.WeatherContract.*;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Date;
-import java.util.Vector;
-
 public class WeatherSyncAdapter extends AbstractThreadedSyncAdapter {
 
     public final String LOG_TAG = WeatherSyncAdapter.class.getSimpleName();
 
-    // Interval at which to sync with the weather, in milliseconds.
-    // 60 seconds (1 minute) * 180 = 3 hours
-    public static final int SYNC_INTERVAL = 60 * 180;
+    // Interval at which the sync scheduler is ticked, in seconds.  Every tick only syncs the
+    // locations that are due, so this is the shortest interval a location can get.
+    // 60 seconds (1 minute) * 60 = 1 hour
+    public static final int SYNC_INTERVAL = 60 * 60;
     public static final int SYNC_FLEXTIME = SYNC_INTERVAL / 3;
 
+    // Sync extra: how long the sync may take, in milliseconds.  Once it's over the sync
+    // stops, and the next one resumes where it left off.
+    public static final String SYNC_EXTRAS_TIMEOUT_MILLIS = "timeout_millis";
+
+    // The sync in progress, if any.  The adapter runs one sync at a time.
+    private volatile WeatherSync mSync;
+
     public WeatherSyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
     }
@@ -51,256 +41,36 @@ public class WeatherSyncAdapter extends AbstractThreadedSyncAdapter {
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
         Log.d(LOG_TAG, "name:" + account.name + " authority:" + authority);
 
-        // Getting the zipcode to send to the API
-        String locationQuery = Utility.getPreferredLocation(getContext());
-
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
-
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
-
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
-
+        // From Lollipop on the periodic syncs are jobs, so a sync the user didn't ask for
+        // is the framework's own, e.g. after the account was added.
+        boolean manual = extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL);
+        WeatherSync sync = new WeatherSync(getContext(),
+                extras.getLong(SYNC_EXTRAS_TIMEOUT_MILLIS, WeatherSync.DEFAULT_TIMEOUT_MILLIS));
+        mSync = sync;
         try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-
-            Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
-                    .appendQueryParameter(QUERY_PARAM, locationQuery)
-                    .appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .build();
-
-            URL url = new URL(builtUri.toString());
-
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
-            }
-
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
-            }
-
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                return;
-            }
-            forecastJsonStr = buffer.toString();
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Error ", e);
-            // If the code didn't successfully get the weather data, there's no point in attemping
-            // to parse it.
-            return;
+            sync.run(manual ? WeatherSync.REASON_MANUAL : WeatherSync.REASON_SYNC_ADAPTER,
+                    manual, false, syncResult);
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
-                }
-            }
+            mSync = null;
         }
 
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
-
-        // These are the names of the JSON objects that need to be extracted.
-
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
-
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
-
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
-
-        final String OWM_DATETIME = "dt";
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
-
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
-
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
-
-        try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
-
-            long locationId = addLocation(locationQuery, cityName, cityLatitude, cityLongitude);
-
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
-
-            for (int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
-
-                double high;
-                double low;
-
-                String description;
-                int weatherId;
-
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
-
-                // The date/time is returned as a long.  We need to convert that
-                // into something human-readable, since most people won't read "1400356800" as
-                // "this saturday".
-                dateTime = dayForecast.getLong(OWM_DATETIME);
-
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
-
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
-
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
-
-                ContentValues weatherValues = new ContentValues();
-
-                weatherValues.put(WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherEntry.COLUMN_DATETEXT, WeatherContract.getDbDateString(new Date(dateTime * 1000L)));
-                weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, weatherId);
-
-                cVVector.add(weatherValues);
-            }
-            if (cVVector.size() > 0) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, cvArray);
-            }
-            Log.d(LOG_TAG, "WeatherSyn Complete. " + cVVector.size() + " Inserted");
-
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
+        // Before Lollipop there's no idle job, so the periodic sync keeps the database in
+        // shape once a day.
+        if (!manual && Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP
+                && MaintenanceTask.isDue(getContext(), System.currentTimeMillis())) {
+            MaintenanceTask.run(getContext());
         }
-
-        // This will only happen if there was an error getting or parsing the forecast.
-        return;
     }
 
-    /**
-     * Helper method to handle insertion of a new location in the weather database.
-     *
-     * @param locationSetting The location string used to request updates from the server.
-     * @param cityName        A human-readable city name, e.g "Mountain View"
-     * @param lat             the latitude of the city
-     * @param lon             the longitude of the city
-     * @return the row ID of the added location.
-     */
-    private long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
-
-        Log.v(LOG_TAG, "inserting " + cityName + ", with coord: " + lat + ", " + lon);
-
-        // First, check if the location with this city name exists in the db
-        Cursor locationCursor = getContext().getContentResolver().query(
-                WeatherContract.LocationEntry.CONTENT_URI,
-                new String[]{LocationEntry._ID},
-                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
-                new String[]{locationSetting},
-                null);
-
-        if (locationCursor.moveToFirst()) {
-            int locationIdIndex = locationCursor.getColumnIndex(LocationEntry._ID);
-            locationId = locationCursor.getLong(locationIdIndex);
-        } else {
-            // Now that the content provider is set up, inserting rows of data is pretty simple.
-            // First create a ContentValues object to hold the data you want to insert.
-            ContentValues locationValues = new ContentValues();
-
-            // Then add the data, along with the corresponding name of the data type,
-            // so the content provider knows what kind of value is being inserted.
-            locationValues.put(LocationEntry.COLUMN_CITY_NAME, cityName);
-            locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-            locationValues.put(LocationEntry.COLUMN_COORD_LAT, lat);
-            locationValues.put(LocationEntry.COLUMN_COORD_LONG, lon);
-
-            // Finally, insert location data into the database.
-            Uri insertedUri = getContext().getContentResolver().insert(
-                    WeatherContract.LocationEntry.CONTENT_URI,
-                    locationValues
-            );
-
-            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
-            locationId = ContentUris.parseId(insertedUri);
+    @Override
+    public void onSyncCanceled() {
+        // The default only interrupts the sync thread, which a blocked read or a parse
+        // doesn't notice.
+        WeatherSync sync = mSync;
+        if (sync != null) {
+            sync.cancel("canceled by the framework");
         }
-
-        // Wait, that worked?  Yes!
-        return locationId;
+        super.onSyncCanceled();
     }
 
     /**
@@ -321,6 +91,16 @@ public class WeatherSyncAdapter extends AbstractThreadedSyncAdapter {
         }
     }
 
+    /**
+     * Records that the forecast of a location is on screen, so the scheduler keeps it
+     * fresh.  The write is done in the background; call it from the main thread.
+     */
+    public static void markLocationViewed(Context context, String locationSetting) {
+        new AsyncQueryHandler(context.getContentResolver()) {
+        }.startUpdate(0, null, SyncStateEntry.buildSyncStateUri(locationSetting),
+                SyncScheduler.getViewedValues(System.currentTimeMillis()), null, null);
+    }
+
     /**
      * Helper method to have the sync adapter sync immediately
      *
@@ -377,7 +157,7 @@ public class WeatherSyncAdapter extends AbstractThreadedSyncAdapter {
         /*
          * Since we've created an account
          */
-        WeatherSyncAdapter.configurePeriodicSync(context, SYNC_INTERVAL, SYNC_FLEXTIME);
+        schedulePeriodicSync(context, newAccount);
 
         /*
          * Without calling setSyncAutomatically, our periodic sync will not be enabled.
@@ -390,8 +170,29 @@ public class WeatherSyncAdapter extends AbstractThreadedSyncAdapter {
         syncImmediately(context);
     }
 
+    /**
+     * Schedules the periodic syncs.  From Lollipop on they are jobs, which can wait for an
+     * unmetered network and a charger; before that they are the sync adapter's own.
+     */
+    private static void schedulePeriodicSync(Context context, Account account) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            WeatherJobService.scheduleJobs(context);
+            ContentResolver.removePeriodicSync(account,
+                    context.getString(R.string.content_authority), new Bundle());
+        } else {
+            configurePeriodicSync(context, SYNC_INTERVAL, SYNC_FLEXTIME);
+        }
+    }
+
     public static void initializeSyncAdapter(Context context) {
-        getSyncAccount(context);
+        Account account = getSyncAccount(context);
+        // Installs that already had the account pick up the current schedule on the first
+        // launch after an update: from Lollipop on they move over to the jobs, and jobs
+        // scheduled with other settings are replaced; before that, the periodic sync of the
+        // account takes the current interval in place of the one it was added with.
+        if (account != null) {
+            schedulePeriodicSync(context, account);
+        }
     }
 
 }